@@ -1,22 +1,22 @@
 package com.deltathinkers.console;
 
 import android.app.Activity;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbManager;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.text.InputType;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -24,15 +24,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
+import printer.GCodeStreamer;
 import printer.Printer;
-import printer.ArduinoUsbPort;
-import printer.SerialIOManager;
-import printer.HexDump;
 
 public class ConsoleActivity extends Activity {
 
@@ -40,36 +35,48 @@ public class ConsoleActivity extends Activity {
 
     private final static String TAG = ConsoleActivity.class.getSimpleName();
 
-    // private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-
     private TextView mTitleTextView;
-    private TextView mDumpTextView;
-    private ScrollView mScrollView;
+    private ListView mConsoleList;
     private EditText mEditText;
     private Button mSendButton;
 
-    private ArduinoUsbPort sPort = null;
-
-    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // The connection, console text and any print live in the service, so
+    // this screen can come and go without touching the printer.
+    private PrinterService mService;
+    private ConsoleAdapter mConsoleAdapter;
+
+    // File opened through ACTION_VIEW, streamed once the service is bound.
+    // Not again when the activity is only being recreated.
+    private File mStreamFile;
+    private boolean mStartStream;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((PrinterService.LocalBinder) binder).getService();
+            mConsoleAdapter = new ConsoleAdapter(ConsoleActivity.this, mService.getConsole());
+            mConsoleList.setAdapter(mConsoleAdapter);
+            mService.setStatusListener(mStatusListener);
+            if (mStartStream) {
+                mStartStream = false;
+                mService.startStream(mStreamFile);
+            }
+            invalidateOptionsMenu();
+        }
 
-    private SerialIOManager mSerialIoManager;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            detachService();
+        }
+    };
 
-    private final SerialIOManager.Listener mListener =
-        new SerialIOManager.Listener() {
+    private final PrinterService.StatusListener mStatusListener =
+        new PrinterService.StatusListener() {
 
             @Override
-            public void onRunError(Exception e) {
-                Log.d(TAG, "Runner stopped.");
-            }
-
-            @Override
-            public void onNewData(final byte[] data) {
-                ConsoleActivity.this.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        ConsoleActivity.this.updateReceivedData(data);
-                    }
-                });
+            public void onStatusChanged(String status) {
+                mTitleTextView.setText(status);
             }
         };
 
@@ -79,17 +86,16 @@ public class ConsoleActivity extends Activity {
         setContentView(R.layout.activity_console);
 
         mTitleTextView = (TextView) findViewById(R.id.demoTitle);
-        mDumpTextView = (TextView) findViewById(R.id.consoleText);
-        mScrollView = (ScrollView) findViewById(R.id.demoScroller);
+        mConsoleList = (ListView) findViewById(R.id.consoleList);
         mSendButton = (Button) findViewById(R.id.sendButton);
         mEditText = (EditText) findViewById(R.id.editText);
 
         mSendButton.setOnClickListener(new View.OnClickListener () {
             public void onClick(View v) {
                 String result = mEditText.getText().toString();
-                if (!result.isEmpty()) {
+                if (!result.isEmpty() && mService != null) {
                     try {
-                        sendMessage(result);
+                        mService.sendMessage(result);
                         mEditText.setText("");
                     } catch(IOException e) {
                     }
@@ -97,13 +103,17 @@ public class ConsoleActivity extends Activity {
             }
         });
 
+        // Started as well as bound, so that it outlives this activity.
+        final Intent service = new Intent(this, PrinterService.class);
+        startService(service);
+        bindService(service, mConnection, Context.BIND_AUTO_CREATE);
+
         String filepath;
         File file;
-        Boolean isFile = false;
-        if (getIntent().getAction().equals("android.intent.action.VIEW")) {
+        // No action when brought back from the service's notification.
+        if ("android.intent.action.VIEW".equals(getIntent().getAction())) {
             //Called by a file manager.
             Log.d(TAG, "URI");
-            isFile = true;
             String path = getIntent().getDataString();
             filepath = path.replace("file://", "");
             try {
@@ -118,6 +128,7 @@ public class ConsoleActivity extends Activity {
 
             if (file.exists() && file.canRead()) {
                 mTitleTextView.setText("Streaming from file.");
+                mStreamFile = file;
                 Toast.makeText(getBaseContext(), "Exists and can read.", Toast.LENGTH_SHORT).show();
             } else {
                 mTitleTextView.setText("Can't read.");
@@ -127,45 +138,10 @@ public class ConsoleActivity extends Activity {
             Log.d(TAG, "Not to stream");
         }
 
-        Toast.makeText(getBaseContext(),"Welcome!",Toast.LENGTH_SHORT).show();
-        PendingIntent mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-
-        UsbManager usbManager = (UsbManager) getApplicationContext().getSystemService(Context.USB_SERVICE);
+        mStartStream = mStreamFile != null && savedInstanceState == null;
 
-        UsbDevice device = Printer.findPrinter(this);
-        if (device == null) {
-            mTitleTextView.setText("Printer device not found.");
-        } else {
-            mTitleTextView.setText("Printer device found.");
-            Log.d(TAG, "Found device" + device.getDeviceName());
-
-            if (usbManager.hasPermission(device)) {
-                Log.d(TAG, "Has permission.");
-                onHasPermission(device);
-            } else {
-                printConsole("No permissions. Attempting to get it now.\n");
-                Log.e(TAG, "Has NO permission.");
-                registerReceiver(mUsbReceiver, filter);
-                usbManager.requestPermission(device, mPermissionIntent);
-            }
-        }
-
-        if (isFile) {
-            Thread thread = new Thread() {
-                public void run() {
-                    while (true) {
-                        try {
-                            // do something here
-                            Log.d(TAG, "local Thread sleeping");
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "local Thread error", e);
-                        }
-                    }
-                }
-            };
-            thread.start();
+        if (savedInstanceState == null) {
+            Toast.makeText(getBaseContext(),"Welcome!",Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -173,104 +149,24 @@ public class ConsoleActivity extends Activity {
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "RESUME");
-        if (sPort == null) {
-            mTitleTextView.setText("No serial device.");
-        } else {
-            final UsbManager usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
-
-            UsbDeviceConnection connection = usbManager.openDevice(sPort.getDevice());
-            if (connection == null) {
-                mTitleTextView.setText("Opening device failed");
-                return;
-            }
-
-            try {
-                sPort.open(connection);
-                sPort.setParameters(115200, 8, ArduinoUsbPort.STOPBITS_1, ArduinoUsbPort.PARITY_NONE);
-            } catch (IOException e) {
-                Log.e(TAG, "Error setting up device: " + e.getMessage(), e);
-                mTitleTextView.setText("Error opening device: " + e.getMessage());
-                try {
-                    sPort.close();
-                } catch (IOException e2) {
-                    // Ignore.
-                }
-                sPort = null;
-                return;
-            }
-            mTitleTextView.setText("Serial device: " + sPort.getClass().getSimpleName());
-        }
-        onDeviceStateChange();
-    }
-
-
-    private void sendMessage(String message) throws IOException {
-        message += "\n";
-        if (mSerialIoManager == null) {
-            printConsole("Failed to send message. No Serial Io Manager instantiated.\n");
-        } else {
-            printConsole("(sent): "+message+(message.endsWith("\n")?"":"\n"));
-            mSerialIoManager.writeAsync(message.getBytes(Charset.forName("UTF-8")));
-        }
     }
 
-    private void stopIoManager() {
-        if (mSerialIoManager != null) {
-            Log.i(TAG, "Stopping io manager ..");
-            mSerialIoManager.stop();
-            mSerialIoManager = null;
-        }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        detachService();
+        unbindService(mConnection);
     }
 
-    private void startIoManager() {
-        if (sPort != null) {
-            Log.i(TAG, "Starting io manager ..");
-            mSerialIoManager = new SerialIOManager(sPort, mListener);
-            mExecutor.submit(mSerialIoManager);
+    private void detachService() {
+        if (mService != null) {
+            mService.setStatusListener(null);
+            mService = null;
         }
-    }
-
-    private void onDeviceStateChange() {
-        stopIoManager();
-        startIoManager();
-    }
-
-    private void updateReceivedData(byte[] data) {
-        printConsole("Read " + data.length + " bytes: \n$ " + HexDump.dumpHexString(data) + "\n\n");
-    }
-
-    @Override
-    protected void onPause() {
-        super.onPause();
-        stopIoManager();
-        if (sPort != null) {
-            try {
-                sPort.close();
-            } catch (IOException e) {
-                printConsole("ERROR: Failed to close sPort");
-            }
-            sPort = null;
+        if (mConsoleAdapter != null) {
+            mConsoleAdapter.detach();
+            mConsoleAdapter = null;
         }
-        finish();
-    }
-
-    private void onFailedPermission () {
-        Toast.makeText(getBaseContext(),
-                "Failed to get permission. wtf",
-                Toast.LENGTH_SHORT)
-                .show();
-    }
-
-    private void onHasPermission (UsbDevice device) {
-        printConsole("Permissions found. :)\n");
-        sPort = new ArduinoUsbPort(device, 0);
-    }
-
-    //
-
-    private void printConsole (String text) {
-        mDumpTextView.append(text);
-        mScrollView.smoothScrollTo(0, mDumpTextView.getBottom());
     }
 
     //
@@ -280,6 +176,10 @@ public class ConsoleActivity extends Activity {
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_console, menu);
+        if (mService != null) {
+            menu.findItem(R.id.action_hex).setChecked(mService.isHexMode());
+            menu.findItem(R.id.action_capture).setChecked(mService.isCapturing());
+        }
         return true;
     }
 
@@ -295,35 +195,104 @@ public class ConsoleActivity extends Activity {
             return true;
         }
 
-        return super.onOptionsItemSelected(item);
-    }
-
-    // get USB permission
+        final PrinterService service = mService;
+        if (service == null) {
+            return super.onOptionsItemSelected(item);
+        }
 
-    private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-    private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
+        if (id == R.id.action_metrics) {
+            service.showMetrics();
+            return true;
+        }
 
-        public void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
-        Log.d(TAG, "Returned from Broadcast: "+action);
-        if (ACTION_USB_PERMISSION.equals(action)) {
-            synchronized (this) {
-                UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (id == R.id.action_trace) {
+            service.dumpTrace();
+            return true;
+        }
 
-                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                    if (device != null){
-                        //call method to set up device communication
-                        onHasPermission(device);
-                    }
-                }
-                else {
-                    Log.d(TAG, "permission denied for device " + device);
-                    onFailedPermission();
-                }
+        if (id == R.id.action_capture) {
+            if (service.isCapturing()) {
+                service.stopCapture();
+            } else {
+                service.startCapture();
             }
+            item.setChecked(service.isCapturing());
+            return true;
         }
+
+        if (id == R.id.action_hex) {
+            service.setHexMode(!item.isChecked());
+            item.setChecked(service.isHexMode());
+            return true;
         }
-    };
 
+        final GCodeStreamer streamer = service.getStreamer();
+        if (id == R.id.action_pause) {
+            if (streamer != null) streamer.pause();
+            return true;
+        }
+        if (id == R.id.action_resume) {
+            if (streamer != null) streamer.resume();
+            return true;
+        }
+        if (id == R.id.action_cancel) {
+            if (streamer != null) streamer.cancel();
+            return true;
+        }
+        if (id == R.id.action_resume_checkpoint) {
+            service.resumeFromCheckpoint();
+            return true;
+        }
+        if (id == R.id.action_start_line) {
+            pickStart(false);
+            return true;
+        }
+        if (id == R.id.action_start_layer) {
+            pickStart(true);
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Asks where in the opened file to start streaming: a line numbered from
+     * one, as an editor shows it, or a layer numbered from zero, as the
+     * console reports it.
+     */
+    private void pickStart(final boolean layer) {
+        if (mStreamFile == null) {
+            Toast.makeText(this, R.string.no_stream_file, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        new AlertDialog.Builder(this)
+                .setTitle(layer ? R.string.start_layer_title : R.string.start_line_title)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final PrinterService service = mService;
+                        final long number;
+                        try {
+                            number = Long.parseLong(input.getText().toString());
+                        } catch (NumberFormatException e) {
+                            return;
+                        }
+                        if (service == null) {
+                            return;
+                        }
+                        if (layer) {
+                            service.startStreamAtLayer(mStreamFile,
+                                    (int) Math.min(number, Integer.MAX_VALUE));
+                        } else {
+                            service.startStreamAt(mStreamFile, Math.max(number - 1, 0));
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
 }
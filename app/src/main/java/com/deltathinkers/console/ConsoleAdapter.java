@@ -0,0 +1,114 @@
+package com.deltathinkers.console;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows a {@link ConsoleBuffer} in a ListView, which only lays out the rows
+ * on screen and recycles them as they scroll.
+ *
+ * Appends only mark the view stale; the list is refreshed on the next frame,
+ * so however fast replies arrive it is updated at most once per frame. Must
+ * be created on the UI thread.
+ */
+public class ConsoleAdapter extends BaseAdapter
+        implements ConsoleBuffer.Listener, Choreographer.FrameCallback {
+
+    private final ConsoleBuffer mBuffer;
+    private final LayoutInflater mInflater;
+    private final Choreographer mChoreographer;
+
+    private final AtomicBoolean mFramePending = new AtomicBoolean();
+
+    // Snapshot of the buffer taken once per frame, so the count the ListView
+    // sees only changes together with notifyDataSetChanged(). UI thread only.
+    private long mStart;
+    private int mCount;
+
+    private static final class Row {
+        final TextView text;
+        final char[] chars;
+
+        Row(TextView text, int lineLength) {
+            this.text = text;
+            this.chars = new char[lineLength];
+        }
+    }
+
+    public ConsoleAdapter(Context context, ConsoleBuffer buffer) {
+        mBuffer = buffer;
+        mInflater = LayoutInflater.from(context);
+        mChoreographer = Choreographer.getInstance();
+        mBuffer.setListener(this);
+        snapshot();
+    }
+
+    /** Stops listening to the buffer and drops any pending refresh. */
+    public void detach() {
+        mBuffer.setListener(null);
+        mChoreographer.removeFrameCallback(this);
+        mFramePending.set(false);
+    }
+
+    @Override
+    public void onAppended(ConsoleBuffer buffer) {
+        if (mFramePending.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePending.set(false);
+        snapshot();
+        notifyDataSetChanged();
+    }
+
+    private void snapshot() {
+        synchronized (mBuffer) {
+            mStart = mBuffer.getStart();
+            mCount = (int) (mBuffer.getEnd() - mStart);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mStart + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        Row row = convertView != null ? (Row) convertView.getTag() : null;
+        if (row == null) {
+            convertView = mInflater.inflate(R.layout.console_line, parent, false);
+            row = new Row((TextView) convertView, mBuffer.getLineLength());
+            convertView.setTag(row);
+        }
+        // A line overwritten since the last frame shows blank until the next.
+        final int len = mBuffer.getLine(mStart + position, row.chars);
+        row.text.setText(row.chars, 0, Math.max(len, 0));
+        return convertView;
+    }
+}
@@ -0,0 +1,157 @@
+package com.deltathinkers.console;
+
+/**
+ * Fixed-size ring of console lines.
+ *
+ * Text can be appended from any thread; once the ring is full the oldest
+ * lines are overwritten, so memory stays the same however long a print runs.
+ * Lines longer than the slot width are wrapped. Every line ever added has an
+ * absolute index, which keeps readers consistent while old lines drop off.
+ */
+public class ConsoleBuffer {
+
+    public interface Listener {
+        /**
+         * Called after every append, on the appending thread. Must be cheap;
+         * the console only uses it to schedule a redraw.
+         */
+        public void onAppended(ConsoleBuffer buffer);
+    }
+
+    public static final int DEFAULT_CAPACITY = 2000;
+    public static final int DEFAULT_LINE_LENGTH = 120;
+
+    private final char[][] mLines;
+    private final int[] mLengths;
+    private final int mMask;
+
+    // Synchronized by 'this'
+    // Absolute index of the oldest kept line, and of the line being written.
+    // The line at mEnd is open; it counts once it has any text.
+    private long mStart;
+    private long mEnd;
+
+    private volatile Listener mListener;
+
+    public ConsoleBuffer() {
+        this(DEFAULT_CAPACITY, DEFAULT_LINE_LENGTH);
+    }
+
+    /**
+     * @param capacity lines kept, rounded up to a power of two
+     * @param lineLength characters per line before wrapping
+     */
+    public ConsoleBuffer(int capacity, int lineLength) {
+        if (capacity <= 0 || capacity > (1 << 20) || lineLength <= 0) {
+            throw new IllegalArgumentException("Bad size: " + capacity + "x" + lineLength);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mLines = new char[size][lineLength];
+        mLengths = new int[size];
+        mMask = size - 1;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int capacity() {
+        return mLines.length;
+    }
+
+    /** Characters per line before wrapping. */
+    public int getLineLength() {
+        return mLines[0].length;
+    }
+
+    /** Absolute index of the oldest line still kept. */
+    public synchronized long getStart() {
+        return mStart;
+    }
+
+    /** Absolute index just past the newest line, counting an unfinished one. */
+    public synchronized long getEnd() {
+        return mLengths[(int) mEnd & mMask] > 0 ? mEnd + 1 : mEnd;
+    }
+
+    public void append(CharSequence text) {
+        synchronized (this) {
+            final int len = text.length();
+            for (int i = 0; i < len; i++) {
+                put(text.charAt(i));
+            }
+        }
+        notifyListener();
+    }
+
+    public void append(char[] text, int off, int len) {
+        synchronized (this) {
+            final int end = off + len;
+            for (int i = off; i < end; i++) {
+                put(text[i]);
+            }
+        }
+        notifyListener();
+    }
+
+    /** Forgets every line. */
+    public void clear() {
+        synchronized (this) {
+            mLengths[(int) mEnd & mMask] = 0;
+            mEnd++;
+            mStart = mEnd;
+            mLengths[(int) mEnd & mMask] = 0;
+        }
+        notifyListener();
+    }
+
+    /**
+     * Copies line {@code index} into {@code dest}, which should be at least
+     * the line length.
+     *
+     * @return the number of characters copied, or -1 if the line is gone
+     */
+    public synchronized int getLine(long index, char[] dest) {
+        if (index < mStart || index > mEnd) {
+            return -1;
+        }
+        final int slot = (int) index & mMask;
+        final int len = Math.min(mLengths[slot], dest.length);
+        System.arraycopy(mLines[slot], 0, dest, 0, len);
+        return len;
+    }
+
+    private void put(char c) {
+        if (c == '\r') {
+            return;
+        }
+        if (c == '\n') {
+            newLine();
+            return;
+        }
+        int slot = (int) mEnd & mMask;
+        if (mLengths[slot] == mLines[slot].length) {
+            newLine();
+            slot = (int) mEnd & mMask;
+        }
+        mLines[slot][mLengths[slot]++] = c;
+    }
+
+    private void newLine() {
+        mEnd++;
+        if (mEnd - mStart >= mLines.length) {
+            mStart = mEnd - mLines.length + 1;
+        }
+        mLengths[(int) mEnd & mMask] = 0;
+    }
+
+    private void notifyListener() {
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onAppended(this);
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package com.deltathinkers.console;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import printer.DeviceRegistry;
+import printer.GCodeAnalyzer;
+import printer.GCodeIndex;
+import printer.GCodeCompactor;
+import printer.GCodeStreamer;
+import printer.HexDump;
+import printer.LinkMetrics;
+import printer.PrintJournal;
+import printer.PrinterLink;
+import printer.SerialEventLoop;
+import printer.SerialIOManager;
+import printer.SessionCapture;
+import printer.TextDecoder;
+import printer.Tracer;
+
+/**
+ * Owns the printer connection, the console text and any print in progress,
+ * so they live on while the console screen is rotated, covered or closed.
+ *
+ * The console binds to it to show and drive things. It runs in the
+ * foreground while bound or printing, and stops once neither is the case.
+ */
+public class PrinterService extends Service {
+
+    private static final String TAG = PrinterService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 1;
+
+    // Grace period after the last client goes, so that a screen rotation,
+    // which unbinds and binds again, does not drop the connection.
+    private static final long IDLE_STOP_MILLIS = 5000;
+
+    // Issues listed on the console; the rest are only counted.
+    private static final int SHOWN_ISSUES = 5;
+
+    // In the app's private files, where it survives a crash or reboot.
+    private static final String JOURNAL_NAME = "print.journal";
+
+    // Whether resuming homes Z too. Printers that home Z onto the bed must
+    // not; deltas, which home up and away from the print, may.
+    private static final boolean RESUME_HOME_ALL = false;
+
+    /** Told about the one-line status on the main thread. */
+    public interface StatusListener {
+        public void onStatusChanged(String status);
+    }
+
+    public class LocalBinder extends Binder {
+        public PrinterService getService() {
+            return PrinterService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private DeviceRegistry mRegistry;
+    // Services every printer's link from a couple of threads, however many
+    // are plugged in.
+    private SerialEventLoop mEventLoop;
+    private NotificationManager mNotificationManager;
+
+    // Bounded, so a long print cannot grow the console without limit.
+    private final ConsoleBuffer mConsole = new ConsoleBuffer();
+
+    // Received data shows as text unless hex dump is picked from the menu.
+    private volatile boolean mHexMode;
+
+    // Only touched by the serial reader thread, through updateReceivedData().
+    private final TextDecoder mTextDecoder = new TextDecoder();
+    private final StringBuilder mHexHeader = new StringBuilder();
+    private char[] mHexChars = new char[0];
+
+    // Main thread only, from here on.
+    private PrinterLink mLink;
+    private SerialIOManager mSerialIoManager;
+    private File mPendingStream;
+    private File mAnalyzing;
+    private GCodeAnalyzer mAnalyzer;
+    private GCodeIndex mIndex;
+    private long mStartLine;
+    private List<String> mPreamble;
+    private PrintJournal mJournal;
+    private PrintJournal.Checkpoint mCheckpoint;
+    private volatile GCodeStreamer mStreamer;
+    private SessionCapture mCapture;
+    private LinkMetrics.Snapshot mLastMetrics;
+    private StatusListener mStatusListener;
+    private String mStatus = "Printer device not found.";
+    private int mProgressPercent = -1;
+    private boolean mBound;
+
+    private final SerialIOManager.Listener mListener =
+        new SerialIOManager.Listener() {
+
+            @Override
+            public void onRunError(Exception e) {
+                Log.d(TAG, "Runner stopped.");
+            }
+
+            @Override
+            public void onNewData(byte[] data, int off, int len) {
+                // The console coalesces redraws itself; no need to hop threads.
+                updateReceivedData(data, off, len);
+            }
+        };
+
+    private final GCodeStreamer.Callback mStreamerCallback =
+        new GCodeStreamer.Callback() {
+
+            @Override
+            public void onProgress(GCodeStreamer streamer, long linesAcked, final long bytesRead,
+                                   final long totalBytes) {
+                final int percent = totalBytes == 0 ? 100 : (int) (bytesRead * 100 / totalBytes);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The notification is costly to redo; once a percent will do.
+                        if (percent != mProgressPercent) {
+                            mProgressPercent = percent;
+                            setStatus("Streaming: " + percent + "%");
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onStateChanged(GCodeStreamer streamer, final GCodeStreamer.State state) {
+                final GCodeCompactor compactor = streamer.getCompactor();
+                final long saved = compactor != null ? compactor.getBytesSaved() : 0;
+                printConsole("Stream " + state.name().toLowerCase() + ".\n");
+                if (state == GCodeStreamer.State.FINISHED && saved > 0) {
+                    printConsole("Compaction saved " + saved + " bytes.\n");
+                }
+                if (state == GCodeStreamer.State.FINISHED
+                        || state == GCodeStreamer.State.CANCELLED
+                        || state == GCodeStreamer.State.FAILED) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            setStatus("Stream " + state.name().toLowerCase() + ".");
+                            stopIfIdle();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onError(GCodeStreamer streamer, final Exception e) {
+                printConsole("ERROR: Streaming failed: " + e.getMessage() + "\n");
+            }
+        };
+
+    private final DeviceRegistry.Listener mRegistryListener =
+        new DeviceRegistry.Listener() {
+
+            @Override
+            public void onLinkConnected(PrinterLink link, boolean reconnected) {
+                if (reconnected && link == mLink) {
+                    printConsole("Printer back after "
+                            + link.getLastReconnectNanos() / 1000000 + " ms.\n");
+                    return;
+                }
+                if (mLink != null) {
+                    // One printer per console; others keep running unattended.
+                    return;
+                }
+                setStatus("Serial device: " + link);
+                useLink(link);
+            }
+
+            @Override
+            public void onLinkDisconnected(PrinterLink link) {
+                if (link == mLink) {
+                    printConsole("Printer disconnected; waiting for it to come back.\n");
+                }
+            }
+
+            @Override
+            public void onPermissionDenied(UsbDevice device) {
+                Log.d(TAG, "permission denied for device " + device);
+                printConsole("Failed to get permission for " + device.getDeviceName() + ".\n");
+            }
+        };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(TAG, "Starting ..");
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        startForeground(NOTIFICATION_ID, buildNotification());
+        mEventLoop = new SerialEventLoop();
+        mEventLoop.start();
+        mRegistry = DeviceRegistry.get(this);
+        mRegistry.setEventLoop(mEventLoop);
+        mRegistry.addListener(mRegistryListener);
+        mRegistry.start();
+        mJournal = new PrintJournal(new File(getFilesDir(), JOURNAL_NAME));
+        loadCheckpoint();
+    }
+
+    /** Offers to resume a print the last run of the app did not see through. */
+    private void loadCheckpoint() {
+        final PrintJournal.Checkpoint checkpoint;
+        try {
+            checkpoint = PrintJournal.read(mJournal.getFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read checkpoint: " + e.getMessage(), e);
+            return;
+        }
+        if (checkpoint == null) {
+            return;
+        }
+        if (!checkpoint.isCurrent()) {
+            printConsole("Interrupted print of " + checkpoint.getSource().getName()
+                    + " cannot be resumed; the file has changed or gone.\n");
+            return;
+        }
+        if (!checkpoint.isPositionKnown(PrintJournal.Z)) {
+            printConsole("Interrupted print of " + checkpoint.getSource().getName()
+                    + " cannot be resumed; its height is not known.\n");
+            return;
+        }
+        mCheckpoint = checkpoint;
+        printConsole("Interrupted print: " + checkpoint + ".\n"
+                + "Pick 'Resume from checkpoint' to continue it.\n");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started as well as bound, so a print outlives the console.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        mBound = true;
+        mHandler.removeCallbacks(mStopIfIdle);
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+        mHandler.removeCallbacks(mStopIfIdle);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mBound = false;
+        mStatusListener = null;
+        mHandler.postDelayed(mStopIfIdle, IDLE_STOP_MILLIS);
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "Stopping ..");
+        mHandler.removeCallbacks(mStopIfIdle);
+        if (mAnalyzer != null) {
+            mAnalyzer.cancel();
+            mAnalyzer = null;
+            mAnalyzing = null;
+        }
+        stopStreamer();
+        stopCapture();
+        if (mSerialIoManager != null) {
+            mSerialIoManager.setListener(null);
+            mSerialIoManager = null;
+        }
+        mLink = null;
+        mRegistry.removeListener(mRegistryListener);
+        mRegistry.stop();
+        // Its threads may be finishing a write; let them, off the main thread.
+        final SerialEventLoop loop = mEventLoop;
+        mEventLoop = null;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop.shutdown();
+            }
+        }, "SerialEventLoop-shutdown").start();
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    private final Runnable mStopIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            stopIfIdle();
+        }
+    };
+
+    private void stopIfIdle() {
+        if (!mBound && !isStreaming()) {
+            stopSelf();
+        }
+    }
+
+    private boolean isStreaming() {
+        final GCodeStreamer streamer = mStreamer;
+        if (streamer == null) {
+            return mPendingStream != null || mAnalyzing != null;
+        }
+        final GCodeStreamer.State state = streamer.getState();
+        return state != GCodeStreamer.State.FINISHED
+                && state != GCodeStreamer.State.CANCELLED
+                && state != GCodeStreamer.State.FAILED;
+    }
+
+    public ConsoleBuffer getConsole() {
+        return mConsole;
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    /** Replaces the listener; the current status is delivered right away. */
+    public void setStatusListener(StatusListener listener) {
+        mStatusListener = listener;
+        if (listener != null) {
+            listener.onStatusChanged(mStatus);
+        }
+    }
+
+    public GCodeStreamer getStreamer() {
+        return mStreamer;
+    }
+
+    public boolean isHexMode() {
+        return mHexMode;
+    }
+
+    public void setHexMode(boolean hexMode) {
+        mHexMode = hexMode;
+    }
+
+    public boolean isCapturing() {
+        return mCapture != null;
+    }
+
+    /**
+     * Analyzes {@code file}, then streams it, as soon as a printer is
+     * connected, unless it has lines the streamer would stop at.
+     */
+    public void startStream(File file) {
+        startStream(file, 0, -1, null);
+    }
+
+    /** Same, from zero-based {@code line}. */
+    public void startStreamAt(File file, long line) {
+        startStream(file, line, -1, null);
+    }
+
+    /** Same, from the marker of zero-based {@code layer}. */
+    public void startStreamAtLayer(File file, int layer) {
+        startStream(file, 0, layer, null);
+    }
+
+    public boolean hasCheckpoint() {
+        return mCheckpoint != null;
+    }
+
+    /**
+     * Picks up the interrupted print found at startup: restores the
+     * printer's temperatures, position and modes, then streams on from the
+     * line after the last one acknowledged.
+     */
+    public void resumeFromCheckpoint() {
+        final PrintJournal.Checkpoint checkpoint = mCheckpoint;
+        if (checkpoint == null) {
+            printConsole("No interrupted print to resume.\n");
+            return;
+        }
+        if (isStreaming()) {
+            printConsole("Already streaming.\n");
+            return;
+        }
+        printConsole("Resuming " + checkpoint + ".\n");
+        startStream(checkpoint.getSource(), checkpoint.getLine() + 1, -1,
+                checkpoint.getResumeGCode(RESUME_HOME_ALL));
+    }
+
+    private void startStream(final File file, final long line, final int layer,
+                             final List<String> preamble) {
+        if (isStreaming()) {
+            printConsole("Already streaming.\n");
+            return;
+        }
+        // Whatever happens next, the journal goes to this print.
+        mCheckpoint = null;
+        printConsole("Analyzing " + file.getName() + " ..\n");
+        setStatus("Analyzing ..");
+        final GCodeAnalyzer analyzer = new GCodeAnalyzer();
+        mAnalyzer = analyzer;
+        mAnalyzing = file;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GCodeAnalyzer.Result result = null;
+                try {
+                    result = analyzer.analyze(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Analysis failed: " + e.getMessage(), e);
+                    printConsole("WARNING: Failed to analyze file: " + e.getMessage() + "\n");
+                } catch (InterruptedException e) {
+                    return;
+                }
+                GCodeIndex index = null;
+                try {
+                    // Built once, then kept next to the file or in the cache.
+                    index = GCodeIndex.open(file, getCacheDir());
+                } catch (IOException e) {
+                    Log.w(TAG, "Indexing failed: " + e.getMessage(), e);
+                }
+                final GCodeAnalyzer.Result analyzed = result;
+                final GCodeIndex indexed = index;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onAnalyzed(file, analyzed, indexed, line, layer, preamble);
+                    }
+                });
+            }
+        }, "GCodeAnalyzer").start();
+    }
+
+    private void onAnalyzed(File file, GCodeAnalyzer.Result result, GCodeIndex index,
+                            long line, int layer, List<String> preamble) {
+        if (file != mAnalyzing) {
+            // Destroyed meanwhile.
+            return;
+        }
+        mAnalyzing = null;
+        mAnalyzer = null;
+        if (result != null) {
+            printConsole("Estimated " + result + ".\n");
+            if (result.getHeatingWaits() > 0) {
+                printConsole("Not counting " + result.getHeatingWaits() + " heating waits.\n");
+            }
+            if (result.getUnsupportedLines() > 0) {
+                printConsole("WARNING: " + result.getUnsupportedLines()
+                        + " lines the printer does not support: "
+                        + result.getUnsupportedCommands() + "\n");
+            }
+            final List<GCodeAnalyzer.Issue> issues = result.getIssues();
+            for (int i = 0; i < Math.min(SHOWN_ISSUES, issues.size()); i++) {
+                printConsole("  " + issues.get(i) + "\n");
+            }
+            if (result.getLongLines() > 0) {
+                printConsole("ERROR: " + result.getLongLines() + " commands longer than "
+                        + GCodeStreamer.MAX_LINE_LENGTH
+                        + " bytes without comments; not streaming.\n");
+                setStatus("File not streamable.");
+                stopIfIdle();
+                return;
+            }
+        }
+        if (layer >= 0) {
+            if (index == null || layer >= index.getLayerCount()) {
+                printConsole("ERROR: No layer " + layer + " in " + file.getName() + ".\n");
+                setStatus("No such layer.");
+                stopIfIdle();
+                return;
+            }
+            line = index.getLayerLine(layer);
+        }
+        if (line > 0) {
+            printConsole("Starting at line " + (line + 1)
+                    + (index != null ? ", layer " + index.findLayer(line) : "") + ".\n");
+        }
+        mIndex = index;
+        mStartLine = line;
+        mPreamble = preamble;
+        mPendingStream = file;
+        if (mSerialIoManager != null) {
+            startStreamer();
+        } else {
+            setStatus("Waiting for printer ..");
+        }
+    }
+
+    /**
+     * Sends a console command. While a file is streaming it goes out between
+     * file lines, so that the streamer can tell its "ok" from theirs.
+     */
+    public void sendMessage(String message) throws IOException {
+        final GCodeStreamer streamer = mStreamer;
+        if (streamer != null) {
+            try {
+                if (streamer.sendCommand(message)) {
+                    printConsole("(queued): " + message + "\n");
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                printConsole("ERROR: " + e.getMessage() + "\n");
+                return;
+            }
+        }
+        message += "\n";
+        if (mSerialIoManager == null) {
+            printConsole("Failed to send message. No Serial Io Manager instantiated.\n");
+        } else {
+            printConsole("(sent): "+message+(message.endsWith("\n")?"":"\n"));
+            mSerialIoManager.writeAsync(message.getBytes(Charset.forName("UTF-8")));
+        }
+    }
+
+    /** Takes over a link the registry just connected. */
+    private void useLink(PrinterLink link) {
+        Log.i(TAG, "Using " + link);
+        mLink = link;
+        mSerialIoManager = link.getIoManager();
+        mSerialIoManager.setListener(mListener);
+        mSerialIoManager.setCapture(mCapture);
+        if (mPendingStream != null) {
+            startStreamer();
+        }
+    }
+
+    private void startStreamer() {
+        Log.i(TAG, "Starting streamer ..");
+        mStreamer = new GCodeStreamer(mPendingStream, mSerialIoManager, mStreamerCallback);
+        mStreamer.setIndex(mIndex);
+        mStreamer.setStartLine(mStartLine);
+        mStreamer.setPreamble(mPreamble);
+        mStreamer.setJournal(mJournal);
+        mPreamble = null;
+        mPendingStream = null;
+        mProgressPercent = -1;
+        mStreamer.setRxBufferSize(GCodeStreamer.DEFAULT_RX_BUFFER_SIZE);
+        mStreamer.setCompactor(new GCodeCompactor());
+        mStreamer.setProtocol(GCodeStreamer.Protocol.AUTO);
+        mStreamer.setChecksums(true);
+        mSerialIoManager.setResponseListener(mStreamer);
+        new Thread(mStreamer, "GCodeStreamer").start();
+    }
+
+    private void stopStreamer() {
+        final GCodeStreamer streamer = mStreamer;
+        if (streamer != null) {
+            Log.i(TAG, "Stopping streamer ..");
+            if (mSerialIoManager != null) {
+                mSerialIoManager.setResponseListener(null);
+            }
+            streamer.cancel();
+            mStreamer = null;
+        }
+    }
+
+    private void updateReceivedData(byte[] data, int off, int count) {
+        if (!mHexMode) {
+            final int len = mTextDecoder.decode(data, off, count);
+            mConsole.append(mTextDecoder.chars(), 0, len);
+            return;
+        }
+
+        mHexHeader.setLength(0);
+        mHexHeader.append("Read ").append(count).append(" bytes: \n$ ");
+        final int header = mHexHeader.length();
+        final int needed = header + HexDump.dumpHexLength(count) + 2;
+        if (mHexChars.length < needed) {
+            mHexChars = new char[needed];
+        }
+        mHexHeader.getChars(0, header, mHexChars, 0);
+        int len = header + HexDump.dumpHex(data, off, count, 0, mHexChars, header);
+        mHexChars[len++] = '\n';
+        mHexChars[len++] = '\n';
+        mConsole.append(mHexChars, 0, len);
+    }
+
+    /**
+     * Prints a summary of the link figures and appends the full report to
+     * link-metrics.txt in the app's external files directory.
+     */
+    public void showMetrics() {
+        final SerialIOManager ioManager = mSerialIoManager;
+        if (ioManager == null) {
+            printConsole("No link.\n");
+            return;
+        }
+        final LinkMetrics metrics = ioManager.getMetrics();
+        final LinkMetrics.Snapshot s = metrics.snapshot();
+        printConsole(String.format("rx %.0f B/s, tx %.0f B/s, %d acks, ok latency p50 %d us"
+                        + " p99 %d us max %d us, queue max %d B, %d write errors\n",
+                s.getReadBytesPerSecond(mLastMetrics), s.getWriteBytesPerSecond(mLastMetrics),
+                s.acks, s.ackLatencyP50Nanos / 1000, s.ackLatencyP99Nanos / 1000,
+                s.ackLatencyMaxNanos / 1000, s.maxQueueDepth, s.writeErrors));
+        mLastMetrics = s;
+
+        final File file = new File(getExternalFilesDir(null), "link-metrics.txt");
+        try {
+            metrics.dump(file);
+            printConsole("Metrics written to " + file + "\n");
+        } catch (IOException e) {
+            printConsole("ERROR: Failed to write metrics: " + e.getMessage() + "\n");
+        }
+    }
+
+    /** Appends the events still in the trace ring to trace.txt. */
+    public void dumpTrace() {
+        final File file = new File(getExternalFilesDir(null), "trace.txt");
+        try {
+            final int events = Tracer.dump(file);
+            printConsole("Trace of " + events + " events written to " + file + "\n");
+        } catch (IOException e) {
+            printConsole("ERROR: Failed to write trace: " + e.getMessage() + "\n");
+        }
+    }
+
+    public void startCapture() {
+        final File dir = new File(getExternalFilesDir(null), "captures");
+        final String name = "session-" + System.currentTimeMillis();
+        try {
+            mCapture = new SessionCapture(dir, name);
+        } catch (IOException e) {
+            printConsole("ERROR: Failed to start capture: " + e.getMessage() + "\n");
+            return;
+        }
+        if (mSerialIoManager != null) {
+            mSerialIoManager.setCapture(mCapture);
+        }
+        printConsole("Capturing to " + new File(dir, name) + "-*.cap\n");
+    }
+
+    public void stopCapture() {
+        final SessionCapture capture = mCapture;
+        if (capture == null) {
+            return;
+        }
+        mCapture = null;
+        if (mSerialIoManager != null) {
+            mSerialIoManager.setCapture(null);
+        }
+        try {
+            capture.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close capture: " + e.getMessage());
+        }
+        printConsole("Captured " + capture.getBytes() + " bytes"
+                + (capture.getDroppedBytes() > 0 ? ", dropped " + capture.getDroppedBytes() : "")
+                + ".\n");
+    }
+
+    /** Safe from any thread; the list catches up on the next frame. */
+    public void printConsole(String text) {
+        mConsole.append(text);
+    }
+
+    private void setStatus(String status) {
+        mStatus = status;
+        mNotificationManager.notify(NOTIFICATION_ID, buildNotification());
+        if (mStatusListener != null) {
+            mStatusListener.onStatusChanged(status);
+        }
+    }
+
+    private Notification buildNotification() {
+        final PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, ConsoleActivity.class), 0);
+        return new Notification.Builder(this)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(mStatus)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentIntent(open)
+                .setOngoing(true)
+                .build();
+    }
+}
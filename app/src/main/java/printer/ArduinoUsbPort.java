@@ -16,6 +16,9 @@ public class ArduinoUsbPort extends CommonUsbSerialPort {
 
     private final String TAG = ArduinoUsbPort.class.getSimpleName();
 
+    private static final int TRACE_WRITE_SHORT = Tracer.define(Tracer.WARN, "usb.write.short",
+            "wrote=%d of length=%d");
+
     private final boolean mEnableAsyncReads;
     private UsbInterface mControlInterface;
     private UsbInterface mDataInterface;
@@ -37,12 +40,41 @@ public class ArduinoUsbPort extends CommonUsbSerialPort {
     private static final int SET_CONTROL_LINE_STATE = 0x22;
     private static final int SEND_BREAK = 0x23;
 
+    /** Number of read requests kept queued on the read endpoint by default. */
+    public static final int DEFAULT_READ_REQUEST_COUNT = 4;
+    private static final int READ_REQUEST_BUFFER_SIZE = 4096;
+
+    private int mReadRequestCount = DEFAULT_READ_REQUEST_COUNT;
+    // Non-null while the request ring is in use. Set under mReadBufferLock,
+    // read without it to pick the read path.
+    private volatile UsbRequest[] mReadRequests;
+    // Completed request whose buffer still holds unread data. Guarded by mReadBufferLock.
+    private UsbRequest mPendingRequest;
+
     public ArduinoUsbPort(UsbDevice device, int portNumber) {
         super(device, portNumber);
         mDevice = device;
         mEnableAsyncReads = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
     }
 
+    /**
+     * Sets how many {@link UsbRequest}s are kept queued on the read endpoint
+     * when async reads are available. Zero falls back to synchronous
+     * {@code bulkTransfer} reads. Takes effect on the next {@link #open}.
+     *
+     * Reads from the requests ignore their timeout, since waiting for one
+     * cannot time out before API 26: they block until data arrives or the
+     * port is closed. Use zero where reads must time out.
+     *
+     * @param count the number of in-flight read requests
+     */
+    public void setReadRequestCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Bad read request count: " + count);
+        }
+        mReadRequestCount = count;
+    }
+
     private int sendAcmControlMessage(int request, int value, byte[] buf) {
         return mConnection.controlTransfer(
                 USB_RT_ACM, request, value, 0, buf, buf != null ? buf.length : 0, 5000);
@@ -80,14 +112,16 @@ public class ArduinoUsbPort extends CommonUsbSerialPort {
             Log.d(TAG, "Read endpoint direction: " + mReadEndpoint.getDirection());
             mWriteEndpoint = mDataInterface.getEndpoint(0);
             Log.d(TAG, "Write endpoint direction: " + mWriteEndpoint.getDirection());
-            if (mEnableAsyncReads) {
-                Log.d(TAG, "Async reads enabled.");
+            if (mEnableAsyncReads && mReadRequestCount > 0) {
+                Log.d(TAG, "Async reads enabled, " + mReadRequestCount + " requests.");
+                startReadRequests();
             } else {
                 Log.d(TAG, "Async reads disabled.");
             }
             opened = true;
         } finally {
             if (!opened) {
+                closeReadRequests();
                 mConnection = null;
             }
         }
@@ -98,44 +132,106 @@ public class ArduinoUsbPort extends CommonUsbSerialPort {
         if (mConnection == null) {
             throw new IOException("Already closed");
         }
+        // Cancelling first makes a reader blocked in requestWait() return
+        // and let go of mReadBufferLock.
+        final UsbRequest[] requests = mReadRequests;
+        if (requests != null) {
+            for (UsbRequest request : requests) {
+                request.cancel();
+            }
+        }
         mConnection.close();
         mConnection = null;
+        closeReadRequests();
     }
 
-    @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
-        if (false && mEnableAsyncReads) {
+    /**
+     * Queues every request of the ring on the read endpoint, each over its
+     * own reusable buffer, so the endpoint always has somewhere to put data.
+     */
+    private void startReadRequests() throws IOException {
+        final UsbRequest[] requests = new UsbRequest[mReadRequestCount];
+        mReadRequests = requests;
+        for (int i = 0; i < requests.length; i++) {
             final UsbRequest request = new UsbRequest();
-            try {
-                request.initialize(mConnection, mReadEndpoint);
-                final ByteBuffer buf = ByteBuffer.wrap(dest);
-                if (!request.queue(buf, dest.length)) {
-                    throw new IOException("Error queueing request.");
+            if (!request.initialize(mConnection, mReadEndpoint)) {
+                throw new IOException("Error initializing read request.");
+            }
+            requests[i] = request;
+            final ByteBuffer buf = ByteBuffer.allocate(READ_REQUEST_BUFFER_SIZE);
+            request.setClientData(buf);
+            if (!request.queue(buf, buf.capacity())) {
+                throw new IOException("Error queueing read request.");
+            }
+        }
+    }
+
+    private void closeReadRequests() {
+        // Not while a reader is draining or requeueing one of them.
+        synchronized (mReadBufferLock) {
+            final UsbRequest[] requests = mReadRequests;
+            mReadRequests = null;
+            mPendingRequest = null;
+            if (requests == null) {
+                return;
+            }
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.close();
                 }
-                final UsbRequest response = mConnection.requestWait();
-                Log.d(TAG, "let me know 4");
-                if (response == null) {
-                    throw new IOException("Null response");
+            }
+        }
+    }
+
+    /**
+     * Serves a read from the request ring. A completed request is drained into
+     * {@code dest} and put straight back in the queue once empty. Note that
+     * {@link UsbDeviceConnection#requestWait()} has no timeout, so this blocks
+     * until data arrives or the port is closed.
+     */
+    private int readFromRequests(UsbDeviceConnection connection, byte[] dest) throws IOException {
+        synchronized (mReadBufferLock) {
+            if (mReadRequests == null) {
+                throw new IOException("Read requests closed");
+            }
+            if (mPendingRequest == null) {
+                final UsbRequest response = connection.requestWait();
+                if (response == null || mReadRequests == null) {
+                    throw new IOException("Read requests closed");
                 }
-                final int nread = buf.position();
-                Log.d(TAG, "nread == "+nread);
-                if (nread > 0) {
-//						Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, dest.length)));
-                    return nread;
-                } else {
-                    Log.d(TAG, "nread == 0");
-                    return 0;
+                ((ByteBuffer) response.getClientData()).flip();
+                mPendingRequest = response;
+            }
+
+            final ByteBuffer buf = (ByteBuffer) mPendingRequest.getClientData();
+            final int nread = Math.min(dest.length, buf.remaining());
+            buf.get(dest, 0, nread);
+            if (!buf.hasRemaining()) {
+                buf.clear();
+                final UsbRequest request = mPendingRequest;
+                mPendingRequest = null;
+                if (!request.queue(buf, buf.capacity())) {
+                    throw new IOException("Error queueing read request.");
                 }
-            } finally {
-                Log.d(TAG, "Closing read request.");
-                request.close();
             }
+            return nread;
+        }
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        final UsbDeviceConnection connection = mConnection;
+        if (connection == null) {
+            throw new IOException("Port not open");
+        }
+        if (mReadRequests != null) {
+            return readFromRequests(connection, dest);
         }
 
         final int numBytesRead;
         synchronized (mReadBufferLock) {
             int readAmt = Math.min(dest.length, mReadBuffer.length);
-            numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
+            numBytesRead = connection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
                     timeoutMillis);
             if (numBytesRead < 0) {
                 // This sucks: we get -1 on timeout, not 0 as preferred.
@@ -155,41 +251,60 @@ public class ArduinoUsbPort extends CommonUsbSerialPort {
 
     @Override
     public int write(byte[] src, int timeoutMillis) throws IOException {
-        // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
-        int offset = 0;
-
-        Log.d(TAG, "writing");
+        return write(src, 0, src.length, timeoutMillis);
+    }
 
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        final UsbDeviceConnection connection = mConnection;
+        if (connection == null) {
+            throw new IOException("Port not open");
+        }
+        final int end = offset + length;
+        int pos = offset;
+
+        while (pos < end) {
+            // bulkTransfer takes an offset since API 18, so the caller's array
+            // goes straight to the USB stack.
+            final int writeLength = Math.min(end - pos, mWriteBuffer.length);
+            final int amtWritten = connection.bulkTransfer(mWriteEndpoint, src, pos, writeLength,
+                    timeoutMillis);
+            if (amtWritten <= 0) {
+                // Routine on a busy event loop, where writes time out short.
+                Tracer.trace(TRACE_WRITE_SHORT, pos - offset, length);
+                break;
+            }
+            pos += amtWritten;
+        }
+        return pos - offset;
+    }
 
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
+    @Override
+    public int write(ByteBuffer src, int timeoutMillis) throws IOException {
+        int written = 0;
+        if (src.hasArray()) {
+            written = write(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    timeoutMillis);
+            src.position(src.position() + written);
+            return written;
+        }
 
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
+        // Direct buffers have no backing array for bulkTransfer, and queueing
+        // a UsbRequest on the write endpoint would be reaped by the reader's
+        // requestWait(), so these go through the internal buffer.
+        synchronized (mWriteBufferLock) {
+            while (src.hasRemaining()) {
+                final int writeLength = Math.min(src.remaining(), mWriteBuffer.length);
+                src.get(mWriteBuffer, 0, writeLength);
+                final int amtWritten = write(mWriteBuffer, 0, writeLength, timeoutMillis);
+                written += amtWritten;
+                if (amtWritten < writeLength) {
+                    src.position(src.position() - (writeLength - amtWritten));
+                    break;
                 }
-
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
             }
-            if (amtWritten <= 0) {
-//					throw new IOException("Error writing " + writeLength
-//							+ " bytes at offset " + offset + " length=" + src.length);
-                Log.e(TAG, "Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
-            }
-
-            Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
         }
-        return offset;
+        return written;
     }
 
     @Override
@@ -0,0 +1,149 @@
+package printer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back a log written by {@link SessionCapture}, one record at a time.
+ *
+ * Segments are mapped read-only in turn, and each record is copied into a
+ * reused array, so reading allocates nothing per record. A record cut short
+ * at the end of a segment, as left by a process that died mid-write, ends
+ * that segment. Not thread-safe.
+ */
+public class CaptureReader implements Closeable {
+
+    private final File[] mSegments;
+    private final long mStartMillis;
+    private final long mStartNanos;
+
+    private int mSegment = -1;
+    private MappedByteBuffer mBuffer;
+
+    private int mDirection;
+    private long mNanos;
+    private byte[] mData = new byte[4096];
+    private int mLength;
+
+    /**
+     * Opens the capture called {@code name} in {@code directory}, reading
+     * segments from 0 up to the first one missing.
+     */
+    public CaptureReader(File directory, String name) throws IOException {
+        final List<File> segments = new ArrayList<File>();
+        for (int i = 0; ; i++) {
+            final File file = new File(directory, SessionCapture.segmentName(name, i));
+            if (!file.isFile()) {
+                break;
+            }
+            segments.add(file);
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No capture " + name + " in " + directory);
+        }
+        mSegments = segments.toArray(new File[segments.size()]);
+        openSegment(0);
+        mStartMillis = mBuffer.getLong(16);
+        mStartNanos = mBuffer.getLong(24);
+    }
+
+    /** Wall clock time the capture started, in milliseconds. */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /** {@link System#nanoTime()} when the capture started; record times are on this clock. */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    public int getSegmentCount() {
+        return mSegments.length;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return {@code false} at the end of the capture
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mBuffer.remaining() >= SessionCapture.RECORD_HEADER_SIZE) {
+                final int header = mBuffer.getInt();
+                final int len = header & ~SessionCapture.TX_FLAG;
+                if (header != 0 && len <= mBuffer.remaining() - 8) {
+                    mDirection = (header & SessionCapture.TX_FLAG) != 0
+                            ? SessionCapture.TX : SessionCapture.RX;
+                    mNanos = mBuffer.getLong();
+                    if (mData.length < len) {
+                        mData = new byte[len];
+                    }
+                    mBuffer.get(mData, 0, len);
+                    mLength = len;
+                    return true;
+                }
+            }
+            if (mSegment + 1 >= mSegments.length) {
+                mBuffer.position(mBuffer.limit());
+                return false;
+            }
+            openSegment(mSegment + 1);
+        }
+    }
+
+    /** Goes back to before the first record. */
+    public void rewind() throws IOException {
+        openSegment(0);
+    }
+
+    /** {@link SessionCapture#RX} or {@link SessionCapture#TX}. */
+    public int getDirection() {
+        return mDirection;
+    }
+
+    /** When the current record was captured, on the {@link System#nanoTime()} clock. */
+    public long getNanos() {
+        return mNanos;
+    }
+
+    /** Data of the current record, from 0 to {@link #getLength()}. Reused. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+
+    private void openSegment(int index) throws IOException {
+        final File file = mSegments[index];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.remaining() < SessionCapture.HEADER_SIZE
+                || buffer.getInt(0) != SessionCapture.MAGIC) {
+            throw new IOException("Not a capture segment: " + file);
+        }
+        if (buffer.getInt(4) != SessionCapture.VERSION) {
+            throw new IOException("Unsupported capture version " + buffer.getInt(4) + ": " + file);
+        }
+        buffer.position(SessionCapture.HEADER_SIZE);
+        mBuffer = buffer;
+        mSegment = index;
+    }
+}
@@ -25,12 +25,13 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A base class shared by several driver implementations.
  * Adapted from https://github.com/mik3y/usb-serial-for-android
  */
-abstract class CommonUsbSerialPort {
+abstract class CommonUsbSerialPort implements SerialTransport {
 
     // From interface
 
@@ -178,6 +179,32 @@ abstract class CommonUsbSerialPort {
      */
     public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Writes as many bytes as possible from a region of the source buffer,
+     * without copying it first.
+     *
+     * @param src the source byte buffer
+     * @param offset the index of the first byte to write
+     * @param length the number of bytes to write
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public abstract int write(final byte[] src, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    /**
+     * Writes as many bytes as possible between the position and the limit of
+     * the source buffer, advancing its position by the amount written. Both
+     * heap and direct buffers are accepted, so callers may pool and reuse them.
+     *
+     * @param src the source buffer
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public abstract int write(final ByteBuffer src, final int timeoutMillis) throws IOException;
+
     /**
      * Sets various serial port parameters.
      *
@@ -0,0 +1,279 @@
+package printer;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the printers plugged in, for the whole process.
+ *
+ * The device list is crawled once, on {@link #start()}; after that attach
+ * and detach broadcasts keep it current. Each printer gets a
+ * {@link PrinterLink}, keyed by vendor, product and serial number, that
+ * survives the cable being pulled: as soon as the device shows up again the
+ * port is reopened with the same settings and the link's
+ * {@link SerialIOManager} restarted with its queue intact. Permission is
+ * asked for once per enumerated device, straight from the attach broadcast,
+ * rather than whenever a screen gets round to it.
+ *
+ * Everything here runs on the main thread, where the broadcasts arrive,
+ * apart from waiting for a returning printer's old I/O threads to let go of
+ * their port, which happens on a thread of its own.
+ */
+public class DeviceRegistry {
+
+    private static final String TAG = DeviceRegistry.class.getSimpleName();
+
+    private static final String ACTION_USB_PERMISSION = "printer.USB_PERMISSION";
+
+    public interface Listener {
+        /** The port is open and the manager running; {@code reconnected} if seen before. */
+        public void onLinkConnected(PrinterLink link, boolean reconnected);
+
+        /** The device went away. The link keeps its queue until it comes back. */
+        public void onLinkDisconnected(PrinterLink link);
+
+        public void onPermissionDenied(UsbDevice device);
+    }
+
+    private static DeviceRegistry sInstance;
+
+    private final Context mContext;
+    private final UsbManager mUsbManager;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Links by key, and the connected ones by device name.
+    private final Map<String, PrinterLink> mLinks = new HashMap<String, PrinterLink>();
+    private final Map<String, PrinterLink> mConnected = new HashMap<String, PrinterLink>();
+    // Device names with a permission request outstanding.
+    private final Set<String> mPermissionRequested = new HashSet<String>();
+
+    private SerialEventLoop mEventLoop;
+    private boolean mStarted;
+
+    public static synchronized DeviceRegistry get(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeviceRegistry(Context context) {
+        mContext = context;
+        mUsbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    }
+
+    /**
+     * Services the links on {@code loop} instead of giving each its own
+     * threads. Set before {@link #start()}.
+     */
+    public void setEventLoop(SerialEventLoop loop) {
+        mEventLoop = loop;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** Every printer seen since {@link #start()}, connected or not. */
+    public List<PrinterLink> getLinks() {
+        return new ArrayList<PrinterLink>(mLinks.values());
+    }
+
+    /** Starts listening for printers and connects to those already plugged in. */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        final IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        mContext.registerReceiver(mReceiver, filter);
+        for (UsbDevice device : Printer.findPrinters(mContext)) {
+            onAttached(device);
+        }
+    }
+
+    /** Disconnects every link and stops listening. */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+        for (PrinterLink link : mConnected.values()) {
+            link.detach();
+        }
+        mConnected.clear();
+        mPermissionRequested.clear();
+    }
+
+    private void onAttached(UsbDevice device) {
+        if (!Printer.isPrinter(device) || mConnected.containsKey(device.getDeviceName())) {
+            return;
+        }
+        if (mUsbManager.hasPermission(device)) {
+            connect(device);
+        } else if (mPermissionRequested.add(device.getDeviceName())) {
+            Log.d(TAG, "Requesting permission for " + device.getDeviceName());
+            final PendingIntent intent = PendingIntent.getBroadcast(mContext, 0,
+                    new Intent(ACTION_USB_PERMISSION), 0);
+            mUsbManager.requestPermission(device, intent);
+        }
+    }
+
+    private void onDetached(UsbDevice device) {
+        mPermissionRequested.remove(device.getDeviceName());
+        final PrinterLink link = mConnected.remove(device.getDeviceName());
+        if (link == null) {
+            return;
+        }
+        Log.i(TAG, "Lost " + link);
+        link.detach();
+        for (Listener listener : mListeners) {
+            listener.onLinkDisconnected(link);
+        }
+    }
+
+    private void connect(final UsbDevice device) {
+        final long start = System.nanoTime();
+        final UsbDeviceConnection connection = mUsbManager.openDevice(device);
+        if (connection == null) {
+            Log.w(TAG, "Failed to open " + device.getDeviceName());
+            return;
+        }
+        final String serial = connection.getSerial();
+        String key = String.format("%04X:%04X:%s",
+                device.getVendorId(), device.getProductId(), serial);
+        PrinterLink link = mLinks.get(key);
+        if (link != null && mConnected.containsValue(link)) {
+            // Another printer with the same ids and no serial number to tell
+            // them apart; all that is left is where it is plugged in.
+            key += "@" + device.getDeviceName();
+            link = mLinks.get(key);
+        }
+        if (link == null) {
+            link = new PrinterLink(key, device.getVendorId(), device.getProductId(), serial);
+            mLinks.put(key, link);
+        }
+
+        final ArduinoUsbPort port = new ArduinoUsbPort(device, 0);
+        if (mEventLoop != null) {
+            // The loop needs reads that time out.
+            port.setReadRequestCount(0);
+        }
+        try {
+            port.open(connection);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open " + key + ": " + e.getMessage(), e);
+            connection.close();
+            return;
+        }
+        mConnected.put(device.getDeviceName(), link);
+
+        final PrinterLink attaching = link;
+        final String name = key;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    attaching.attach(device, port);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to set up " + name + ": " + e.getMessage(), e);
+                    try {
+                        port.close();
+                    } catch (IOException e2) {
+                        // Ignore.
+                    }
+                    connection.close();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mConnected.get(device.getDeviceName()) == attaching) {
+                                mConnected.remove(device.getDeviceName());
+                            }
+                        }
+                    });
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLinkAttached(device, attaching, start);
+                    }
+                });
+            }
+        }, "PrinterLink-" + key).start();
+    }
+
+    private void onLinkAttached(UsbDevice device, PrinterLink link, long start) {
+        if (!mStarted || mConnected.get(device.getDeviceName()) != link) {
+            // Unplugged, or the registry stopped, while the port was set up.
+            link.detach();
+            return;
+        }
+        final SerialIOManager ioManager = link.getIoManager();
+        if (mEventLoop != null) {
+            mEventLoop.register(ioManager);
+        } else {
+            new Thread(ioManager, "SerialIOManager-" + link.getKey()).start();
+        }
+        final boolean reconnected = link.getConnectCount() > 1;
+        Log.i(TAG, (reconnected ? "Reconnected " : "Connected ") + link.getKey() + " in "
+                + (System.nanoTime() - start) / 1000 + " us"
+                + (reconnected ? ", " + link.getLastReconnectNanos() / 1000000
+                        + " ms after it went away" : ""));
+        for (Listener listener : mListeners) {
+            listener.onLinkConnected(link, reconnected);
+        }
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                onAttached(device);
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                onDetached(device);
+            } else if (ACTION_USB_PERMISSION.equals(action)) {
+                mPermissionRequested.remove(device.getDeviceName());
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                    connect(device);
+                } else {
+                    Log.d(TAG, "Permission denied for " + device.getDeviceName());
+                    for (Listener listener : mListeners) {
+                        listener.onPermissionDenied(device);
+                    }
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,1233 @@
+package printer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Works out, before a file is streamed, how long it will print, how much
+ * filament it takes, where it prints, and which of its lines the printer
+ * will not take.
+ *
+ * The file is cut into chunks at line boundaries and the chunks are worked
+ * on in parallel, in two passes. The first only looks for what is modal and
+ * cheap to find: G90/G91, M82/M83, G20/G21, the feedrate and M204
+ * accelerations. Folding those in order gives every chunk the exact state
+ * it starts in. The second pass then simulates each chunk's moves, keeping
+ * positions it has not seen set as offsets from wherever the chunk starts;
+ * the few absolute moves that need the real start are put aside and
+ * finished off once the chunks before have been folded.
+ *
+ * Motion time comes from a trapezoidal profile per move, with Marlin's
+ * junction deviation at the corners and each corner speed held to what
+ * the next move can stop from. The printer comes to a stop at chunk
+ * boundaries and around the put-aside moves, which puts the estimate out
+ * by some tens of milliseconds per chunk. Homing, probing and heating time
+ * is not counted.
+ *
+ * Uses a fixed pool rather than fork/join, which the platform only has from
+ * API 21.
+ */
+public class GCodeAnalyzer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** Issues kept for the report; the rest are only counted. */
+    public static final int MAX_ISSUES = 100;
+
+    private static final int MAX_CODE = 10000;
+    private static final int CANCEL_CHECK_LINES = 4096;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final double MM_PER_INCH = 25.4;
+    // Marlin's feedrate until told otherwise, in mm/s.
+    private static final double DEFAULT_FEEDRATE = 25;
+
+    /** Axes, for {@link Result#getMin} and {@link Result#getMax}. */
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    private static final int E = 3;
+    private static final int AXES = 4;
+    private static final int[] AXIS_LETTERS = { 'X', 'Y', 'Z', 'E' };
+
+    // Marlin 2 with the common options.
+    private static final int[] MARLIN_G = {
+            0, 1, 2, 3, 4, 5, 10, 11, 12, 17, 18, 19, 20, 21, 26, 27, 28, 29, 30, 31, 32, 33,
+            34, 35, 38, 42, 53, 54, 55, 56, 57, 58, 59, 60, 61, 76, 80, 90, 91, 92, 425 };
+    private static final int[] MARLIN_M = {
+            0, 1, 3, 4, 5, 7, 8, 9, 10, 11, 16, 17, 18, 20, 21, 22, 23, 24, 25, 26, 27, 28,
+            29, 30, 31, 32, 33, 34, 42, 43, 48, 73, 75, 76, 77, 78, 80, 81, 82, 83, 84, 85, 86,
+            87, 92, 100, 104, 105, 106, 107, 108, 109, 110, 111, 112, 113, 114, 115, 117, 118,
+            119, 120, 121, 122, 123, 125, 126, 127, 128, 129, 140, 141, 143, 145, 149, 150, 154,
+            155, 163, 164, 165, 166, 190, 191, 192, 193, 200, 201, 203, 204, 205, 206, 207, 208,
+            209, 211, 217, 218, 220, 221, 226, 240, 250, 255, 256, 260, 261, 280, 281, 282, 290,
+            300, 301, 302, 303, 304, 305, 350, 351, 355, 360, 361, 362, 363, 364, 380, 381, 400,
+            401, 402, 403, 404, 405, 406, 407, 410, 412, 413, 420, 421, 422, 423, 425, 428, 430,
+            486, 500, 501, 502, 503, 504, 510, 511, 512, 524, 540, 569, 575, 592, 593, 600, 603,
+            605, 665, 666, 672, 701, 702, 710, 808, 810, 851, 852, 860, 861, 862, 863, 864, 865,
+            866, 867, 868, 869, 871, 876, 900, 906, 907, 908, 909, 910, 911, 912, 913, 914, 915,
+            916, 917, 918, 919, 928, 951, 993, 994, 995, 997, 999, 7219 };
+
+    private static final double[] POWERS_OF_TEN = new double[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Something about one line the printer will not like. */
+    public static class Issue {
+        private final long mLine;
+        private final String mMessage;
+
+        Issue(long line, String message) {
+            mLine = line;
+            mMessage = message;
+        }
+
+        /** One-based, as an editor shows it. */
+        public long getLine() {
+            return mLine;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + mLine + ": " + mMessage;
+        }
+    }
+
+    /** What {@link #analyze} found. Distances are in mm, times in seconds. */
+    public static class Result {
+        long mBytes;
+        long mLines;
+        double mPrintSeconds;
+        double mFilament;
+        final double[] mMin = {
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+        final double[] mMax = {
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        int mHeatingWaits;
+        long mLongLines;
+        long mUnsupportedLines;
+        final List<Issue> mIssues = new ArrayList<Issue>();
+        final Map<String, Integer> mUnsupported = new TreeMap<String, Integer>();
+        int mChunks;
+        int mThreads;
+        long mNanos;
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public long getLines() {
+            return mLines;
+        }
+
+        public double getPrintSeconds() {
+            return mPrintSeconds;
+        }
+
+        /** Net length of filament pushed into the extruder. */
+        public double getFilament() {
+            return mFilament;
+        }
+
+        /** Whether anything is extruded at all; the bounds are NaN if not. */
+        public boolean extrudes() {
+            return mMin[X] <= mMax[X];
+        }
+
+        /** Lower corner of the extruding moves, X, Y and Z. */
+        public double getMin(int axis) {
+            return extrudes() ? mMin[axis] : Double.NaN;
+        }
+
+        public double getMax(int axis) {
+            return extrudes() ? mMax[axis] : Double.NaN;
+        }
+
+        /** M109, M190 and the like, whose time is not counted. */
+        public int getHeatingWaits() {
+            return mHeatingWaits;
+        }
+
+        /**
+         * Lines whose command, comments aside, is over
+         * {@link GCodeStreamer#MAX_LINE_LENGTH}, which stop the streamer when
+         * it gets to them.
+         */
+        public long getLongLines() {
+            return mLongLines;
+        }
+
+        /** Lines whose command the firmware answers with "Unknown command". */
+        public long getUnsupportedLines() {
+            return mUnsupportedLines;
+        }
+
+        /** Unsupported commands, such as "M7", and how often each occurs. */
+        public Map<String, Integer> getUnsupportedCommands() {
+            return Collections.unmodifiableMap(mUnsupported);
+        }
+
+        /** The first {@link #MAX_ISSUES} problems, in file order. */
+        public List<Issue> getIssues() {
+            return Collections.unmodifiableList(mIssues);
+        }
+
+        public int getChunkCount() {
+            return mChunks;
+        }
+
+        public int getThreadCount() {
+            return mThreads;
+        }
+
+        /** How long the analysis took. */
+        public long getAnalysisNanos() {
+            return mNanos;
+        }
+
+        @Override
+        public String toString() {
+            final long seconds = Math.round(mPrintSeconds);
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%dh %02dm %02ds, %.2f m filament",
+                    seconds / 3600, seconds / 60 % 60, seconds % 60, mFilament / 1000));
+            if (extrudes()) {
+                sb.append(String.format(Locale.US,
+                        ", X %.1f..%.1f Y %.1f..%.1f Z %.2f..%.2f mm",
+                        mMin[X], mMax[X], mMin[Y], mMax[Y], mMin[Z], mMax[Z]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private final boolean[] mSupportedG = new boolean[MAX_CODE];
+    private final boolean[] mSupportedM = new boolean[MAX_CODE];
+
+    // Marlin's defaults, in mm/s and mm/s/s.
+    private final double[] mMaxFeedrates = { 300, 300, 5, 25 };
+    private final double[] mMaxAccelerations = { 3000, 3000, 100, 10000 };
+    private double mPrintAcceleration = 3000;
+    private double mRetractAcceleration = 3000;
+    private double mTravelAcceleration = 3000;
+    private double mJunctionDeviation = 0.013;
+
+    private volatile boolean mCancelled;
+
+    public GCodeAnalyzer() {
+        for (int code : MARLIN_G) {
+            mSupportedG[code] = true;
+        }
+        for (int code : MARLIN_M) {
+            mSupportedM[code] = true;
+        }
+    }
+
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Bad thread count: " + threads);
+        }
+        mThreads = threads;
+    }
+
+    /** Bytes per unit of work; smaller spreads better, larger estimates better. */
+    public void setChunkSize(int bytes) {
+        if (bytes < GCodeStreamer.MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Bad chunk size: " + bytes);
+        }
+        mChunkSize = bytes;
+    }
+
+    /**
+     * Marks G or M {@code code} as one the firmware takes, or not. All of
+     * Marlin's are taken to begin with.
+     */
+    public void setSupported(char letter, int code, boolean supported) {
+        if (code < 0 || code >= MAX_CODE) {
+            throw new IllegalArgumentException("Bad code: " + code);
+        }
+        switch (letter) {
+            case 'G':
+                mSupportedG[code] = supported;
+                break;
+            case 'M':
+                mSupportedM[code] = supported;
+                break;
+            default:
+                throw new IllegalArgumentException("Bad command letter: " + letter);
+        }
+    }
+
+    /** Per axis limits, X, Y, Z and E, as set by M203, in mm/s. */
+    public void setMaxFeedrates(double x, double y, double z, double e) {
+        mMaxFeedrates[X] = x;
+        mMaxFeedrates[Y] = y;
+        mMaxFeedrates[Z] = z;
+        mMaxFeedrates[E] = e;
+    }
+
+    /** Per axis limits, as set by M201, in mm/s/s. */
+    public void setMaxAccelerations(double x, double y, double z, double e) {
+        mMaxAccelerations[X] = x;
+        mMaxAccelerations[Y] = y;
+        mMaxAccelerations[Z] = z;
+        mMaxAccelerations[E] = e;
+    }
+
+    /** Starting M204 values, in mm/s/s; the file may change them. */
+    public void setAccelerations(double print, double retract, double travel) {
+        mPrintAcceleration = print;
+        mRetractAcceleration = retract;
+        mTravelAcceleration = travel;
+    }
+
+    /** As set by M205 J, in mm. */
+    public void setJunctionDeviation(double millimeters) {
+        mJunctionDeviation = millimeters;
+    }
+
+    /** Makes a running {@link #analyze} give up with an InterruptedException. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /** Analyzes {@code file}, blocking until done. */
+    public Result analyze(File file) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        mCancelled = false;
+        final long length = file.length();
+        final int count = (int) Math.max(1, (length + mChunkSize - 1) / mChunkSize);
+        final List<Chunk> chunks = new ArrayList<Chunk>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(new Chunk(file, (long) i * mChunkSize,
+                    Math.min(length, (long) (i + 1) * mChunkSize)));
+        }
+
+        final int threads = Math.min(mThreads, count);
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "GCodeAnalyzer-" + threadCount.getAndIncrement());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        try {
+            final List<Callable<Void>> scans = new ArrayList<Callable<Void>>(count);
+            for (final Chunk chunk : chunks) {
+                scans.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        chunk.scan();
+                        return null;
+                    }
+                });
+            }
+            runAll(executor, scans);
+
+            Chunk previous = null;
+            for (Chunk chunk : chunks) {
+                chunk.enter(previous);
+                previous = chunk;
+            }
+
+            final List<Callable<Void>> simulations = new ArrayList<Callable<Void>>(count);
+            for (final Chunk chunk : chunks) {
+                simulations.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        chunk.simulate();
+                        return null;
+                    }
+                });
+            }
+            runAll(executor, simulations);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Result result = new Result();
+        final double[] position = new double[AXES];
+        for (Chunk chunk : chunks) {
+            chunk.finish(position, result);
+        }
+        result.mBytes = length;
+        result.mChunks = count;
+        result.mThreads = threads;
+        result.mNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks)
+            throws IOException, InterruptedException {
+        final List<Future<Void>> futures = executor.invokeAll(tasks);
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /** A move whose length depends on where its chunk starts. */
+    private static final class Deferred {
+        final double[] mStart = new double[AXES];
+        final boolean[] mStartKnown = new boolean[AXES];
+        // NaN where only the end is known.
+        final double[] mDelta = new double[AXES];
+        final double[] mEnd = new double[AXES];
+        boolean mArc;
+        boolean mClockwise;
+        double mI;
+        double mJ;
+        double mR;
+        double mFeedrate;
+        double mPrintAccel;
+        double mRetractAccel;
+        double mTravelAccel;
+    }
+
+    /** One stretch of the file, and what is known about it. */
+    private final class Chunk {
+
+        private final File mFile;
+        private final long mStart;
+        private final long mEnd;
+        private final byte[] mLine = new byte[GCodeStreamer.MAX_LINE_LENGTH + 1];
+
+        // The current line's words, by letter; see parse().
+        private int mCommand;
+        private double mCode;
+        private int mWords;
+        private final double[] mValues = new double[26];
+        private int mNumberEnd;
+
+        // Modal state from scan(): how the chunk leaves it, NaN or -1 if it
+        // does not say. Feedrates are in the chunk's units per minute.
+        private int mLastRelative = -1;
+        private int mLastExtrusionRelative = -1;
+        private int mLastInches = -1;
+        private double mLastFeedrate = Double.NaN;
+        private int mLastFeedrateInches = -1;
+        private double mLastPrintAcceleration = Double.NaN;
+        private double mLastRetractAcceleration = Double.NaN;
+        private double mLastTravelAcceleration = Double.NaN;
+
+        // Modal state, from enter() at the start of the chunk and then as
+        // simulate() goes. Feedrate in mm/s.
+        private boolean mRelative;
+        private boolean mExtrusionRelative;
+        private boolean mInches;
+        private double mFeedrate;
+        private double mPrintAccel;
+        private double mRetractAccel;
+        private double mTravelAccel;
+
+        // Absolute where known, otherwise from where the chunk starts.
+        private final double[] mPosition = new double[AXES];
+        private final boolean[] mKnown = new boolean[AXES];
+
+        // Scratch for the move at hand.
+        private final double[] mFrom = new double[AXES];
+        private final boolean[] mFromKnown = new boolean[AXES];
+        private final double[] mDelta = new double[AXES];
+        private final double[] mUnit = new double[AXES];
+        private double mLength;
+        private boolean mExtruderOnly;
+        private boolean mExtrudes;
+        private double mSpeed;
+        private double mAccel;
+
+        // The move before, waiting to learn how fast it may leave.
+        private boolean mPending;
+        private final double[] mPendingUnit = new double[AXES];
+        private double mPendingLength;
+        private double mPendingSpeed;
+        private double mPendingAccel;
+        private double mPendingEntry;
+
+        private double mSeconds;
+        private double mFilament;
+        private final double[] mMin = new double[3];
+        private final double[] mMax = new double[3];
+        private final double[] mOffsetMin = new double[3];
+        private final double[] mOffsetMax = new double[3];
+        private final List<Deferred> mDeferred = new ArrayList<Deferred>();
+
+        private long mLines;
+        private int mHeatingWaits;
+        private long mLongLines;
+        private long mUnsupportedLines;
+        private int[] mUnsupportedG;
+        private int[] mUnsupportedM;
+        private final List<Issue> mIssues = new ArrayList<Issue>();
+
+        Chunk(File file, long start, long end) {
+            mFile = file;
+            mStart = start;
+            mEnd = end;
+            for (int a = 0; a < 3; a++) {
+                mMin[a] = mOffsetMin[a] = Double.POSITIVE_INFINITY;
+                mMax[a] = mOffsetMax[a] = Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        /** Positions {@code reader} on the first line starting in the chunk. */
+        private GCodeReader open() throws IOException {
+            final GCodeReader reader = new GCodeReader(mFile, READ_BUFFER_SIZE);
+            if (mStart > 0) {
+                // Finish the line straddling the boundary; it is the previous
+                // chunk's.
+                reader.seek(mStart - 1, 0);
+                reader.readLine(mLine);
+            }
+            return reader;
+        }
+
+        /** First pass: just the modal state the chunk leaves behind. */
+        void scan() throws IOException, InterruptedException {
+            final GCodeReader reader = open();
+            try {
+                long lines = 0;
+                int len;
+                while (reader.getPosition() < mEnd && (len = reader.readLine(mLine)) >= 0) {
+                    if (++lines % CANCEL_CHECK_LINES == 0) {
+                        checkCancelled();
+                    }
+                    if (GCodeStreamer.commandLength(mLine, len) > GCodeStreamer.MAX_LINE_LENGTH
+                            || !parse(Math.min(len, mLine.length), true)) {
+                        continue;
+                    }
+                    final int code = (int) mCode;
+                    if (mCommand == 'G') {
+                        switch (code) {
+                            case 0: case 1: case 2: case 3:
+                                if (has('F')) {
+                                    mLastFeedrate = value('F');
+                                    mLastFeedrateInches = mLastInches;
+                                }
+                                break;
+                            case 20:
+                                mLastInches = 1;
+                                break;
+                            case 21:
+                                mLastInches = 0;
+                                break;
+                            case 90:
+                                mLastRelative = 0;
+                                break;
+                            case 91:
+                                mLastRelative = 1;
+                                break;
+                            default:
+                                break;
+                        }
+                    } else if (mCommand == 'M') {
+                        switch (code) {
+                            case 82:
+                                mLastExtrusionRelative = 0;
+                                break;
+                            case 83:
+                                mLastExtrusionRelative = 1;
+                                break;
+                            case 204:
+                                if (has('S')) {
+                                    mLastPrintAcceleration = mLastTravelAcceleration = value('S');
+                                }
+                                if (has('P')) {
+                                    mLastPrintAcceleration = value('P');
+                                }
+                                if (has('R')) {
+                                    mLastRetractAcceleration = value('R');
+                                }
+                                if (has('T')) {
+                                    mLastTravelAcceleration = value('T');
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        /** Takes the modal state {@code previous} leaves, or the printer's. */
+        void enter(Chunk previous) {
+            if (previous == null) {
+                mFeedrate = DEFAULT_FEEDRATE;
+                mPrintAccel = mPrintAcceleration;
+                mRetractAccel = mRetractAcceleration;
+                mTravelAccel = mTravelAcceleration;
+                return;
+            }
+            // Nothing has been simulated yet, so previous still holds the
+            // state it starts in.
+            mRelative = previous.mLastRelative >= 0
+                    ? previous.mLastRelative == 1 : previous.mRelative;
+            mExtrusionRelative = previous.mLastExtrusionRelative >= 0
+                    ? previous.mLastExtrusionRelative == 1 : previous.mExtrusionRelative;
+            mInches = previous.mLastInches >= 0 ? previous.mLastInches == 1 : previous.mInches;
+            if (Double.isNaN(previous.mLastFeedrate)) {
+                mFeedrate = previous.mFeedrate;
+            } else {
+                final boolean inches = previous.mLastFeedrateInches >= 0
+                        ? previous.mLastFeedrateInches == 1 : previous.mInches;
+                mFeedrate = previous.mLastFeedrate * (inches ? MM_PER_INCH : 1) / 60;
+            }
+            mPrintAccel = orElse(previous.mLastPrintAcceleration, previous.mPrintAccel);
+            mRetractAccel = orElse(previous.mLastRetractAcceleration, previous.mRetractAccel);
+            mTravelAccel = orElse(previous.mLastTravelAcceleration, previous.mTravelAccel);
+        }
+
+        /** Second pass: everything else, as far as it goes without the chunks before. */
+        void simulate() throws IOException, InterruptedException {
+            final GCodeReader reader = open();
+            try {
+                int len;
+                while (reader.getPosition() < mEnd && (len = reader.readLine(mLine)) >= 0) {
+                    if (++mLines % CANCEL_CHECK_LINES == 0) {
+                        checkCancelled();
+                    }
+                    if (GCodeStreamer.commandLength(mLine, len) > GCodeStreamer.MAX_LINE_LENGTH) {
+                        mLongLines++;
+                        issue("Command longer than " + GCodeStreamer.MAX_LINE_LENGTH
+                                + " bytes; streaming stops here");
+                        continue;
+                    }
+                    if (!parse(Math.min(len, mLine.length), false)) {
+                        continue;
+                    }
+                    execute();
+                }
+                stop();
+            } finally {
+                reader.close();
+            }
+        }
+
+        private void execute() {
+            final int code = (int) mCode;
+            switch (mCommand) {
+                case 'G':
+                    if (code < 0 || code >= MAX_CODE || !mSupportedG[code]) {
+                        unsupported();
+                        return;
+                    }
+                    executeG(code);
+                    break;
+                case 'M':
+                    if (code < 0 || code >= MAX_CODE || !mSupportedM[code]) {
+                        unsupported();
+                        return;
+                    }
+                    executeM(code);
+                    break;
+                case 'T':
+                    break;
+                default:
+                    unsupported();
+                    break;
+            }
+        }
+
+        private void executeG(int code) {
+            switch (code) {
+                case 0: case 1:
+                    move(false, false);
+                    break;
+                case 2: case 3:
+                    move(true, code == 2);
+                    break;
+                case 4:
+                    stop();
+                    mSeconds += has('S') ? value('S') : value('P') / 1000;
+                    break;
+                case 20:
+                    mInches = true;
+                    break;
+                case 21:
+                    mInches = false;
+                    break;
+                case 28:
+                    stop();
+                    final boolean all = !has('X') && !has('Y') && !has('Z');
+                    for (int a = X; a <= Z; a++) {
+                        if (all || has(AXIS_LETTERS[a])) {
+                            mPosition[a] = 0;
+                            mKnown[a] = true;
+                        }
+                    }
+                    break;
+                case 90:
+                    mRelative = false;
+                    break;
+                case 91:
+                    mRelative = true;
+                    break;
+                case 92:
+                    final boolean none = !has('X') && !has('Y') && !has('Z') && !has('E');
+                    for (int a = 0; a < AXES; a++) {
+                        if (none || has(AXIS_LETTERS[a])) {
+                            mPosition[a] = none ? 0 : value(AXIS_LETTERS[a]) * scale();
+                            mKnown[a] = true;
+                        }
+                    }
+                    break;
+                default:
+                    // Probing, leveling and the like: the printer stops.
+                    stop();
+                    break;
+            }
+        }
+
+        private void executeM(int code) {
+            switch (code) {
+                case 82:
+                    mExtrusionRelative = false;
+                    break;
+                case 83:
+                    mExtrusionRelative = true;
+                    break;
+                case 109: case 190: case 191:
+                    stop();
+                    mHeatingWaits++;
+                    break;
+                case 204:
+                    if (has('S')) {
+                        mPrintAccel = mTravelAccel = value('S');
+                    }
+                    if (has('P')) {
+                        mPrintAccel = value('P');
+                    }
+                    if (has('R')) {
+                        mRetractAccel = value('R');
+                    }
+                    if (has('T')) {
+                        mTravelAccel = value('T');
+                    }
+                    break;
+                case 0: case 1: case 400:
+                    stop();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void move(boolean arc, boolean clockwise) {
+            final double scale = scale();
+            if (has('F')) {
+                mFeedrate = value('F') * scale / 60;
+            }
+            System.arraycopy(mPosition, 0, mFrom, 0, AXES);
+            System.arraycopy(mKnown, 0, mFromKnown, 0, AXES);
+            boolean deferred = false;
+            for (int a = 0; a < AXES; a++) {
+                if (!has(AXIS_LETTERS[a])) {
+                    mDelta[a] = 0;
+                    continue;
+                }
+                final double v = value(AXIS_LETTERS[a]) * scale;
+                if (mRelative || (a == E && mExtrusionRelative)) {
+                    mDelta[a] = v;
+                    mPosition[a] += v;
+                } else {
+                    if (mKnown[a]) {
+                        mDelta[a] = v - mPosition[a];
+                    } else {
+                        mDelta[a] = Double.NaN;
+                        deferred = true;
+                    }
+                    mPosition[a] = v;
+                    mKnown[a] = true;
+                }
+            }
+            final double i = value('I') * scale;
+            final double j = value('J') * scale;
+            final double r = has('R') ? value('R') * scale : Double.NaN;
+
+            if (deferred) {
+                stop();
+                final Deferred move = new Deferred();
+                System.arraycopy(mFrom, 0, move.mStart, 0, AXES);
+                System.arraycopy(mFromKnown, 0, move.mStartKnown, 0, AXES);
+                System.arraycopy(mDelta, 0, move.mDelta, 0, AXES);
+                System.arraycopy(mPosition, 0, move.mEnd, 0, AXES);
+                move.mArc = arc;
+                move.mClockwise = clockwise;
+                move.mI = i;
+                move.mJ = j;
+                move.mR = r;
+                move.mFeedrate = mFeedrate;
+                move.mPrintAccel = mPrintAccel;
+                move.mRetractAccel = mRetractAccel;
+                move.mTravelAccel = mTravelAccel;
+                mDeferred.add(move);
+                return;
+            }
+
+            if (!measure(mDelta, arc, clockwise, i, j, r)) {
+                return;
+            }
+            limit(mFeedrate, mPrintAccel, mRetractAccel, mTravelAccel);
+            mFilament += mDelta[E];
+            if (mDelta[E] > 0 && mLength > 0) {
+                include(mFrom, mFromKnown);
+                include(mPosition, mKnown);
+            }
+            plan();
+        }
+
+        /**
+         * Works out {@link #mLength} and {@link #mUnit} for a move by
+         * {@code delta}.
+         *
+         * @return false if the move goes nowhere
+         */
+        private boolean measure(double[] delta, boolean arc, boolean clockwise,
+                                double i, double j, double r) {
+            final double dx = delta[X];
+            final double dy = delta[Y];
+            final double dz = delta[Z];
+            double length;
+            if (arc) {
+                length = arcLength(dx, dy, clockwise, i, j, r);
+                length = Math.sqrt(length * length + dz * dz);
+            } else {
+                length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            }
+            mExtruderOnly = length < 1e-6;
+            if (mExtruderOnly) {
+                length = Math.abs(delta[E]);
+                if (length < 1e-6) {
+                    return false;
+                }
+            }
+            mLength = length;
+            for (int a = 0; a < AXES; a++) {
+                mUnit[a] = delta[a] / length;
+            }
+            mExtrudes = delta[E] != 0;
+            return true;
+        }
+
+        /**
+         * Works out {@link #mSpeed} and {@link #mAccel} for the measured
+         * move, as M204 and the per axis limits allow.
+         */
+        private void limit(double feedrate, double print, double retract, double travel) {
+            double speed = feedrate;
+            double accel = mExtruderOnly ? retract : mExtrudes ? print : travel;
+            for (int a = 0; a < AXES; a++) {
+                final double unit = Math.abs(mUnit[a]);
+                if (unit > 1e-9) {
+                    speed = Math.min(speed, mMaxFeedrates[a] / unit);
+                    accel = Math.min(accel, mMaxAccelerations[a] / unit);
+                }
+            }
+            mSpeed = speed;
+            mAccel = accel;
+        }
+
+        /**
+         * Queues the measured move behind the pending one, which now knows
+         * how fast it may hand over.
+         */
+        private void plan() {
+            double entry = 0;
+            if (mPending) {
+                double cosTheta = 0;
+                for (int a = 0; a < AXES; a++) {
+                    cosTheta -= mPendingUnit[a] * mUnit[a];
+                }
+                double junction = 0;
+                if (cosTheta < 0.999999) {
+                    final double sinHalf = Math.sqrt(0.5 * (1 - Math.max(cosTheta, -0.999999)));
+                    junction = Math.sqrt(Math.min(mPendingAccel, mAccel) * mJunctionDeviation
+                            * sinHalf / (1 - sinHalf));
+                }
+                entry = Math.min(Math.min(junction, mPendingSpeed), mSpeed);
+                // Within reach of the pending move, and stoppable in this one.
+                entry = Math.min(entry, Math.sqrt(mPendingEntry * mPendingEntry
+                        + 2 * mPendingAccel * mPendingLength));
+                entry = Math.min(entry, Math.sqrt(2 * mAccel * mLength));
+                mSeconds += profile(mPendingLength, mPendingEntry, entry, mPendingSpeed,
+                        mPendingAccel);
+            }
+            mPending = true;
+            System.arraycopy(mUnit, 0, mPendingUnit, 0, AXES);
+            mPendingLength = mLength;
+            mPendingSpeed = mSpeed;
+            mPendingAccel = mAccel;
+            mPendingEntry = entry;
+        }
+
+        /** Brings the pending move to a stop. */
+        private void stop() {
+            if (mPending) {
+                mSeconds += profile(mPendingLength, mPendingEntry, 0, mPendingSpeed,
+                        mPendingAccel);
+                mPending = false;
+            }
+        }
+
+        /**
+         * Folds the chunk into {@code result}, given the absolute
+         * {@code position} it starts at, which is updated to where it ends.
+         */
+        void finish(double[] position, Result result) {
+            for (Deferred move : mDeferred) {
+                for (int a = 0; a < AXES; a++) {
+                    if (!move.mStartKnown[a]) {
+                        move.mStart[a] += position[a];
+                        move.mStartKnown[a] = true;
+                    }
+                    if (Double.isNaN(move.mDelta[a])) {
+                        move.mDelta[a] = move.mEnd[a] - move.mStart[a];
+                    }
+                }
+                if (!measure(move.mDelta, move.mArc, move.mClockwise, move.mI, move.mJ,
+                        move.mR)) {
+                    continue;
+                }
+                limit(move.mFeedrate, move.mPrintAccel, move.mRetractAccel, move.mTravelAccel);
+                mSeconds += profile(mLength, 0, 0, mSpeed, mAccel);
+                mFilament += move.mDelta[E];
+                if (move.mDelta[E] > 0) {
+                    for (int a = X; a <= Z; a++) {
+                        final double end = move.mStart[a] + move.mDelta[a];
+                        include(a, Math.min(move.mStart[a], end), Math.max(move.mStart[a], end));
+                    }
+                }
+            }
+            for (int a = X; a <= Z; a++) {
+                if (mOffsetMin[a] <= mOffsetMax[a]) {
+                    include(a, position[a] + mOffsetMin[a], position[a] + mOffsetMax[a]);
+                }
+                result.mMin[a] = Math.min(result.mMin[a], mMin[a]);
+                result.mMax[a] = Math.max(result.mMax[a], mMax[a]);
+            }
+            for (int a = 0; a < AXES; a++) {
+                position[a] = mKnown[a] ? mPosition[a] : position[a] + mPosition[a];
+            }
+
+            for (Issue issue : mIssues) {
+                if (result.mIssues.size() == MAX_ISSUES) {
+                    break;
+                }
+                result.mIssues.add(new Issue(result.mLines + issue.getLine(),
+                        issue.getMessage()));
+            }
+            countUnsupported(result.mUnsupported, 'G', mUnsupportedG);
+            countUnsupported(result.mUnsupported, 'M', mUnsupportedM);
+            result.mLines += mLines;
+            result.mPrintSeconds += mSeconds;
+            result.mFilament += mFilament;
+            result.mHeatingWaits += mHeatingWaits;
+            result.mLongLines += mLongLines;
+            result.mUnsupportedLines += mUnsupportedLines;
+        }
+
+        private void include(double[] position, boolean[] known) {
+            for (int a = X; a <= Z; a++) {
+                final double p = position[a];
+                if (known[a]) {
+                    include(a, p, p);
+                } else {
+                    if (p < mOffsetMin[a]) {
+                        mOffsetMin[a] = p;
+                    }
+                    if (p > mOffsetMax[a]) {
+                        mOffsetMax[a] = p;
+                    }
+                }
+            }
+        }
+
+        private void include(int axis, double min, double max) {
+            if (min < mMin[axis]) {
+                mMin[axis] = min;
+            }
+            if (max > mMax[axis]) {
+                mMax[axis] = max;
+            }
+        }
+
+        private void unsupported() {
+            mUnsupportedLines++;
+            final int code = (int) mCode;
+            if (mCommand == 'G' || mCommand == 'M') {
+                if (code >= 0 && code < MAX_CODE) {
+                    if (mCommand == 'G') {
+                        if (mUnsupportedG == null) {
+                            mUnsupportedG = new int[MAX_CODE];
+                        }
+                        mUnsupportedG[code]++;
+                    } else {
+                        if (mUnsupportedM == null) {
+                            mUnsupportedM = new int[MAX_CODE];
+                        }
+                        mUnsupportedM[code]++;
+                    }
+                }
+                issue("Unsupported command " + (char) mCommand + code);
+            } else {
+                issue(mCommand == 0 ? "No command" : "Unknown command " + (char) mCommand);
+            }
+        }
+
+        private void issue(String message) {
+            if (mIssues.size() < MAX_ISSUES) {
+                mIssues.add(new Issue(mLines, message));
+            }
+        }
+
+        private void checkCancelled() throws InterruptedException {
+            if (mCancelled || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Analysis cancelled");
+            }
+        }
+
+        private double scale() {
+            return mInches ? MM_PER_INCH : 1;
+        }
+
+        private boolean has(int letter) {
+            return (mWords & (1 << (letter - 'A'))) != 0;
+        }
+
+        /** The word's value, or 0 if the line does not have it. */
+        private double value(int letter) {
+            return has(letter) ? mValues[letter - 'A'] : 0;
+        }
+
+        /**
+         * Splits the line in {@link #mLine} into {@link #mCommand},
+         * {@link #mCode} and the words after. Line numbers, checksums and
+         * comments are skipped, as are the arguments of commands that take
+         * text. In a {@code quick} parse, only motion and M204 lines get
+         * their words read.
+         *
+         * @return false if there is no command on the line
+         */
+        private boolean parse(int len, boolean quick) {
+            final byte[] line = mLine;
+            mCommand = 0;
+            mWords = 0;
+            int i = 0;
+            boolean any = false;
+            while (i < len) {
+                int b = line[i];
+                if (b == ';' || b == '*') {
+                    break;
+                }
+                if (b == '(') {
+                    while (i < len && line[i] != ')') {
+                        i++;
+                    }
+                    i++;
+                    continue;
+                }
+                if (b <= ' ') {
+                    i++;
+                    continue;
+                }
+                if (b >= 'a' && b <= 'z') {
+                    b -= 'a' - 'A';
+                }
+                if (b < 'A' || b > 'Z') {
+                    // Stray punctuation; Marlin would choke on the whole line.
+                    any = true;
+                    break;
+                }
+                final double value = number(line, i + 1, len);
+                i = mNumberEnd;
+                if (b == 'N' && mCommand == 0 && !any) {
+                    continue;
+                }
+                any = true;
+                if (mCommand == 0) {
+                    if (b != 'G' && b != 'M' && b != 'T') {
+                        break;
+                    }
+                    mCommand = b;
+                    mCode = value;
+                    if (b == 'M' && takesText((int) value)) {
+                        break;
+                    }
+                    if (quick && !(b == 'G' && value < 4) && !(b == 'M' && value == 204)) {
+                        break;
+                    }
+                    continue;
+                }
+                mWords |= 1 << (b - 'A');
+                mValues[b - 'A'] = value;
+            }
+            return any;
+        }
+
+        /**
+         * Reads a plain decimal number at {@code start}, leaving
+         * {@link #mNumberEnd} after it.
+         *
+         * @return the number, or 0 if there is none
+         */
+        private double number(byte[] line, int start, int len) {
+            int i = start;
+            while (i < len && line[i] == ' ') {
+                i++;
+            }
+            boolean negative = false;
+            if (i < len && (line[i] == '-' || line[i] == '+')) {
+                negative = line[i] == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int decimals = -1;
+            for (; i < len; i++) {
+                final int c = line[i];
+                if (c >= '0' && c <= '9') {
+                    // Digits past what a long holds are dropped.
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        digits++;
+                        if (decimals >= 0) {
+                            decimals++;
+                        }
+                    }
+                } else if (c == '.' && decimals < 0) {
+                    decimals = 0;
+                } else {
+                    break;
+                }
+            }
+            mNumberEnd = digits > 0 || decimals >= 0 ? i : start;
+            final double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+            return negative ? -value : value;
+        }
+    }
+
+    /** Same as GCodeCompactor's list: M117 and friends take free text. */
+    private static boolean takesText(int code) {
+        switch (code) {
+            case 23: case 28: case 30: case 32: case 117: case 118: case 928:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static double orElse(double value, double otherwise) {
+        return Double.isNaN(value) ? otherwise : value;
+    }
+
+    /**
+     * Length in the XY plane of an arc to ({@code dx}, {@code dy}) from the
+     * start, around the centre at ({@code i}, {@code j}) from it, or of
+     * radius {@code r} if that is not NaN.
+     */
+    private static double arcLength(double dx, double dy, boolean clockwise,
+                                    double i, double j, double r) {
+        final double chord = Math.sqrt(dx * dx + dy * dy);
+        if (!Double.isNaN(r)) {
+            final double radius = Math.abs(r);
+            if (radius < 1e-9 || chord < 1e-9) {
+                return chord;
+            }
+            double angle = 2 * Math.asin(Math.min(1, chord / (2 * radius)));
+            if (r < 0) {
+                // Negative R asks for the long way round.
+                angle = 2 * Math.PI - angle;
+            }
+            return angle * radius;
+        }
+        final double radius = Math.sqrt(i * i + j * j);
+        if (radius < 1e-9) {
+            return chord;
+        }
+        // From the centre to the start, and to the end.
+        final double sx = -i;
+        final double sy = -j;
+        final double ex = dx - i;
+        final double ey = dy - j;
+        double angle = Math.atan2(sx * ey - sy * ex, sx * ex + sy * ey);
+        if (clockwise) {
+            angle = -angle;
+        }
+        if (angle <= 1e-9) {
+            // Same start and end is a full circle.
+            angle += 2 * Math.PI;
+        }
+        return angle * radius;
+    }
+
+    /**
+     * Time to cover {@code length} starting at {@code entry} and leaving at
+     * {@code exit}, cruising at {@code speed} if there is room to get there.
+     */
+    private static double profile(double length, double entry, double exit, double speed,
+                                  double accel) {
+        final double accelLength = (speed * speed - entry * entry) / (2 * accel);
+        final double decelLength = (speed * speed - exit * exit) / (2 * accel);
+        if (accelLength + decelLength <= length) {
+            return (speed - entry) / accel + (speed - exit) / accel
+                    + (length - accelLength - decelLength) / speed;
+        }
+        final double peak = Math.sqrt(accel * length + (entry * entry + exit * exit) / 2);
+        return (peak - entry) / accel + (peak - exit) / accel;
+    }
+
+    private static void countUnsupported(Map<String, Integer> counts, char letter, int[] codes) {
+        if (codes == null) {
+            return;
+        }
+        for (int code = 0; code < codes.length; code++) {
+            if (codes[code] > 0) {
+                final String key = letter + Integer.toString(code);
+                final Integer count = counts.get(key);
+                counts.put(key, (count == null ? 0 : count) + codes[code]);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package printer;
+
+/**
+ * Frames text G-code lines as {@code N<line> <command>*<checksum>}, the form
+ * Marlin, Repetier and most RepRap firmwares check before executing a line.
+ * The checksum is the XOR of every byte before the '*'.
+ */
+public class GCodeChecksum {
+
+    /** Bytes framing adds to a line at most, terminator included. */
+    public static final int MAX_OVERHEAD = 1 + 11 + 1 + 1 + 3 + 1;
+
+    private GCodeChecksum() {
+    }
+
+    /**
+     * Writes the framed, newline terminated form of {@code src[off..off+len)}
+     * into {@code dst}, which needs {@code len + MAX_OVERHEAD} bytes of room.
+     *
+     * @return the length of the framed line
+     */
+    public static int frame(byte[] src, int off, int len, int lineNumber, byte[] dst, int dstOff) {
+        int p = dstOff;
+        dst[p++] = 'N';
+        p = putDecimal(dst, p, lineNumber);
+        dst[p++] = ' ';
+        System.arraycopy(src, off, dst, p, len);
+        p += len;
+        final int checksum = checksum(dst, dstOff, p - dstOff);
+        dst[p++] = '*';
+        p = putDecimal(dst, p, checksum);
+        dst[p++] = '\n';
+        return p - dstOff;
+    }
+
+    public static int checksum(byte[] buf, int off, int len) {
+        int checksum = 0;
+        for (int i = off; i < off + len; i++) {
+            checksum ^= buf[i];
+        }
+        return checksum & 0xff;
+    }
+
+    private static int putDecimal(byte[] dst, int p, int value) {
+        if (value < 0) {
+            dst[p++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        for (int i = p + digits - 1; i >= p; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return p + digits;
+    }
+}
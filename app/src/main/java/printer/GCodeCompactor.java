@@ -0,0 +1,372 @@
+package printer;
+
+/**
+ * Shrinks G-code lines before they go on the wire, without changing what the
+ * firmware does with them.
+ *
+ * Each line has comments and redundant whitespace removed. Moves (G0 to G3)
+ * and position resets (G92) also have their numbers trimmed to the
+ * configured precision and of trailing zeros, and moves drop feedrates that
+ * repeat the current modal value. The words of every other command, which
+ * may set steps per unit or offsets that need their full precision, are
+ * kept as written. Lines carrying free text (M117 and friends) or an
+ * existing checksum are passed through untouched apart from surrounding
+ * whitespace.
+ *
+ * Instances keep modal state, so use one per stream and feed it every line in
+ * order. No allocation happens per line.
+ */
+public class GCodeCompactor {
+
+    public static final int DEFAULT_DECIMALS = 3;
+    public static final int DEFAULT_EXTRUSION_DECIMALS = 4;
+
+    private static final int MAX_NUMBER_LENGTH = 32;
+
+    private int mDecimals = DEFAULT_DECIMALS;
+    private int mExtrusionDecimals = DEFAULT_EXTRUSION_DECIMALS;
+    private boolean mDropSpaces;
+
+    // Last feedrate sent, already normalized.
+    private final byte[] mFeedrate = new byte[MAX_NUMBER_LENGTH];
+    private int mFeedrateLength = -1;
+
+    // Scratch space for normalize(): digits in, canonical number out.
+    private final byte[] mDigits = new byte[MAX_NUMBER_LENGTH + 1];
+    private final byte[] mNumber = new byte[MAX_NUMBER_LENGTH + 2];
+
+    private long mBytesIn;
+    private long mBytesOut;
+
+    /**
+     * Sets the number of decimals kept for X, Y, Z, I, J and R of moves and
+     * G92. Marlin plans in steps, so anything below a micron is noise.
+     */
+    public void setDecimals(int decimals) {
+        mDecimals = checkDecimals(decimals);
+    }
+
+    /** Sets the number of decimals kept for E of moves and G92. */
+    public void setExtrusionDecimals(int decimals) {
+        mExtrusionDecimals = checkDecimals(decimals);
+    }
+
+    /**
+     * Removes the space between words too ("G1X10Y20"). Grbl and Marlin
+     * accept this, but not every firmware does, so it is off by default.
+     */
+    public void setDropSpaces(boolean dropSpaces) {
+        mDropSpaces = dropSpaces;
+    }
+
+    private static int checkDecimals(int decimals) {
+        if (decimals < 0 || decimals > 10) {
+            throw new IllegalArgumentException("Bad number of decimals: " + decimals);
+        }
+        return decimals;
+    }
+
+    /** Bytes of input seen so far, line terminators excluded. */
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public long getBytesSaved() {
+        return mBytesIn - mBytesOut;
+    }
+
+    /** Forgets modal state, e.g. after the firmware has been reset. */
+    public void reset() {
+        mFeedrateLength = -1;
+    }
+
+    /**
+     * Compacts {@code src[off..off+len)}, without line terminator, into
+     * {@code dst} at {@code dstOff}. The output is never longer than the
+     * input, and {@code dst} may be {@code src} at the same offset.
+     *
+     * @return the length of the compacted line, 0 if nothing is worth sending
+     */
+    public int compact(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        mBytesIn += len;
+        final int end = off + len;
+
+        int start = off;
+        while (start < end && src[start] <= ' ') {
+            start++;
+        }
+        if (isVerbatim(src, start, end)) {
+            int stop = end;
+            while (stop > start && src[stop - 1] <= ' ') {
+                stop--;
+            }
+            System.arraycopy(src, start, dst, dstOff, stop - start);
+            mBytesOut += stop - start;
+            return stop - start;
+        }
+
+        int out = dstOff;
+        int words = 0;
+        boolean motion = false;
+        boolean positional = false;
+        boolean gap = false;
+        int i = start;
+        while (i < end) {
+            final byte b = src[i];
+            if (b == ';') {
+                break;
+            }
+            if (b == '(') {
+                while (i < end && src[i] != ')') {
+                    i++;
+                }
+                i++;
+                gap = true;
+                continue;
+            }
+            if (b <= ' ') {
+                i++;
+                gap = true;
+                continue;
+            }
+
+            final byte letter = upper(b);
+            int valueStart = i + 1;
+            int skip = valueStart;
+            while (skip < end && src[skip] == ' ') {
+                skip++;
+            }
+            if (skip < end && isNumberChar(src[skip])) {
+                valueStart = skip;
+            }
+            int valueEnd = valueStart;
+            while (valueEnd < end && isNumberChar(src[valueEnd])) {
+                valueEnd++;
+            }
+            i = valueEnd;
+
+            if (words == 0 && letter == 'G') {
+                final int code = parseCode(src, valueStart, valueEnd);
+                motion = code >= 0 && code <= 3;
+                positional = motion || code == 92;
+            }
+
+            int numberLength = -1;
+            if (positional) {
+                final int decimals;
+                switch (letter) {
+                    case 'X': case 'Y': case 'Z': case 'I': case 'J': case 'R':
+                        decimals = mDecimals;
+                        break;
+                    case 'E':
+                        decimals = mExtrusionDecimals;
+                        break;
+                    default:
+                        decimals = -1;
+                        break;
+                }
+                numberLength = normalize(src, valueStart, valueEnd, decimals);
+            }
+
+            if (letter == 'F' && motion && numberLength > 0) {
+                if (numberLength == mFeedrateLength && equal(mNumber, mFeedrate, numberLength)) {
+                    gap = true;
+                    continue;
+                }
+                System.arraycopy(mNumber, 0, mFeedrate, 0, numberLength);
+                mFeedrateLength = numberLength;
+            }
+
+            if (words > 0 && gap && !mDropSpaces) {
+                dst[out++] = ' ';
+            }
+            dst[out++] = positional ? letter : b;
+            if (numberLength >= 0) {
+                System.arraycopy(mNumber, 0, dst, out, numberLength);
+                out += numberLength;
+            } else {
+                // Not a number we may rewrite; keep it as it was.
+                System.arraycopy(src, valueStart, dst, out, valueEnd - valueStart);
+                out += valueEnd - valueStart;
+            }
+            words++;
+            gap = false;
+        }
+
+        // A bare G0/G1 left over after dropping its feedrate does nothing.
+        if (words == 1 && motion && isLinearMove(dst, dstOff, out)) {
+            out = dstOff;
+        }
+        mBytesOut += out - dstOff;
+        return out - dstOff;
+    }
+
+    /**
+     * Lines whose arguments are text, or that already carry a checksum, must
+     * not be touched.
+     */
+    private static boolean isVerbatim(byte[] src, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (src[i] == '*') {
+                return true;
+            }
+        }
+        if (end - start < 2 || upper(src[start]) != 'M') {
+            return false;
+        }
+        int code = 0;
+        int i = start + 1;
+        while (i < end && src[i] >= '0' && src[i] <= '9') {
+            code = code * 10 + (src[i] - '0');
+            i++;
+        }
+        switch (code) {
+            case 23: case 28: case 30: case 32: case 117: case 118: case 928:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** @return the command number in {@code src[start..end)}, or -1 */
+    private static int parseCode(byte[] src, int start, int end) {
+        if (end == start || end - start > 4) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = start; i < end; i++) {
+            if (src[i] < '0' || src[i] > '9') {
+                return -1;
+            }
+            code = code * 10 + (src[i] - '0');
+        }
+        return code;
+    }
+
+    private static boolean isLinearMove(byte[] line, int start, int end) {
+        int i = start + 1;
+        while (i < end && line[i] == '0') {
+            i++;
+        }
+        return i == end || (i == end - 1 && line[i] == '1');
+    }
+
+    /**
+     * Writes the canonical form of the number in {@code src[start..end)} into
+     * {@link #mNumber}, rounded half away from zero to {@code decimals}
+     * places unless that is negative.
+     *
+     * @return its length, or -1 if it is not a plain decimal number
+     */
+    private int normalize(byte[] src, int start, int end, int decimals) {
+        if (start == end) {
+            return 0;
+        }
+        final byte[] num = mDigits;
+        int i = start;
+        boolean negative = false;
+        if (src[i] == '-' || src[i] == '+') {
+            negative = src[i] == '-';
+            i++;
+        }
+
+        // Digits go to num[1..], leaving num[0] for a carry out of the top.
+        int digits = 1;
+        int point = -1;
+        for (; i < end; i++) {
+            final byte c = src[i];
+            if (c == '.') {
+                if (point >= 0) {
+                    return -1;
+                }
+                point = digits;
+            } else if (c >= '0' && c <= '9') {
+                if (digits >= num.length) {
+                    return -1;
+                }
+                num[digits++] = c;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 1) {
+            return -1;
+        }
+        if (point < 0) {
+            point = digits;
+        }
+        num[0] = '0';
+
+        if (decimals >= 0 && digits - point > decimals) {
+            final int cut = point + decimals;
+            final boolean up = num[cut] >= '5';
+            digits = cut;
+            if (up) {
+                int j = cut - 1;
+                while (num[j] == '9') {
+                    num[j] = '0';
+                    j--;
+                }
+                num[j]++;
+            }
+        }
+
+        // Trailing zeros of the fraction, then leading zeros of the integer
+        // part.
+        while (digits > point && num[digits - 1] == '0') {
+            digits--;
+        }
+        int first = 0;
+        while (first < point - 1 && num[first] == '0') {
+            first++;
+        }
+
+        boolean zero = true;
+        for (int j = first; j < digits; j++) {
+            if (num[j] != '0') {
+                zero = false;
+                break;
+            }
+        }
+
+        final byte[] out = mNumber;
+        int len = 0;
+        if (negative && !zero) {
+            out[len++] = '-';
+        }
+        // "0.5" goes out as ".5", which every firmware's strtod() accepts.
+        if (zero || digits == point || point - first > 1 || num[first] != '0') {
+            for (int j = first; j < point; j++) {
+                out[len++] = num[j];
+            }
+        }
+        if (digits > point) {
+            out[len++] = '.';
+            for (int j = point; j < digits; j++) {
+                out[len++] = num[j];
+            }
+        }
+        return len;
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+';
+    }
+
+    private static byte upper(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - 'a' + 'A') : b;
+    }
+
+    private static boolean equal(byte[] a, byte[] b, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,350 @@
+package printer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where lines and layers start in a G-code file, so that streaming can begin
+ * anywhere without reading up to it.
+ *
+ * The index is built in one pass and kept in a file of its own, by default
+ * next to the G-code as {@code <name>.idx}, which is rebuilt when the G-code
+ * changes size or modification time. Lookups read the memory-mapped index
+ * and take no heap: the offset of every {@link #getInterval()}th line is
+ * stored, so reaching any line means one seek and reading at most that many
+ * lines. Layers are the comment markers slicers put before each layer
+ * (Cura's {@code ;LAYER:n}, PrusaSlicer's {@code ;LAYER_CHANGE},
+ * Simplify3D's {@code ; layer n}), recorded with their line and offset.
+ *
+ * Index layout, all big-endian: a {@value #HEADER_SIZE} byte header of
+ * magic, version, interval, a reserved int, then the G-code's length and
+ * modification time, and the number of lines and of layers. Line offsets
+ * follow as longs, then layers as pairs of longs, line then offset.
+ */
+public class GCodeIndex {
+
+    private static final String TAG = GCodeIndex.class.getSimpleName();
+
+    public static final String SUFFIX = ".idx";
+
+    /** Lines between stored offsets; reaching a line reads at most this many. */
+    public static final int DEFAULT_INTERVAL = 64;
+
+    static final int MAGIC = 0x47494458; // "GIDX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 48;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Enough of a line to tell a layer marker.
+    private static final int PREFIX_SIZE = 16;
+    private static final byte[] SKIP = new byte[0];
+
+    private final MappedByteBuffer mBuffer;
+    private final File mFile;
+    private final int mInterval;
+    private final long mLines;
+    private final long mLayers;
+    private final int mLayersStart;
+
+    private GCodeIndex(File file, MappedByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+        mInterval = buffer.getInt(8);
+        mLines = buffer.getLong(32);
+        mLayers = buffer.getLong(40);
+        mLayersStart = HEADER_SIZE + 8 * (int) samples(mLines, mInterval);
+    }
+
+    /**
+     * Opens the index of {@code source}, building it first if there is none
+     * or it is out of date. It goes next to the source, or in
+     * {@code fallbackDir} if that directory cannot be written to.
+     */
+    public static GCodeIndex open(File source, File fallbackDir) throws IOException {
+        File file = new File(source.getPath() + SUFFIX);
+        if (!file.exists() && !source.getAbsoluteFile().getParentFile().canWrite()) {
+            file = new File(fallbackDir, source.getName() + "-"
+                    + Integer.toHexString(source.getAbsolutePath().hashCode()) + SUFFIX);
+        }
+        final GCodeIndex index = map(file, source);
+        if (index != null) {
+            return index;
+        }
+        final long start = System.nanoTime();
+        build(source, file, DEFAULT_INTERVAL);
+        final GCodeIndex built = map(file, source);
+        if (built == null) {
+            throw new IOException("Index changed while being built: " + file);
+        }
+        Log.i(TAG, "Indexed " + built.mLines + " lines and " + built.mLayers + " layers of "
+                + source.getName() + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+        return built;
+    }
+
+    /** Writes the index of {@code source} to {@code file}, replacing it whole. */
+    public static void build(File source, File file, int interval) throws IOException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Bad interval: " + interval);
+        }
+        final long length = source.length();
+        final long modified = source.lastModified();
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileInputStream in = new FileInputStream(source);
+        final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            final FileChannel input = in.getChannel();
+            final FileChannel output = out.getChannel();
+            final ByteBuffer read = ByteBuffer.allocate(BUFFER_SIZE);
+            final ByteBuffer write = ByteBuffer.allocate(BUFFER_SIZE);
+            // The header is filled in last.
+            write.position(HEADER_SIZE);
+            // Layers go after the line offsets, so they wait in memory.
+            long[] layers = new long[256];
+            int layerCount = 0;
+
+            final byte[] prefix = new byte[PREFIX_SIZE];
+            int prefixLength = 0;
+            boolean lineStart = true;
+            long lines = 0;
+            long lineOffset = 0;
+            long offset = 0;
+            int n;
+            while ((n = input.read(read)) > 0) {
+                final byte[] buf = read.array();
+                for (int i = 0; i < n; i++) {
+                    if (lineStart) {
+                        lineOffset = offset + i;
+                        if (lines % interval == 0) {
+                            if (!write.hasRemaining()) {
+                                flush(write, output);
+                            }
+                            write.putLong(lineOffset);
+                        }
+                        lines++;
+                        lineStart = false;
+                        prefixLength = 0;
+                    }
+                    final byte b = buf[i];
+                    if (b == '\n') {
+                        if (isLayerMarker(prefix, prefixLength)) {
+                            layers = addLayer(layers, layerCount++, lines - 1, lineOffset);
+                        }
+                        lineStart = true;
+                    } else if (prefixLength < PREFIX_SIZE) {
+                        prefix[prefixLength++] = b;
+                    }
+                }
+                offset += n;
+                read.clear();
+            }
+            if (!lineStart && isLayerMarker(prefix, prefixLength)) {
+                layers = addLayer(layers, layerCount++, lines - 1, lineOffset);
+            }
+            for (int i = 0; i < layerCount * 2; i++) {
+                if (!write.hasRemaining()) {
+                    flush(write, output);
+                }
+                write.putLong(layers[i]);
+            }
+            flush(write, output);
+
+            write.putInt(MAGIC);
+            write.putInt(VERSION);
+            write.putInt(interval);
+            write.putInt(0);
+            write.putLong(length);
+            write.putLong(modified);
+            write.putLong(lines);
+            write.putLong(layerCount);
+            write.flip();
+            long position = 0;
+            while (write.hasRemaining()) {
+                position += output.write(write, position);
+            }
+            // Before the rename, so a crash cannot leave a valid looking
+            // header over missing offsets.
+            output.force(false);
+        } finally {
+            in.close();
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /** Maps {@code file} if it is a complete index of {@code source} as it is now. */
+    private static GCodeIndex map(File file, File source) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final MappedByteBuffer buffer;
+        try {
+            if (raf.length() < HEADER_SIZE || raf.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) <= 0
+                || buffer.getLong(16) != source.length()
+                || buffer.getLong(24) != source.lastModified()) {
+            return null;
+        }
+        final long size = HEADER_SIZE + 8 * samples(buffer.getLong(32), buffer.getInt(8))
+                + 16 * buffer.getLong(40);
+        if (size != buffer.capacity()) {
+            return null;
+        }
+        return new GCodeIndex(file, buffer);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getInterval() {
+        return mInterval;
+    }
+
+    public long getLineCount() {
+        return mLines;
+    }
+
+    public int getLayerCount() {
+        return (int) mLayers;
+    }
+
+    /** Zero-based line of the marker starting {@code layer}. */
+    public long getLayerLine(int layer) {
+        checkLayer(layer);
+        return mBuffer.getLong(mLayersStart + 16 * layer);
+    }
+
+    public long getLayerOffset(int layer) {
+        checkLayer(layer);
+        return mBuffer.getLong(mLayersStart + 16 * layer + 8);
+    }
+
+    /** The layer {@code line} is in, or -1 if it comes before the first. */
+    public int findLayer(long line) {
+        int low = 0;
+        int high = (int) mLayers - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mBuffer.getLong(mLayersStart + 16 * mid) <= line) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Moves {@code reader}, which must be on the indexed file, to the start
+     * of zero-based {@code line}.
+     */
+    public void seek(GCodeReader reader, long line) throws IOException {
+        if (line < 0 || line > mLines) {
+            throw new IllegalArgumentException("Bad line: " + line);
+        }
+        if (line == mLines) {
+            reader.seek(reader.length(), line);
+            return;
+        }
+        final long sample = line / mInterval;
+        reader.seek(mBuffer.getLong(HEADER_SIZE + 8 * (int) sample), sample * mInterval);
+        while (reader.getLineNumber() < line) {
+            reader.readLine(SKIP);
+        }
+    }
+
+    /** Moves {@code reader} to the marker starting {@code layer}. */
+    public void seekLayer(GCodeReader reader, int layer) throws IOException {
+        reader.seek(getLayerOffset(layer), getLayerLine(layer));
+    }
+
+    private void checkLayer(int layer) {
+        if (layer < 0 || layer >= mLayers) {
+            throw new IndexOutOfBoundsException("Bad layer: " + layer);
+        }
+    }
+
+    private static long samples(long lines, int interval) {
+        return (lines + interval - 1) / interval;
+    }
+
+    private static long[] addLayer(long[] layers, int index, long line, long offset) {
+        if (index * 2 == layers.length) {
+            final long[] grown = new long[layers.length * 2];
+            System.arraycopy(layers, 0, grown, 0, layers.length);
+            layers = grown;
+        }
+        layers[index * 2] = line;
+        layers[index * 2 + 1] = offset;
+        return layers;
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Cura's ";LAYER:3", PrusaSlicer's ";LAYER_CHANGE", Simplify3D's "; layer 3, Z = 0.6". */
+    private static boolean isLayerMarker(byte[] prefix, int len) {
+        if (len == 0 || prefix[0] != ';') {
+            return false;
+        }
+        int i = 1;
+        while (i < len && prefix[i] == ' ') {
+            i++;
+        }
+        if (!startsWith(prefix, i, len, "LAYER")) {
+            return false;
+        }
+        i += 5;
+        if (i + 1 >= len) {
+            return false;
+        }
+        final byte c = prefix[i];
+        final byte next = prefix[i + 1];
+        if (c == ':') {
+            return next == '-' || (next >= '0' && next <= '9');
+        }
+        if (c == ' ') {
+            return next >= '0' && next <= '9';
+        }
+        return startsWith(prefix, i, len, "_CHANGE");
+    }
+
+    private static boolean startsWith(byte[] prefix, int start, int len, String word) {
+        if (len - start < word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            int b = prefix[start + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
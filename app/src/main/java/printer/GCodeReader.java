@@ -0,0 +1,124 @@
+package printer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a G-code file one line at a time through a fixed buffer, so files of
+ * any size can be streamed without holding them in memory or allocating per
+ * line.
+ */
+public class GCodeReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final long mLength;
+
+    private final ByteBuffer mBuffer;
+
+    // File offset of the start of the next line.
+    private long mPosition;
+    // Zero-based number of the next line.
+    private long mLineNumber;
+
+    public GCodeReader(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public GCodeReader(File file, int bufferSize) throws IOException {
+        mStream = new FileInputStream(file);
+        mChannel = mStream.getChannel();
+        mLength = mChannel.size();
+        mBuffer = ByteBuffer.allocate(bufferSize);
+        mBuffer.flip();
+    }
+
+    /** Size of the file in bytes. */
+    public long length() {
+        return mLength;
+    }
+
+    /** File offset where the next line starts. */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /** Zero-based number of the line {@link #readLine} returns next. */
+    public long getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * Reads the next line into {@code dest}, without its line terminator.
+     * Characters past the end of {@code dest} are dropped, but the whole
+     * line is still consumed.
+     *
+     * @return the full length of the line, which may exceed
+     *         {@code dest.length}, or -1 at the end of the file
+     */
+    public int readLine(byte[] dest) throws IOException {
+        int len = 0;
+        boolean any = false;
+        while (true) {
+            if (!mBuffer.hasRemaining()) {
+                mBuffer.clear();
+                final int n = mChannel.read(mBuffer);
+                mBuffer.flip();
+                if (n <= 0) {
+                    if (!any) {
+                        return -1;
+                    }
+                    break;
+                }
+            }
+            any = true;
+            final byte[] buf = mBuffer.array();
+            final int start = mBuffer.position();
+            final int limit = mBuffer.limit();
+            int i = start;
+            while (i < limit && buf[i] != '\n') {
+                i++;
+            }
+            final int chunk = i - start;
+            if (len < dest.length) {
+                System.arraycopy(buf, start, dest, len, Math.min(chunk, dest.length - len));
+            }
+            len += chunk;
+            mPosition += chunk;
+            if (i < limit) {
+                mBuffer.position(i + 1);
+                mPosition++;
+                break;
+            }
+            mBuffer.position(limit);
+        }
+        mLineNumber++;
+        if (len > 0 && len <= dest.length && dest[len - 1] == '\r') {
+            len--;
+        }
+        return len;
+    }
+
+    /**
+     * Moves to {@code offset}, which must be the start of line
+     * {@code lineNumber}.
+     */
+    public void seek(long offset, long lineNumber) throws IOException {
+        mChannel.position(offset);
+        mBuffer.clear();
+        mBuffer.flip();
+        mPosition = offset;
+        mLineNumber = lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
@@ -0,0 +1,1149 @@
+package printer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a G-code file to the printer through a {@link SerialIOManager},
+ * sending the next line each time the firmware answers "ok".
+ *
+ * By default one line is in flight at a time. With
+ * {@link #setRxBufferSize(int)} the streamer instead counts the bytes sitting
+ * in the firmware's receive buffer and keeps it as full as it can, retiring
+ * the oldest line on each "ok".
+ *
+ * Against Repetier firmware lines can go out in its binary encoding (see
+ * {@link RepetierBinaryCodec}), either forced or after asking the firmware
+ * who it is with M115.
+ *
+ * With {@link #setChecksums(boolean)}, or in binary mode, every line carries a
+ * line number and checksum. Recently sent frames stay in a
+ * {@link ResendWindow}, so a "Resend: N" from the firmware is answered from
+ * memory by resending N onwards, without touching the file.
+ *
+ * The file is read incrementally with a {@link GCodeReader}. Replies must be
+ * fed in, either parsed through {@link #onResponse}, normally as the
+ * {@link SerialIOManager#setResponseListener response listener}, or raw with
+ * {@link #onReceived}. Run it on its own thread; it returns once the file is
+ * done, cancelled or failed.
+ *
+ * With a {@link PrintJournal} every file line is checkpointed as the firmware
+ * acknowledges it, and a preamble can restore the printer's state before
+ * picking a print up from there.
+ */
+public class GCodeStreamer implements Runnable, ResponseParser.Listener {
+
+    private static final String TAG = GCodeStreamer.class.getSimpleName();
+
+    private static final int TRACE_ACK = Tracer.define(Tracer.VERBOSE, "gcode.ack",
+            "line=%d latency_us=%d");
+    private static final int TRACE_RESEND_REQUEST = Tracer.define(Tracer.INFO,
+            "gcode.resend.request", "line=%d dropped=%d");
+    private static final int TRACE_RESEND = Tracer.define(Tracer.INFO, "gcode.resend",
+            "from=%d to=%d");
+    private static final int TRACE_STALE = Tracer.define(Tracer.INFO, "gcode.stale",
+            "frames=%d bytes=%d");
+
+    /** Lines longer than this are rejected rather than truncated. */
+    public static final int MAX_LINE_LENGTH = 256;
+
+    private static final int MAX_FRAME_LENGTH = Math.max(RepetierBinaryCodec.MAX_FRAME_LENGTH,
+            MAX_LINE_LENGTH + GCodeChecksum.MAX_OVERHEAD);
+
+    /**
+     * Usable receive buffer of stock Marlin and Grbl builds (128 byte ring,
+     * one slot always free).
+     */
+    public static final int DEFAULT_RX_BUFFER_SIZE = 127;
+
+    /** Numbered frames kept for resending by default. */
+    public static final int DEFAULT_RESEND_WINDOW = 1024;
+
+    /**
+     * Silence after which frames the firmware will not take are assumed to
+     * have been flushed. Longer than Marlin's 2 second busy keepalive.
+     */
+    public static final long DEFAULT_STALE_TIMEOUT_MS = 2500;
+
+    private static final int CREDIT_GRANTED = 0;
+    private static final int CREDIT_CANCELLED = 1;
+    private static final int CREDIT_RESEND = 2;
+
+    // Looked for in the M115 reply when negotiating the protocol.
+    private static final String REPETIER = "Repetier";
+
+    public enum Protocol {
+        /** Plain text lines. */
+        ASCII,
+        /** Repetier binary frames, falling back to text per line if needed. */
+        BINARY,
+        /** Binary if M115 reports Repetier firmware, text otherwise. */
+        AUTO
+    }
+
+    public enum State {
+        IDLE,
+        STREAMING,
+        PAUSED,
+        FINISHED,
+        CANCELLED,
+        FAILED
+    }
+
+    public interface Callback {
+        /**
+         * Called as lines are acknowledged, at most once per permille of the
+         * file.
+         */
+        public void onProgress(GCodeStreamer streamer, long linesAcked, long bytesRead,
+                long totalBytes);
+
+        public void onStateChanged(GCodeStreamer streamer, State state);
+
+        /**
+         * Called when streaming stops because of an error.
+         */
+        public void onError(GCodeStreamer streamer, Exception e);
+    }
+
+    private final File mFile;
+    private final SerialIOManager mIoManager;
+    private final Callback mCallback;
+    private final LinkMetrics mMetrics;
+
+    // Optional transform applied to every line before it is sent.
+    private GCodeCompactor mCompactor;
+
+    // Where in the file to begin. Synchronized by 'this'
+    private GCodeIndex mIndex;
+    private long mStartLine;
+
+    // Console commands to send between file lines, each with room for a
+    // terminator, until the stream stops taking them. Synchronized by 'this'
+    private final ArrayDeque<byte[]> mCommands = new ArrayDeque<byte[]>();
+    private boolean mCommandsClosed;
+
+    // Lines to send before the file, and where to checkpoint. Synchronized by 'this'
+    private List<String> mPreamble;
+    private PrintJournal mJournal;
+    // Line number, or count of acknowledgements when lines are unnumbered,
+    // of the first file line; -1 until the file starts. Synchronized by 'this'
+    private long mJournalBase = -1;
+
+    // Synchronized by 'this'
+    private Protocol mProtocol = Protocol.ASCII;
+    // Set while waiting for the M115 reply, and when it names Repetier.
+    private volatile boolean mNegotiating;
+    private volatile boolean mRepetierDetected;
+
+    // Synchronized by 'this'
+    private boolean mChecksums;
+    private int mResendWindowSize = DEFAULT_RESEND_WINDOW;
+    // Synchronized by 'this'
+    private long mStaleTimeoutMs = DEFAULT_STALE_TIMEOUT_MS;
+
+    // Synchronized by 'this'
+    private State mState = State.IDLE;
+    // Firmware receive buffer to keep filled, or 0 for one line at a time.
+    // Synchronized by 'this'
+    private int mRxBufferSize;
+
+    // Frames that may still be in the firmware's receive buffer or on their
+    // way to it, oldest first: lengths, line numbers (-1 if unnumbered) and
+    // send times. A frame only leaves once a reply shows the firmware has read
+    // it, or it has stayed silent long after. Synchronized by 'this'
+    private int[] mInFlight = new int[1];
+    private int[] mInFlightLine = new int[1];
+    private long[] mInFlightSent = new long[1];
+    private int mInFlightHead;
+    private int mOutstanding;
+    private int mOutstandingBytes;
+    // First line the firmware asked for again, or -1. Synchronized by 'this'
+    private int mResendFrom = -1;
+    // "ok"s that acknowledge a resend request rather than a line.
+    // Synchronized by 'this'
+    private int mIgnoredOks;
+    // Line last asked for, until it has been sent again or taken, or -1.
+    // Lines already on the wire when the firmware flushed its buffer each
+    // earn another request for it, or none, so until then repeats are only
+    // acknowledged. Synchronized by 'this'
+    private int mPendingResendLine = -1;
+    // Last line the firmware took. It takes each number once and in order, so
+    // every "ok" not answering a resend request is for the next one, whichever
+    // copy of it got through. Synchronized by 'this'
+    private int mAckedLine = -1;
+    // Last line frames were retired through. The first copy of a line still
+    // in flight has been read only while the copy taken has not been retired
+    // yet, so each line is used for that once. Synchronized by 'this'
+    private int mRetiredLine = -1;
+    // Replies that each show one more frame was read, and frames retired. The
+    // firmware reads frames in order, so at least as many as have been
+    // answered are gone. Synchronized by 'this'
+    private long mFramesAnswered;
+    private long mFramesRetired;
+    // When the last resend request came in. Frames sent before it that the
+    // firmware flushed are never answered. Synchronized by 'this'
+    private long mResendRequestTime;
+    // When the firmware last sent anything.
+    private volatile long mLastReplyTime;
+    // Synchronized by 'this'
+    private long mLinesAcked;
+
+    // File bytes consumed so far, for progress.
+    private volatile long mBytesRead;
+    private volatile long mTotalBytes;
+
+    // Only touched by the thread in run().
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH + 1];
+    private final byte[] mFrame = new byte[MAX_FRAME_LENGTH];
+    private RepetierBinaryCodec mBinaryCodec;
+    private ResendWindow mResendWindow;
+    // Written by the thread in run(), read when resolving resend requests.
+    private volatile int mNextLineNumber;
+
+    // Only touched by the thread delivering replies.
+    private final ResponseParser mParser = new ResponseParser(this);
+    private int mLastPermille = -1;
+
+    public GCodeStreamer(File file, SerialIOManager ioManager, Callback callback) {
+        mFile = file;
+        mIoManager = ioManager;
+        mCallback = callback;
+        mMetrics = ioManager.getMetrics();
+    }
+
+    /**
+     * Switches to character-counting flow control against a firmware receive
+     * buffer of {@code bytes}, or back to one line at a time with 0. Must be
+     * called before {@link #run()}.
+     */
+    public synchronized void setRxBufferSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Bad receive buffer size: " + bytes);
+        }
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mRxBufferSize = bytes;
+        // Every line takes at least two bytes, so this bounds the lines in flight.
+        mInFlight = new int[Math.max(1, bytes / 2)];
+        mInFlightLine = new int[mInFlight.length];
+        mInFlightSent = new long[mInFlight.length];
+    }
+
+    /**
+     * Sends text lines as {@code N<line> ...*<checksum>} so the firmware can
+     * detect corruption and ask for a resend. Must be called before
+     * {@link #run()}.
+     */
+    public synchronized void setChecksums(boolean checksums) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mChecksums = checksums;
+    }
+
+    /**
+     * Sets how many sent lines are kept for answering resend requests. Must
+     * be called before {@link #run()}.
+     */
+    public synchronized void setResendWindow(int lines) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mResendWindowSize = lines;
+    }
+
+    /**
+     * Sets how long the firmware has to stay silent before frames it will not
+     * take, copies of lines it already has or ones sent ahead of its last
+     * resend request, stop counting against its receive buffer. Those it
+     * flushed are never answered, so without this they could keep the line
+     * it asked for from ever fitting. Must be called before {@link #run()}.
+     */
+    public synchronized void setStaleTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Bad stale frame timeout: " + millis);
+        }
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mStaleTimeoutMs = millis;
+    }
+
+    /**
+     * Runs every line through {@code compactor} before sending it, instead of
+     * only stripping comments. Must be called before {@link #run()}.
+     */
+    public synchronized void setCompactor(GCodeCompactor compactor) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mCompactor = compactor;
+    }
+
+    public synchronized GCodeCompactor getCompactor() {
+        return mCompactor;
+    }
+
+    /**
+     * Begins at zero-based {@code line} rather than at the top of the file.
+     * Must be called before {@link #run()}.
+     */
+    public synchronized void setStartLine(long line) {
+        if (line < 0) {
+            throw new IllegalArgumentException("Bad start line: " + line);
+        }
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mStartLine = line;
+    }
+
+    public synchronized long getStartLine() {
+        return mStartLine;
+    }
+
+    /**
+     * Finds the start line through {@code index} instead of reading every
+     * line before it. Must be called before {@link #run()}.
+     */
+    public synchronized void setIndex(GCodeIndex index) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mIndex = index;
+    }
+
+    /**
+     * Sends {@code lines} ahead of the file, once the protocol is settled,
+     * and waits for them all to be acknowledged. Must be called before
+     * {@link #run()}.
+     */
+    public synchronized void setPreamble(List<String> lines) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mPreamble = lines != null ? new ArrayList<String>(lines) : null;
+    }
+
+    /**
+     * Checkpoints every acknowledged file line to {@code journal}. Must be
+     * called before {@link #run()}.
+     */
+    public synchronized void setJournal(PrintJournal journal) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mJournal = journal;
+    }
+
+    /**
+     * Chooses the wire protocol. Must be called before {@link #run()}.
+     */
+    public synchronized void setProtocol(Protocol protocol) {
+        if (mState != State.IDLE) {
+            throw new IllegalStateException("Already started.");
+        }
+        mProtocol = protocol;
+    }
+
+    public synchronized Protocol getProtocol() {
+        return mProtocol;
+    }
+
+    /** Whether lines are going out as binary frames. */
+    public boolean isBinary() {
+        return mBinaryCodec != null;
+    }
+
+    public synchronized int getRxBufferSize() {
+        return mRxBufferSize;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized long getLinesAcked() {
+        return mLinesAcked;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Stops sending file lines once the one going out has been sent. Resends
+     * and console commands still go out meanwhile.
+     */
+    public void pause() {
+        changeState(State.STREAMING, State.PAUSED);
+    }
+
+    public void resume() {
+        changeState(State.PAUSED, State.STREAMING);
+    }
+
+    /**
+     * Queues a console command to go out between file lines. It is numbered
+     * and counted against the firmware's buffer like them, so its "ok" is not
+     * taken for one of theirs.
+     *
+     * @return {@code false} if the stream has stopped taking commands; the
+     *         caller can then write it to the printer itself
+     * @throws IllegalArgumentException if the command is too long
+     */
+    public boolean sendCommand(String command) {
+        final byte[] line = new byte[command.length() + 1];
+        for (int i = 0; i < command.length(); i++) {
+            line[i] = (byte) command.charAt(i);
+        }
+        final int len = stripLine(line, command.length());
+        if (len > MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Command longer than " + MAX_LINE_LENGTH
+                    + " bytes.");
+        }
+        synchronized (this) {
+            if (mCommandsClosed || (mState != State.IDLE && mState != State.STREAMING
+                    && mState != State.PAUSED)) {
+                return false;
+            }
+            if (len > 0) {
+                final byte[] queued = new byte[len + 1];
+                System.arraycopy(line, 0, queued, 0, len);
+                mCommands.add(queued);
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    public void cancel() {
+        final State previous;
+        synchronized (this) {
+            previous = mState;
+            if (previous != State.STREAMING && previous != State.PAUSED
+                    && previous != State.IDLE) {
+                return;
+            }
+            mState = State.CANCELLED;
+            notifyAll();
+        }
+        mCallback.onStateChanged(this, State.CANCELLED);
+    }
+
+    private void changeState(State from, State to) {
+        synchronized (this) {
+            if (mState != from) {
+                return;
+            }
+            mState = to;
+            notifyAll();
+        }
+        mCallback.onStateChanged(this, to);
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (mState != State.IDLE) {
+                throw new IllegalStateException("Already started.");
+            }
+            mState = State.STREAMING;
+        }
+        mCallback.onStateChanged(this, State.STREAMING);
+
+        final GCodeCompactor compactor = getCompactor();
+        final GCodeIndex index;
+        final long startLine;
+        final List<String> preamble;
+        final PrintJournal journal;
+        final int inFlight;
+        synchronized (this) {
+            index = mIndex;
+            startLine = mStartLine;
+            preamble = mPreamble;
+            journal = mJournal;
+            inFlight = mInFlight.length;
+        }
+        GCodeReader reader = null;
+        try {
+            reader = new GCodeReader(mFile);
+            mTotalBytes = reader.length();
+            Log.i(TAG, "Streaming " + mFile + ", " + mTotalBytes + " bytes.");
+            if (startLine > 0) {
+                if (index != null) {
+                    index.seek(reader, startLine);
+                } else {
+                    while (reader.getLineNumber() < startLine && reader.readLine(mLine) >= 0) {
+                        // Skip.
+                    }
+                }
+                mBytesRead = reader.getPosition();
+                Log.i(TAG, "Starting at line " + reader.getLineNumber() + ", offset "
+                        + mBytesRead + ".");
+            }
+
+            if (journal != null) {
+                journal.begin(mFile, inFlight);
+            }
+            if (!startProtocol()) {
+                return;
+            }
+            if (preamble != null && !sendPreamble(preamble, compactor, journal)) {
+                return;
+            }
+            if (journal != null) {
+                synchronized (this) {
+                    mJournalBase = mResendWindow != null ? mNextLineNumber : mLinesAcked;
+                }
+            }
+
+            // Last file line sent; commands are journaled as following it.
+            long fileLine = startLine - 1;
+            int len;
+            while (true) {
+                if (!sendCommands(journal, fileLine)) {
+                    return;
+                }
+                if ((len = reader.readLine(mLine)) < 0) {
+                    break;
+                }
+                if (commandLength(mLine, len) > MAX_LINE_LENGTH) {
+                    throw new IOException("Line " + reader.getLineNumber() + " too long.");
+                }
+                // Anything past the buffer is comment.
+                len = Math.min(len, mLine.length);
+                if (compactor != null) {
+                    len = compactor.compact(mLine, 0, len, mLine, 0);
+                } else {
+                    len = stripLine(mLine, len);
+                }
+                if (len == 0) {
+                    continue;
+                }
+                fileLine = reader.getLineNumber() - 1;
+                if (journal != null) {
+                    // Before sending, so the state is there by the time of the "ok".
+                    journal.sent(mLine, len, fileLine);
+                }
+                if (!send(mLine, len)) {
+                    return;
+                }
+                mBytesRead = reader.getPosition();
+            }
+
+            while (true) {
+                if (!awaitDrained()) {
+                    return;
+                }
+                synchronized (this) {
+                    if (mCommands.isEmpty()) {
+                        mCommandsClosed = true;
+                        break;
+                    }
+                }
+                if (!sendCommands(journal, fileLine)) {
+                    return;
+                }
+            }
+            finish(State.FINISHED);
+        } catch (Exception e) {
+            Log.w(TAG, "Streaming failed: " + e.getMessage(), e);
+            if (finish(State.FAILED)) {
+                mCallback.onError(this, e);
+            }
+        } finally {
+            if (journal != null) {
+                // A failed print keeps its checkpoint for resuming.
+                journal.end(getState() != State.FAILED);
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out the protocol to use, asking the firmware if needed, and
+     * resets its line numbering when frames carry line numbers.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean startProtocol() throws IOException, InterruptedException {
+        Protocol protocol = getProtocol();
+        if (protocol == Protocol.AUTO) {
+            mRepetierDetected = false;
+            mNegotiating = true;
+            try {
+                final byte[] m115 = { 'M', '1', '1', '5' };
+                System.arraycopy(m115, 0, mLine, 0, m115.length);
+                if (!send(mLine, m115.length) || !awaitDrained()) {
+                    return false;
+                }
+            } finally {
+                mNegotiating = false;
+            }
+            protocol = mRepetierDetected ? Protocol.BINARY : Protocol.ASCII;
+            Log.i(TAG, "Negotiated protocol " + protocol);
+        }
+
+        final boolean checksums;
+        final int windowSize;
+        synchronized (this) {
+            checksums = mChecksums;
+            windowSize = Math.max(mResendWindowSize, 2 * mInFlight.length);
+        }
+        if (protocol != Protocol.BINARY && !checksums) {
+            return true;
+        }
+
+        mResendWindow = new ResendWindow(windowSize, MAX_FRAME_LENGTH);
+        mNextLineNumber = 0;
+        final byte[] m110;
+        if (protocol == Protocol.BINARY) {
+            mBinaryCodec = new RepetierBinaryCodec();
+            m110 = new byte[] { 'M', '1', '1', '0' };
+        } else {
+            m110 = new byte[] { 'M', '1', '1', '0', ' ', 'N', '0' };
+        }
+        System.arraycopy(m110, 0, mLine, 0, m110.length);
+        return send(mLine, m110.length);
+    }
+
+    /**
+     * Sends the preamble lines as they would be sent from the file, and
+     * waits for them to be acknowledged.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean sendPreamble(List<String> preamble, GCodeCompactor compactor,
+                                 PrintJournal journal) throws IOException, InterruptedException {
+        Log.i(TAG, "Sending " + preamble.size() + " preamble lines.");
+        for (String text : preamble) {
+            int len = text.length();
+            if (len > MAX_LINE_LENGTH) {
+                throw new IOException("Preamble line too long: " + text);
+            }
+            for (int i = 0; i < len; i++) {
+                mLine[i] = (byte) text.charAt(i);
+            }
+            if (compactor != null) {
+                len = compactor.compact(mLine, 0, len, mLine, 0);
+            } else {
+                len = stripLine(mLine, len);
+            }
+            if (len == 0) {
+                continue;
+            }
+            if (journal != null) {
+                journal.update(mLine, len);
+            }
+            if (!send(mLine, len)) {
+                return false;
+            }
+        }
+        return awaitDrained();
+    }
+
+    /**
+     * Sends the console commands queued, and while paused waits for more
+     * until resumed.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean sendCommands(PrintJournal journal, long fileLine)
+            throws IOException, InterruptedException {
+        while (true) {
+            final byte[] command;
+            synchronized (this) {
+                while (mState == State.PAUSED && mCommands.isEmpty()) {
+                    wait();
+                }
+                if (mState != State.STREAMING && mState != State.PAUSED) {
+                    return false;
+                }
+                command = mCommands.poll();
+            }
+            if (command == null) {
+                return true;
+            }
+            final int len = command.length - 1;
+            if (journal != null) {
+                journal.sent(command, len, fileLine);
+            }
+            if (!send(command, len)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends one line of {@code len} bytes held in {@code line}, which must
+     * have room for a terminator, once flow control allows it.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean send(byte[] line, int len) throws IOException, InterruptedException {
+        if (mResendWindow == null) {
+            line[len] = '\n';
+            return transmit(line, len + 1, -1);
+        }
+
+        final int lineNumber = mNextLineNumber;
+        int frameLength = -1;
+        if (mBinaryCodec != null) {
+            frameLength = mBinaryCodec.encode(line, 0, len, lineNumber & 0xffff, mFrame, 0);
+        }
+        if (frameLength < 0) {
+            frameLength = GCodeChecksum.frame(line, 0, len, lineNumber, mFrame, 0);
+        }
+        mResendWindow.put(lineNumber, mFrame, 0, frameLength);
+        mNextLineNumber = lineNumber + 1;
+        return transmit(mFrame, frameLength, lineNumber);
+    }
+
+    /**
+     * Writes a frame once flow control allows it, first serving any resend
+     * request that comes in while waiting.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean transmit(byte[] frame, int len, int lineNumber)
+            throws IOException, InterruptedException {
+        while (true) {
+            final int credit = awaitCredit(len, lineNumber);
+            if (credit == CREDIT_CANCELLED) {
+                return false;
+            }
+            if (credit == CREDIT_GRANTED) {
+                mIoManager.writeAsync(frame, 0, len);
+                return true;
+            }
+            if (!resend(lineNumber >= 0 ? lineNumber : mNextLineNumber)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends again, from the resend window, every line from the one requested
+     * up to but excluding {@code limit}.
+     *
+     * @return {@code false} if streaming was cancelled meanwhile
+     */
+    private boolean resend(int limit) throws IOException, InterruptedException {
+        int n = takeResendLine();
+        Log.w(TAG, "Resending from line " + n);
+        Tracer.trace(TRACE_RESEND, n, limit);
+        while (n < limit) {
+            if (!mResendWindow.contains(n)) {
+                throw new IOException("Line " + n + " is no longer in the resend window.");
+            }
+            if (isTaken(n)) {
+                // Got through before the request that named it was answered.
+                n++;
+                continue;
+            }
+            final int len = mResendWindow.length(n);
+            final int credit = awaitCredit(len, n);
+            if (credit == CREDIT_CANCELLED) {
+                return false;
+            }
+            if (credit == CREDIT_RESEND) {
+                n = takeResendLine();
+                continue;
+            }
+            mIoManager.writeAsync(mResendWindow.frame(n), 0, len);
+            n++;
+        }
+        return true;
+    }
+
+    private synchronized boolean isTaken(int lineNumber) {
+        return lineNumber <= mAckedLine;
+    }
+
+    private synchronized int takeResendLine() {
+        final int n = mResendFrom;
+        mResendFrom = -1;
+        return n;
+    }
+
+    private boolean finish(State state) {
+        synchronized (this) {
+            if (mState != State.STREAMING && mState != State.PAUSED) {
+                return false;
+            }
+            mState = state;
+            notifyAll();
+        }
+        mCallback.onStateChanged(this, state);
+        return true;
+    }
+
+    /**
+     * Blocks until a line of {@code length} bytes may be sent, and records it
+     * as in flight, unless a resend request has to be served first.
+     *
+     * @return one of {@link #CREDIT_GRANTED}, {@link #CREDIT_CANCELLED} or
+     *         {@link #CREDIT_RESEND}
+     */
+    private synchronized int awaitCredit(int length, int lineNumber) throws InterruptedException {
+        while (true) {
+            if (mState != State.STREAMING && mState != State.PAUSED) {
+                return CREDIT_CANCELLED;
+            }
+            if (mResendFrom >= 0) {
+                return CREDIT_RESEND;
+            }
+            if (hasRoom(length)) {
+                break;
+            }
+            if (isSettled(mInFlightHead)) {
+                final long quiet = System.nanoTime() - mLastReplyTime;
+                final long timeout = mStaleTimeoutMs * 1000000L;
+                if (quiet < timeout || mIoManager.getQueuedBytes() > 0) {
+                    wait(Math.max(10, (timeout - quiet) / 1000000L));
+                } else {
+                    retireSettled();
+                }
+                continue;
+            }
+            wait();
+        }
+        if (lineNumber == mPendingResendLine) {
+            // From here on another request for it is a new one.
+            mPendingResendLine = -1;
+        }
+        final int slot = (mInFlightHead + mOutstanding) % mInFlight.length;
+        mInFlight[slot] = length;
+        mInFlightLine[slot] = lineNumber;
+        mInFlightSent[slot] = System.nanoTime();
+        mOutstanding++;
+        mOutstandingBytes += length;
+        return CREDIT_GRANTED;
+    }
+
+    private boolean hasRoom(int length) {
+        if (mOutstanding == 0) {
+            // Always let one line through, even one larger than the buffer.
+            return true;
+        }
+        return mOutstanding < mInFlight.length
+                && mOutstandingBytes + length <= mRxBufferSize;
+    }
+
+    /**
+     * Whether every line sent has been acknowledged. Numbered frames may
+     * still be in flight then: copies the firmware will refuse.
+     */
+    private boolean isAcknowledged() {
+        if (mResendWindow != null) {
+            return mAckedLine >= mNextLineNumber - 1;
+        }
+        return mOutstanding == 0;
+    }
+
+    private boolean awaitDrained() throws IOException, InterruptedException {
+        while (true) {
+            synchronized (this) {
+                while ((mState == State.STREAMING || mState == State.PAUSED)
+                        && !isAcknowledged() && mResendFrom < 0) {
+                    wait();
+                }
+                if (mState != State.STREAMING && mState != State.PAUSED) {
+                    return false;
+                }
+                if (mResendFrom < 0) {
+                    return true;
+                }
+            }
+            if (!resend(mNextLineNumber)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Length of the command on a line once comments and surrounding
+     * whitespace are stripped, which is what has to fit in
+     * {@link #MAX_LINE_LENGTH}. {@code len} is the length of the whole line,
+     * of which {@code line} may hold only the start; a command with no
+     * comment in the buffer counts as running to the end of the line.
+     */
+    static int commandLength(byte[] line, int len) {
+        final int held = Math.min(len, line.length);
+        int end = -1;
+        for (int i = 0; i < held; i++) {
+            if (line[i] == ';') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (len > held) {
+                return len;
+            }
+            end = len;
+        }
+        while (end > 0 && line[end - 1] <= ' ') {
+            end--;
+        }
+        int start = 0;
+        while (start < end && line[start] <= ' ') {
+            start++;
+        }
+        return end - start;
+    }
+
+    /**
+     * Drops comments and surrounding whitespace.
+     *
+     * @return the new length, zero if nothing is left to send
+     */
+    private static int stripLine(byte[] line, int len) {
+        for (int i = 0; i < len; i++) {
+            if (line[i] == ';') {
+                len = i;
+                break;
+            }
+        }
+        while (len > 0 && line[len - 1] <= ' ') {
+            len--;
+        }
+        int start = 0;
+        while (start < len && line[start] <= ' ') {
+            start++;
+        }
+        if (start > 0) {
+            System.arraycopy(line, start, line, 0, len - start);
+            len -= start;
+        }
+        return len;
+    }
+
+    /**
+     * Feeds raw bytes received from the printer, for callers that do not
+     * parse replies themselves. Lines are reassembled across calls.
+     */
+    public void onReceived(byte[] data, int off, int len) {
+        mParser.feed(data, off, len);
+    }
+
+    /** Handles one reply from the printer; every "ok" releases the next line. */
+    @Override
+    public void onResponse(Response response) {
+        mLastReplyTime = System.nanoTime();
+        switch (response.getType()) {
+            case OK:
+                onAck();
+                break;
+            case RESEND:
+                onResend(response.getLineNumber());
+                break;
+            default:
+                if (mNegotiating && response.contains(REPETIER)) {
+                    mRepetierDetected = true;
+                }
+                break;
+        }
+    }
+
+    /**
+     * The firmware dropped everything from line {@code reported} on, and the
+     * "ok" that follows the request does not acknowledge any of them. Lines
+     * still on the wire will be refused, each with another request for the
+     * same line; those that arrive before it has been sent again are only
+     * acknowledged. Later ones cannot be told from a refused copy, so the
+     * line is sent again; should the earlier copy get through after all, the
+     * firmware refuses the extra one and asks for the line after it.
+     *
+     * Frames stay counted against the firmware's buffer until a reply
+     * accounts for them. A request shows the firmware read the line it
+     * refused, and the lines before {@code reported} it had taken: so at
+     * least the first copy of the line before, and one frame after it. Frames
+     * it flushed without a word are only accounted for once a line sent after
+     * them is acknowledged, or it has been silent for the stale timeout.
+     */
+    private void onResend(int reported) {
+        if (reported < 0) {
+            return;
+        }
+        int n = reported;
+        if (mBinaryCodec != null) {
+            // Binary frames only carry the low 16 bits of the line number.
+            final int next = mNextLineNumber;
+            n = next - ((next - reported) & 0xffff);
+        }
+        synchronized (this) {
+            mIgnoredOks++;
+            mFramesAnswered++;
+            retireThrough(n - 1);
+            if (mOutstanding > 0) {
+                retire();
+            }
+            retireAnswered();
+            mResendRequestTime = System.nanoTime();
+            notifyAll();
+            if (n == mPendingResendLine || n <= mAckedLine) {
+                return;
+            }
+            int dropped = 0;
+            for (int i = 0; i < mOutstanding; i++) {
+                if (mInFlightLine[(mInFlightHead + i) % mInFlight.length] >= n) {
+                    dropped++;
+                }
+            }
+            Tracer.trace(TRACE_RESEND_REQUEST, n, dropped);
+            mPendingResendLine = n;
+            if (mResendFrom < 0 || n < mResendFrom) {
+                mResendFrom = n;
+            }
+        }
+    }
+
+    /** Forgets the oldest frame in flight, which the firmware has read. */
+    private void retire() {
+        mOutstandingBytes -= mInFlight[mInFlightHead];
+        mInFlightHead = (mInFlightHead + 1) % mInFlight.length;
+        mOutstanding--;
+        mFramesRetired++;
+    }
+
+    /**
+     * Whether the frame in {@code slot} will never be taken: a copy of a line
+     * already taken, or one sent before the last resend request. Each is
+     * either refused with a reply or was flushed without one.
+     */
+    private boolean isSettled(int slot) {
+        if (mOutstanding == 0) {
+            return false;
+        }
+        final int line = mInFlightLine[slot];
+        return line >= 0 && (line <= mAckedLine || mInFlightSent[slot] < mResendRequestTime);
+    }
+
+    /**
+     * Forgets the settled frames at the head of the flight record. Any still
+     * unread have had ample time to be refused, so the rest were flushed.
+     */
+    private void retireSettled() {
+        final int outstanding = mOutstanding;
+        final int bytes = mOutstandingBytes;
+        while (isSettled(mInFlightHead)) {
+            retire();
+        }
+        Log.w(TAG, "Retired " + (outstanding - mOutstanding) + " frames flushed by the firmware");
+        Tracer.trace(TRACE_STALE, outstanding - mOutstanding, bytes - mOutstandingBytes);
+    }
+
+    /** Retires frames until at least as many as have been answered are gone. */
+    private void retireAnswered() {
+        while (mFramesRetired < mFramesAnswered && mOutstanding > 0) {
+            retire();
+        }
+    }
+
+    /**
+     * Retires every frame up to and including the first copy of line
+     * {@code lineNumber}. Whichever copy the firmware took, it read that one
+     * and everything sent before it.
+     *
+     * @return when that copy was sent, or -1 if it was no longer in flight
+     */
+    private long retireThrough(int lineNumber) {
+        if (lineNumber <= mRetiredLine) {
+            // Already retired through the copy taken, or one before it.
+            return -1;
+        }
+        mRetiredLine = lineNumber;
+        for (int i = 0; i < mOutstanding; i++) {
+            final int slot = (mInFlightHead + i) % mInFlight.length;
+            if (mInFlightLine[slot] == lineNumber) {
+                final long sent = mInFlightSent[slot];
+                for (int j = 0; j <= i; j++) {
+                    retire();
+                }
+                return sent;
+            }
+        }
+        return -1;
+    }
+
+    private void recordAck(int lineNumber, long sent) {
+        final long latency = System.nanoTime() - sent;
+        mMetrics.recordAckLatency(latency);
+        Tracer.trace(TRACE_ACK, lineNumber, latency / 1000);
+    }
+
+    private void onAck() {
+        final long acked;
+        final PrintJournal journal;
+        long journalSeq = -1;
+        synchronized (this) {
+            if (mIgnoredOks > 0) {
+                mIgnoredOks--;
+                return;
+            }
+            final int line;
+            if (mOutstanding > 0 && mInFlightLine[mInFlightHead] < 0) {
+                line = -1;
+                mFramesAnswered++;
+                recordAck(line, mInFlightSent[mInFlightHead]);
+                retire();
+            } else if (mAckedLine < mNextLineNumber - 1) {
+                line = ++mAckedLine;
+                mFramesAnswered++;
+                // Resent copies queued behind the one taken stay counted
+                // until the firmware has refused them.
+                final long sent = retireThrough(line);
+                if (sent >= 0) {
+                    recordAck(line, sent);
+                }
+                if (mPendingResendLine >= 0 && line >= mPendingResendLine) {
+                    mPendingResendLine = -1;
+                }
+            } else {
+                return;
+            }
+            retireAnswered();
+            acked = ++mLinesAcked;
+            journal = mJournal;
+            if (mJournalBase >= 0) {
+                // Negative for protocol lines still in flight at the start.
+                journalSeq = (line >= 0 ? line : acked - 1) - mJournalBase;
+            }
+            notifyAll();
+        }
+        if (journalSeq >= 0) {
+            journal.acked(journalSeq);
+        }
+
+        final long total = mTotalBytes;
+        final long read = mBytesRead;
+        final int permille = total == 0 ? 1000 : (int) (read * 1000 / total);
+        if (permille != mLastPermille) {
+            mLastPermille = permille;
+            mCallback.onProgress(this, acked, read, total);
+        }
+    }
+}
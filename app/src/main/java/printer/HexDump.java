@@ -18,15 +18,110 @@
 
 package printer;
 
+import java.io.IOException;
+
 /**
  * Clone of Android's HexDump class, for use in debugging. Cosmetic changes
- * only.
+ * only, plus the {@code dumpHex} variants, which write into caller-supplied
+ * storage and do not allocate.
  */
 public class HexDump {
     private final static char[] HEX_DIGITS = {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
     };
 
+    // Both hex digits of every byte value, and what it shows as in the text
+    // column.
+    private final static char[] HEX_PAIRS = new char[512];
+    private final static char[] PRINTABLE = new char[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            HEX_PAIRS[2 * b] = HEX_DIGITS[b >>> 4];
+            HEX_PAIRS[2 * b + 1] = HEX_DIGITS[b & 0x0F];
+            PRINTABLE[b] = (b > ' ' && b < '~') ? (char) b : '.';
+        }
+    }
+
+    private final static int BYTES_PER_LINE = 16;
+    // "\n0x" + address + " XX" per byte + " " + text column.
+    private final static int CHARS_PER_LINE = 3 + 8 + 3 * BYTES_PER_LINE + 1 + BYTES_PER_LINE;
+
+    /** Upper bound of the characters {@link #dumpHex} writes for {@code length} bytes. */
+    public static int dumpHexLength(int length) {
+        return Math.max(1, (length + BYTES_PER_LINE - 1) / BYTES_PER_LINE) * CHARS_PER_LINE;
+    }
+
+    /**
+     * Formats like {@link #dumpHexString(byte[], int, int)} into {@code dest},
+     * which needs {@link #dumpHexLength(int)} characters from {@code destOff}.
+     * Addresses start at {@code address}, and the text column is shown for
+     * every line, including a full last one.
+     *
+     * @return the number of characters written
+     */
+    public static int dumpHex(byte[] array, int offset, int length, int address,
+            char[] dest, int destOff) {
+        int out = destOff;
+        int i = 0;
+        do {
+            final int count = Math.min(BYTES_PER_LINE, length - i);
+            dest[out++] = '\n';
+            dest[out++] = '0';
+            dest[out++] = 'x';
+            out = putAddress(address + i, dest, out);
+            for (int j = 0; j < count; j++) {
+                final int b = (array[offset + i + j] & 0xFF) << 1;
+                dest[out++] = ' ';
+                dest[out++] = HEX_PAIRS[b];
+                dest[out++] = HEX_PAIRS[b + 1];
+            }
+            for (int j = 3 * (BYTES_PER_LINE - count) + 1; j > 0; j--) {
+                dest[out++] = ' ';
+            }
+            for (int j = 0; j < count; j++) {
+                dest[out++] = PRINTABLE[array[offset + i + j] & 0xFF];
+            }
+            i += BYTES_PER_LINE;
+        } while (i < length);
+        return out - destOff;
+    }
+
+    /**
+     * Same as {@link #dumpHex(byte[], int, int, int, char[], int)}, appending
+     * to {@code out} one character at a time.
+     */
+    public static void dumpHex(byte[] array, int offset, int length, int address,
+            Appendable out) throws IOException {
+        int i = 0;
+        do {
+            final int count = Math.min(BYTES_PER_LINE, length - i);
+            out.append('\n').append('0').append('x');
+            final int a = address + i;
+            for (int shift = 28; shift >= 0; shift -= 4) {
+                out.append(HEX_DIGITS[(a >>> shift) & 0x0F]);
+            }
+            for (int j = 0; j < count; j++) {
+                final int b = (array[offset + i + j] & 0xFF) << 1;
+                out.append(' ').append(HEX_PAIRS[b]).append(HEX_PAIRS[b + 1]);
+            }
+            for (int j = 3 * (BYTES_PER_LINE - count) + 1; j > 0; j--) {
+                out.append(' ');
+            }
+            for (int j = 0; j < count; j++) {
+                out.append(PRINTABLE[array[offset + i + j] & 0xFF]);
+            }
+            i += BYTES_PER_LINE;
+        } while (i < length);
+    }
+
+    private static int putAddress(int address, char[] dest, int out) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            dest[out++] = HEX_DIGITS[(address >>> shift) & 0x0F];
+        }
+        return out;
+    }
+
     public static String dumpHexString(byte[] array) {
         return dumpHexString(array, 0, array.length);
     }
@@ -0,0 +1,105 @@
+package printer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs, such as latencies in
+ * nanoseconds or transfer sizes in bytes.
+ *
+ * Buckets are log-linear: every power of two is split into eight, so any
+ * percentile is reported within 12.5% of the true value while the whole range
+ * of a long fits in under 500 counters. Recording is a couple of atomic
+ * increments and never allocates; readers see a consistent enough picture for
+ * monitoring without stopping writers.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : mTotal.get() / count;
+    }
+
+    /**
+     * Smallest bucket bound that at least {@code percentile} percent of the
+     * recorded values fall under, 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= wanted) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /** Forgets everything recorded so far. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        final long upper = lower + (1L << shift) - 1;
+        // The top buckets reach past Long.MAX_VALUE.
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,180 @@
+package printer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms describing how the serial link is doing, kept by
+ * {@link SerialIOManager} and the {@link GCodeStreamer} using it.
+ *
+ * Everything is updated lock-free by the I/O threads and can be read at any
+ * time from any thread, typically by taking a {@link Snapshot} now and then
+ * and comparing it with the previous one for rates. {@link #dump(File)}
+ * appends a readable report to a file, for looking into a stuttering print
+ * after the fact.
+ */
+public class LinkMetrics {
+
+    private final long mStartNanos = System.nanoTime();
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mReadTimeouts = new AtomicLong();
+    private final AtomicLong mShortWrites = new AtomicLong();
+    private final AtomicLong mWriteErrors = new AtomicLong();
+
+    // Written by the writer thread only.
+    private volatile int mQueueDepth;
+    private volatile int mMaxQueueDepth;
+
+    private final Histogram mReadSizes = new Histogram();
+    private final Histogram mWriteSizes = new Histogram();
+    private final Histogram mAckLatency = new Histogram();
+
+    /** A transfer from the printer of {@code bytes}, 0 meaning it timed out. */
+    public void recordRead(int bytes) {
+        if (bytes <= 0) {
+            mReadTimeouts.incrementAndGet();
+            return;
+        }
+        mBytesRead.addAndGet(bytes);
+        mReadSizes.record(bytes);
+    }
+
+    /** A write of {@code requested} bytes to the printer, of which {@code written} went out. */
+    public void recordWrite(int requested, int written) {
+        if (written > 0) {
+            mBytesWritten.addAndGet(written);
+            mWriteSizes.record(written);
+        }
+        if (written < requested) {
+            mShortWrites.incrementAndGet();
+        }
+    }
+
+    public void recordWriteError() {
+        mWriteErrors.incrementAndGet();
+    }
+
+    /** Bytes waiting in the transmit queue; call from the writer thread only. */
+    public void recordQueueDepth(int bytes) {
+        mQueueDepth = bytes;
+        if (bytes > mMaxQueueDepth) {
+            mMaxQueueDepth = bytes;
+        }
+    }
+
+    /** Time from sending a command to its "ok". */
+    public void recordAckLatency(long nanos) {
+        mAckLatency.record(nanos);
+    }
+
+    public Histogram getReadSizes() {
+        return mReadSizes;
+    }
+
+    public Histogram getWriteSizes() {
+        return mWriteSizes;
+    }
+
+    public Histogram getAckLatency() {
+        return mAckLatency;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** Appends a report of the current figures to {@code file}. */
+    public void dump(File file) throws IOException {
+        final Writer out = new FileWriter(file, true);
+        try {
+            writeReport(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeReport(Appendable out) throws IOException {
+        final Snapshot s = snapshot();
+        out.append("Link metrics at ").append(new Date().toString()).append('\n');
+        out.append(String.format(Locale.US, "  uptime        %.1f s%n", s.elapsedNanos / 1e9));
+        out.append(String.format(Locale.US, "  rx            %d bytes, %.0f B/s, %d read timeouts%n",
+                s.bytesRead, s.getReadBytesPerSecond(null), s.readTimeouts));
+        out.append(String.format(Locale.US,
+                "  tx            %d bytes, %.0f B/s, %d short writes, %d write errors%n",
+                s.bytesWritten, s.getWriteBytesPerSecond(null), s.shortWrites, s.writeErrors));
+        out.append(String.format(Locale.US, "  tx queue      %d bytes now, %d max%n",
+                s.queueDepth, s.maxQueueDepth));
+        appendHistogram(out, "  read size   ", mReadSizes, 1, "B");
+        appendHistogram(out, "  write size  ", mWriteSizes, 1, "B");
+        appendHistogram(out, "  ack latency ", mAckLatency, 1000, "us");
+        out.append('\n');
+    }
+
+    private static void appendHistogram(Appendable out, String label, Histogram h,
+            long scale, String unit) throws IOException {
+        out.append(String.format(Locale.US,
+                "%s  n=%d mean=%d p50=%d p90=%d p99=%d p99.9=%d max=%d %s%n",
+                label, h.getCount(), h.getMean() / scale,
+                h.getValueAtPercentile(50) / scale, h.getValueAtPercentile(90) / scale,
+                h.getValueAtPercentile(99) / scale, h.getValueAtPercentile(99.9) / scale,
+                h.getMax() / scale, unit));
+    }
+
+    /** The counters at one point in time. */
+    public static final class Snapshot {
+        public final long elapsedNanos;
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final long readTimeouts;
+        public final long shortWrites;
+        public final long writeErrors;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long acks;
+        public final long ackLatencyP50Nanos;
+        public final long ackLatencyP99Nanos;
+        public final long ackLatencyMaxNanos;
+
+        Snapshot(LinkMetrics m) {
+            elapsedNanos = System.nanoTime() - m.mStartNanos;
+            bytesRead = m.mBytesRead.get();
+            bytesWritten = m.mBytesWritten.get();
+            readTimeouts = m.mReadTimeouts.get();
+            shortWrites = m.mShortWrites.get();
+            writeErrors = m.mWriteErrors.get();
+            queueDepth = m.mQueueDepth;
+            maxQueueDepth = m.mMaxQueueDepth;
+            acks = m.mAckLatency.getCount();
+            ackLatencyP50Nanos = m.mAckLatency.getValueAtPercentile(50);
+            ackLatencyP99Nanos = m.mAckLatency.getValueAtPercentile(99);
+            ackLatencyMaxNanos = m.mAckLatency.getMax();
+        }
+
+        /** Receive rate since {@code previous}, or since the start if null. */
+        public double getReadBytesPerSecond(Snapshot previous) {
+            return rate(bytesRead - (previous != null ? previous.bytesRead : 0), previous);
+        }
+
+        /** Transmit rate since {@code previous}, or since the start if null. */
+        public double getWriteBytesPerSecond(Snapshot previous) {
+            return rate(bytesWritten - (previous != null ? previous.bytesWritten : 0), previous);
+        }
+
+        /** Commands acknowledged per second since {@code previous}, or since the start. */
+        public double getAcksPerSecond(Snapshot previous) {
+            return rate(acks - (previous != null ? previous.acks : 0), previous);
+        }
+
+        private double rate(long delta, Snapshot previous) {
+            final long nanos = elapsedNanos - (previous != null ? previous.elapsedNanos : 0);
+            return nanos <= 0 ? 0 : delta * 1e9 / nanos;
+        }
+    }
+}
@@ -0,0 +1,808 @@
+package printer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints a print as it goes, so that if the app or the device dies the
+ * print can be picked up again from the last line the printer acknowledged.
+ *
+ * The {@link GCodeStreamer} tells the journal about every line as it sends
+ * it, from which the journal follows the modal state the firmware will be in
+ * once that line is done: position, feedrate, temperatures, fan, absolute or
+ * relative moves and extrusion. That state is kept per line in a ring of
+ * preallocated slots. An acknowledgement only stores the line's sequence
+ * number in a volatile, so the thread delivering replies does no more work
+ * than before.
+ *
+ * A writer thread of its own wakes every {@link #setInterval interval}, and
+ * if anything was acknowledged since it last looked, writes the state of the
+ * newest acknowledged line and forces it to storage. However many lines are
+ * acknowledged meanwhile, that is one write and one sync, and a slow sync
+ * only delays the next checkpoint. A checkpoint is therefore at most an
+ * interval behind, and "ok" means queued rather than moved, so the printer
+ * may be up to a planner's worth of moves short of it.
+ *
+ * The file holds two fixed-size records, written in turn, each with a
+ * generation number and a CRC32, so a write torn by a crash leaves the
+ * previous record to fall back on. Record layout, all big-endian: magic,
+ * version, generation, wall-clock time, the G-code's length and modification
+ * time, the zero-based line acknowledged, flags, a reserved int, then X, Y, Z,
+ * E, feedrate (mm/min), hotend and bed targets (C) and fan speed (0-255) as
+ * doubles, the G-code's path as a length-prefixed UTF-8 string, and the CRC
+ * of everything before it in the last four bytes. Millimetres are assumed;
+ * G20 is not followed.
+ *
+ * One instance serves one stream at a time: {@link #begin} blocks until the
+ * previous stream has {@link #end ended}.
+ */
+public class PrintJournal {
+
+    private static final String TAG = PrintJournal.class.getSimpleName();
+
+    /** Longest a checkpoint lags behind the acknowledged line by default. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    public static final int E = 3;
+
+    static final int MAGIC = 0x504a524e; // "PJRN"
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 1024;
+
+    // Record offsets.
+    private static final int STATE_OFFSET = 56;
+    private static final int PATH_OFFSET = STATE_OFFSET + 8 * 8;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final int MAX_PATH_BYTES = CRC_OFFSET - PATH_OFFSET - 4;
+
+    // Flags: which axes are known, and the modes.
+    private static final int KNOWN_X = 1;
+    private static final int RELATIVE = 1 << 4;
+    private static final int RELATIVE_E = 1 << 5;
+    // Set in the last record of a stream that finished or was cancelled.
+    private static final int DONE = 1 << 6;
+
+    // Per line: X, Y, Z, E, feedrate, hotend, bed, fan.
+    private static final int FEEDRATE = 4;
+    private static final int HOTEND = 5;
+    private static final int BED = 6;
+    private static final int FAN = 7;
+    private static final int VALUES = 8;
+
+    private final File mFile;
+
+    // Synchronized by 'this'
+    private long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private Thread mWriter;
+    private boolean mStopping;
+
+    // Fixed while a stream runs; written by begin().
+    private RandomAccessFile mRaf;
+    private byte[] mPath;
+    private long mSourceLength;
+    private long mSourceModified;
+    private int mMask;
+
+    // What the firmware is left with after the last line seen. Only touched
+    // by the streaming thread.
+    private final double[] mState = new double[VALUES];
+    private int mFlags;
+    private long mNextSeq;
+    // The current line's words, by letter; see parse().
+    private int mCommand;
+    private int mCode;
+    private int mWords;
+    private final double[] mValues = new double[26];
+    private int mNumberEnd;
+
+    // State after each line in flight, by sequence number. Synchronized by
+    // mSlotLock, which the writer only holds while copying one slot out.
+    private final Object mSlotLock = new Object();
+    private long[] mSlots = new long[0];
+    private long[] mSlotLines;
+    private int[] mSlotFlags;
+    private double[] mSlotValues;
+
+    // Newest line acknowledged, or -1.
+    private volatile long mAcked = -1;
+
+    // Only touched by the writer thread.
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final double[] mCopy = new double[VALUES];
+    private final CRC32 mCrc = new CRC32();
+    private long mWrittenSeq = -1;
+    private long mGeneration;
+
+    // Written by the writer thread.
+    private volatile long mWrites;
+    private volatile long mWriteNanos;
+    private volatile long mMaxWriteNanos;
+
+    public PrintJournal(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Sets how often the newest acknowledged state is written out. */
+    public synchronized void setInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Bad interval: " + millis);
+        }
+        mIntervalMillis = millis;
+    }
+
+    public synchronized long getInterval() {
+        return mIntervalMillis;
+    }
+
+    /** Checkpoints written, across streams. */
+    public long getWrites() {
+        return mWrites;
+    }
+
+    /** Mean time a checkpoint took to write and sync. */
+    public long getMeanWriteNanos() {
+        final long writes = mWrites;
+        return writes == 0 ? 0 : mWriteNanos / writes;
+    }
+
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    /**
+     * Starts journaling a stream of {@code source}, with up to
+     * {@code inFlight} lines sent and not acknowledged at a time. The state
+     * followed starts unknown. Waits for any previous stream to end first.
+     */
+    public void begin(File source, int inFlight) throws IOException, InterruptedException {
+        final byte[] path = source.getAbsolutePath().getBytes("UTF-8");
+        if (path.length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long to journal: " + source);
+        }
+        synchronized (this) {
+            while (mWriter != null) {
+                wait();
+            }
+            // Emptied first, so a crash cannot leave the last stream's
+            // records to be taken for this one's.
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(2 * RECORD_SIZE);
+                raf.getChannel().force(true);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            mRaf = raf;
+            mPath = path;
+            mSourceLength = source.length();
+            mSourceModified = source.lastModified();
+
+            // Twice what can be in flight, so the writer can still find the
+            // newest acknowledged line while the next ones go out.
+            int capacity = 1;
+            while (capacity < 2 * inFlight) {
+                capacity <<= 1;
+            }
+            synchronized (mSlotLock) {
+                if (mSlots.length != capacity) {
+                    mSlots = new long[capacity];
+                    mSlotLines = new long[capacity];
+                    mSlotFlags = new int[capacity];
+                    mSlotValues = new double[capacity * VALUES];
+                }
+                mMask = capacity - 1;
+            }
+            Arrays.fill(mState, 0);
+            mFlags = 0;
+            mNextSeq = 0;
+            mAcked = -1;
+            mWrittenSeq = -1;
+            mGeneration = 0;
+            mStopping = false;
+            mWriter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "PrintJournal");
+            mWriter.start();
+        }
+        Log.i(TAG, "Journaling " + source + " to " + mFile);
+    }
+
+    /**
+     * Follows a line that is not part of the file, such as a command sent
+     * before it to restore state.
+     */
+    public void update(byte[] line, int len) {
+        if (!parse(line, len)) {
+            return;
+        }
+        if (mCommand == 'G') {
+            updateMotion();
+        } else if (mCommand == 'M') {
+            updateMachine();
+        }
+    }
+
+    /**
+     * Follows zero-based line {@code fileLine} of the file, about to be sent
+     * as {@code line}, and records the state it leaves.
+     *
+     * @return the sequence number to {@link #acked acknowledge} it by
+     */
+    public long sent(byte[] line, int len, long fileLine) {
+        update(line, len);
+        final long seq = mNextSeq++;
+        synchronized (mSlotLock) {
+            final int slot = (int) seq & mMask;
+            mSlots[slot] = seq;
+            mSlotLines[slot] = fileLine;
+            mSlotFlags[slot] = mFlags;
+            System.arraycopy(mState, 0, mSlotValues, slot * VALUES, VALUES);
+        }
+        return seq;
+    }
+
+    /**
+     * The printer acknowledged the line sent as {@code seq}, and with it every
+     * line before. Cheap enough to call on the thread delivering replies.
+     */
+    public void acked(long seq) {
+        mAcked = seq;
+    }
+
+    /**
+     * Stops journaling, after writing out the last line acknowledged. If the
+     * stream is {@code done}, because it finished or was cancelled on
+     * purpose, the checkpoint is marked so that it is not offered again.
+     */
+    public void end(boolean done) {
+        final Thread writer;
+        synchronized (this) {
+            writer = mWriter;
+            if (writer == null) {
+                return;
+            }
+            mStopping = true;
+            notifyAll();
+        }
+        // It is at most one sync away from stopping, and must not be left
+        // writing into the next stream's file.
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (done) {
+                writeDone();
+            }
+        } finally {
+            synchronized (this) {
+                try {
+                    mRaf.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close journal: " + e.getMessage());
+                }
+                mRaf = null;
+                mWriter = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /** The writer thread: checkpoints the newest acknowledged line, at most once an interval. */
+    private void write() {
+        while (true) {
+            final boolean stopping;
+            synchronized (this) {
+                if (!mStopping) {
+                    try {
+                        wait(mIntervalMillis);
+                    } catch (InterruptedException e) {
+                        mStopping = true;
+                    }
+                }
+                stopping = mStopping;
+            }
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // Retried next time round; the previous record still stands.
+                Log.w(TAG, "Failed to write checkpoint: " + e.getMessage());
+            }
+            if (stopping) {
+                return;
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        long seq = mAcked;
+        if (seq <= mWrittenSeq) {
+            return;
+        }
+        long fileLine;
+        int flags;
+        while (true) {
+            synchronized (mSlotLock) {
+                final int slot = (int) seq & mMask;
+                if (mSlots[slot] == seq) {
+                    fileLine = mSlotLines[slot];
+                    flags = mSlotFlags[slot];
+                    System.arraycopy(mSlotValues, slot * VALUES, mCopy, 0, VALUES);
+                    break;
+                }
+            }
+            // Overwritten since it was read, so a newer line was acknowledged.
+            seq = mAcked;
+        }
+        writeRecord(fileLine, flags, mCopy);
+        mWrittenSeq = seq;
+    }
+
+    private void writeDone() {
+        try {
+            if (mWrittenSeq < 0) {
+                // Nothing acknowledged, so nothing of this stream on disk;
+                // an older checkpoint must not be offered either.
+                writeRecord(-1, DONE, mCopy);
+                return;
+            }
+            writeRecord(mRecord.getLong(40), mRecord.getInt(48) | DONE, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close checkpoint: " + e.getMessage());
+        }
+    }
+
+    /** Writes a record over the older of the two, {@code values} null to keep the last ones. */
+    private void writeRecord(long fileLine, int flags, double[] values) throws IOException {
+        final long start = System.nanoTime();
+        final long generation = ++mGeneration;
+        final ByteBuffer record = mRecord;
+        record.putInt(0, MAGIC);
+        record.putInt(4, VERSION);
+        record.putLong(8, generation);
+        record.putLong(16, System.currentTimeMillis());
+        record.putLong(24, mSourceLength);
+        record.putLong(32, mSourceModified);
+        record.putLong(40, fileLine);
+        record.putInt(48, flags);
+        record.putInt(52, 0);
+        if (values != null) {
+            for (int i = 0; i < VALUES; i++) {
+                record.putDouble(STATE_OFFSET + 8 * i, values[i]);
+            }
+        }
+        record.putInt(PATH_OFFSET, mPath.length);
+        for (int i = 0; i < mPath.length; i++) {
+            record.put(PATH_OFFSET + 4 + i, mPath[i]);
+        }
+        mCrc.reset();
+        mCrc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt(CRC_OFFSET, (int) mCrc.getValue());
+
+        final FileChannel channel = mRaf.getChannel();
+        final long position = (generation & 1) * RECORD_SIZE;
+        record.clear();
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+        // File contents only; the length was set once in begin().
+        channel.force(false);
+
+        final long nanos = System.nanoTime() - start;
+        mWrites++;
+        mWriteNanos += nanos;
+        if (nanos > mMaxWriteNanos) {
+            mMaxWriteNanos = nanos;
+        }
+    }
+
+    /**
+     * Reads the newest checkpoint in {@code file}.
+     *
+     * @return it, or null if there is none or the stream it was for ended
+     */
+    public static Checkpoint read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final ByteBuffer[] records = new ByteBuffer[2];
+        try {
+            final FileChannel channel = raf.getChannel();
+            for (int i = 0; i < 2; i++) {
+                final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                while (record.hasRemaining()
+                        && channel.read(record, i * RECORD_SIZE + record.position()) > 0) {
+                    // Keep reading.
+                }
+                if (!record.hasRemaining() && isValid(record)) {
+                    records[i] = record;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        ByteBuffer newest = records[0];
+        if (records[1] != null && (newest == null || records[1].getLong(8) > newest.getLong(8))) {
+            newest = records[1];
+        }
+        if (newest == null || (newest.getInt(48) & DONE) != 0 || newest.getLong(40) < 0) {
+            return null;
+        }
+        return new Checkpoint(newest);
+    }
+
+    private static boolean isValid(ByteBuffer record) {
+        if (record.getInt(0) != MAGIC || record.getInt(4) != VERSION) {
+            return false;
+        }
+        final int pathLength = record.getInt(PATH_OFFSET);
+        if (pathLength < 0 || pathLength > MAX_PATH_BYTES) {
+            return false;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        return record.getInt(CRC_OFFSET) == (int) crc.getValue();
+    }
+
+    private void updateMotion() {
+        final int words = mWords;
+        final double[] state = mState;
+        switch (mCode) {
+            case 0: case 1: case 2: case 3:
+                for (int a = X; a <= E; a++) {
+                    final int letter = a == E ? 'E' - 'A' : 'X' - 'A' + a;
+                    if ((words & (1 << letter)) == 0) {
+                        continue;
+                    }
+                    final double v = mValues[letter];
+                    final boolean relative = (mFlags & (a == E ? RELATIVE_E : RELATIVE)) != 0;
+                    if (relative) {
+                        state[a] += v;
+                    } else {
+                        state[a] = v;
+                        mFlags |= KNOWN_X << a;
+                    }
+                }
+                if ((words & (1 << ('F' - 'A'))) != 0) {
+                    state[FEEDRATE] = mValues['F' - 'A'];
+                }
+                break;
+            case 28:
+                // Where home is depends on the machine; the next absolute
+                // move tells. Only the axes named, or all of them.
+                final boolean all = (words & (7 << ('X' - 'A'))) == 0;
+                for (int a = X; a <= Z; a++) {
+                    if (all || (words & (1 << ('X' - 'A' + a))) != 0) {
+                        mFlags &= ~(KNOWN_X << a);
+                    }
+                }
+                break;
+            case 90:
+                mFlags &= ~(RELATIVE | RELATIVE_E);
+                break;
+            case 91:
+                mFlags |= RELATIVE | RELATIVE_E;
+                break;
+            case 92:
+                final boolean none = (words & ((7 << ('X' - 'A')) | (1 << ('E' - 'A')))) == 0;
+                for (int a = X; a <= E; a++) {
+                    final int letter = a == E ? 'E' - 'A' : 'X' - 'A' + a;
+                    if (none || (words & (1 << letter)) != 0) {
+                        state[a] = none ? 0 : mValues[letter];
+                        mFlags |= KNOWN_X << a;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void updateMachine() {
+        final boolean s = (mWords & (1 << ('S' - 'A'))) != 0;
+        final double value = mValues['S' - 'A'];
+        switch (mCode) {
+            case 82:
+                mFlags &= ~RELATIVE_E;
+                break;
+            case 83:
+                mFlags |= RELATIVE_E;
+                break;
+            case 104: case 109:
+                if (s) {
+                    mState[HOTEND] = value;
+                }
+                break;
+            case 140: case 190:
+                if (s) {
+                    mState[BED] = value;
+                }
+                break;
+            case 106:
+                mState[FAN] = s ? value : 255;
+                break;
+            case 107:
+                mState[FAN] = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Splits {@code line} into {@link #mCommand}, {@link #mCode} and the
+     * words after, as GCodeAnalyzer does. Lines that are not G or M commands,
+     * or carry text, are left alone.
+     *
+     * @return false if there is nothing to follow on the line
+     */
+    private boolean parse(byte[] line, int len) {
+        mCommand = 0;
+        mWords = 0;
+        int i = 0;
+        while (i < len) {
+            int b = line[i];
+            if (b == ';' || b == '*') {
+                break;
+            }
+            if (b <= ' ') {
+                i++;
+                continue;
+            }
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b < 'A' || b > 'Z') {
+                return false;
+            }
+            final double value = number(line, i + 1, len);
+            i = mNumberEnd;
+            if (mCommand == 0) {
+                if (b == 'N') {
+                    continue;
+                }
+                if (b != 'G' && b != 'M') {
+                    return false;
+                }
+                mCommand = b;
+                mCode = (int) value;
+                if (b == 'M' && (mCode == 117 || mCode == 118)) {
+                    return false;
+                }
+                continue;
+            }
+            mWords |= 1 << (b - 'A');
+            mValues[b - 'A'] = value;
+        }
+        return mCommand != 0;
+    }
+
+    /**
+     * Reads a plain decimal number at {@code start}, leaving
+     * {@link #mNumberEnd} after it.
+     *
+     * @return the number, or 0 if there is none
+     */
+    private double number(byte[] line, int start, int len) {
+        int i = start;
+        while (i < len && line[i] == ' ') {
+            i++;
+        }
+        boolean negative = false;
+        if (i < len && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        long scale = 1;
+        boolean fraction = false;
+        for (; i < len; i++) {
+            final int c = line[i];
+            if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (fraction) {
+                        scale *= 10;
+                    }
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        mNumberEnd = digits > 0 || fraction ? i : start;
+        final double value = (double) mantissa / scale;
+        return negative ? -value : value;
+    }
+
+    /** The state of a print at the last line the printer acknowledged. */
+    public static final class Checkpoint {
+
+        private final File mSource;
+        private final long mSourceLength;
+        private final long mSourceModified;
+        private final long mTime;
+        private final long mLine;
+        private final int mFlags;
+        private final double[] mValues = new double[VALUES];
+
+        Checkpoint(ByteBuffer record) {
+            mTime = record.getLong(16);
+            mSourceLength = record.getLong(24);
+            mSourceModified = record.getLong(32);
+            mLine = record.getLong(40);
+            mFlags = record.getInt(48);
+            for (int i = 0; i < VALUES; i++) {
+                mValues[i] = record.getDouble(STATE_OFFSET + 8 * i);
+            }
+            final byte[] path = new byte[record.getInt(PATH_OFFSET)];
+            for (int i = 0; i < path.length; i++) {
+                path[i] = record.get(PATH_OFFSET + 4 + i);
+            }
+            String name;
+            try {
+                name = new String(path, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            mSource = new File(name);
+        }
+
+        public File getSource() {
+            return mSource;
+        }
+
+        /** Whether the G-code is still there, unchanged since the checkpoint. */
+        public boolean isCurrent() {
+            return mSource.isFile() && mSource.length() == mSourceLength
+                    && mSource.lastModified() == mSourceModified;
+        }
+
+        /** Wall-clock time it was written, in milliseconds. */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** Zero-based line last acknowledged; resuming starts after it. */
+        public long getLine() {
+            return mLine;
+        }
+
+        /** One of {@link #X}, {@link #Y}, {@link #Z} or {@link #E}. */
+        public double getPosition(int axis) {
+            return mValues[axis];
+        }
+
+        /** Whether the axis had been homed, set or moved to absolutely. */
+        public boolean isPositionKnown(int axis) {
+            return (mFlags & (KNOWN_X << axis)) != 0;
+        }
+
+        /** In mm/min, 0 if none was set. */
+        public double getFeedrate() {
+            return mValues[FEEDRATE];
+        }
+
+        public double getHotendTemperature() {
+            return mValues[HOTEND];
+        }
+
+        public double getBedTemperature() {
+            return mValues[BED];
+        }
+
+        /** 0 to 255. */
+        public double getFanSpeed() {
+            return mValues[FAN];
+        }
+
+        public boolean isRelative() {
+            return (mFlags & RELATIVE) != 0;
+        }
+
+        public boolean isExtrusionRelative() {
+            return (mFlags & RELATIVE_E) != 0;
+        }
+
+        /**
+         * Lines that bring a printer that lost power, or the host, back to
+         * this state: heat up, home clear of the print, return to the
+         * position and restore the modes.
+         *
+         * @param homeAll home every axis, for printers whose Z homes away
+         *                from the bed such as deltas; otherwise X and Y are
+         *                homed and Z, which holds its place unpowered, is
+         *                taken as it was
+         */
+        public List<String> getResumeGCode(boolean homeAll) {
+            if (!isPositionKnown(Z)) {
+                throw new IllegalStateException("Z not known; cannot resume.");
+            }
+            final List<String> lines = new ArrayList<String>();
+            final double z = mValues[Z];
+            if (mValues[BED] > 0) {
+                lines.add("M140 S" + format(mValues[BED]));
+            }
+            if (mValues[HOTEND] > 0) {
+                lines.add("M104 S" + format(mValues[HOTEND]));
+            }
+            if (homeAll) {
+                lines.add("G28");
+                lines.add("G90");
+            } else {
+                // Off the print before anything moves sideways.
+                lines.add("G92 Z" + format(z));
+                lines.add("G90");
+                lines.add("G1 Z" + format(z + 2) + " F600");
+                lines.add("G28 X Y");
+            }
+            if (mValues[BED] > 0) {
+                lines.add("M190 S" + format(mValues[BED]));
+            }
+            if (mValues[HOTEND] > 0) {
+                lines.add("M109 S" + format(mValues[HOTEND]));
+            }
+            if (isPositionKnown(X) && isPositionKnown(Y)) {
+                lines.add("G1 X" + format(mValues[X]) + " Y" + format(mValues[Y])
+                        + " Z" + format(z + 2) + " F3000");
+            }
+            lines.add("G1 Z" + format(z) + " F600");
+            lines.add("G92 E" + format(mValues[E]));
+            lines.add(mValues[FAN] > 0 ? "M106 S" + format(mValues[FAN]) : "M107");
+            // G91 switches E as well, so it goes first.
+            if (isRelative()) {
+                lines.add("G91");
+            }
+            lines.add(isExtrusionRelative() ? "M83" : "M82");
+            if (mValues[FEEDRATE] > 0) {
+                lines.add("G1 F" + format(mValues[FEEDRATE]));
+            }
+            return lines;
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.US, "%.4f", value).replaceAll("\\.?0+$", "");
+        }
+
+        @Override
+        public String toString() {
+            return mSource.getName() + " at line " + (mLine + 1) + ", Z "
+                    + (isPositionKnown(Z) ? format(mValues[Z]) : "?") + ", " + new Date(mTime);
+        }
+    }
+}
@@ -10,6 +10,9 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Printer {
 
     private static final String TAG = Printer.class.getSimpleName();
@@ -46,7 +49,7 @@ public class Printer {
             Log.d(TAG, "Device found: " + String.format("%04X:%04X",
                     d.getVendorId(), d.getProductId()));
 
-            if (d.getVendorId() == VID && d.getProductId() == PID) {
+            if (isPrinter(d)) {
                 Log.d(TAG, "Device is printer.");
                 return d;
 
@@ -55,4 +58,27 @@ public class Printer {
         return null;
     }
 
+    /**
+     * Every attached printer, for running several off one host. Unlike
+     * {@link #findPrinter} this ignores the activity's intent.
+     */
+    public static List<UsbDevice> findPrinters(Context context) {
+        UsbManager usbManager = (UsbManager) context
+                .getApplicationContext()
+                .getSystemService(Context.USB_SERVICE);
+
+        final List<UsbDevice> printers = new ArrayList<UsbDevice>();
+        for (final UsbDevice d : usbManager.getDeviceList().values()) {
+            if (isPrinter(d)) {
+                printers.add(d);
+            }
+        }
+        Log.d(TAG, "Found " + printers.size() + " printers.");
+        return printers;
+    }
+
+    public static boolean isPrinter(UsbDevice device) {
+        return device.getVendorId() == VID && device.getProductId() == PID;
+    }
+
 }
@@ -0,0 +1,184 @@
+package printer;
+
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * One printer as {@link DeviceRegistry} knows it: who it is, how its line
+ * is set up, and the {@link SerialIOManager} talking to it.
+ *
+ * The link outlives the USB device. When the cable drops the port is closed
+ * but the manager is kept, with its listeners and whatever was still queued
+ * for sending. When the same printer comes back it gets a new port with the
+ * same line parameters, and the manager carries on where it stopped. DTR and
+ * RTS are left as the new port comes up rather than asserted again, since
+ * asserting DTR is the edge that resets most boards.
+ */
+public class PrinterLink {
+
+    private static final String TAG = PrinterLink.class.getSimpleName();
+
+    // How long to wait for the old I/O threads to let go of the port.
+    private static final long STOP_WAIT_MILLIS = 1000;
+
+    public enum State {
+        CONNECTED,
+        DISCONNECTED
+    }
+
+    private final String mKey;
+    private final int mVendorId;
+    private final int mProductId;
+    private final String mSerial;
+    private final SerialIOManager mIoManager;
+
+    // Synchronized by 'this'
+    private State mState = State.DISCONNECTED;
+    private UsbDevice mDevice;
+    private ArduinoUsbPort mPort;
+    private int mBaudRate = 115200;
+    private int mDataBits = ArduinoUsbPort.DATABITS_8;
+    private int mStopBits = ArduinoUsbPort.STOPBITS_1;
+    private int mParity = ArduinoUsbPort.PARITY_NONE;
+    private boolean mDtr;
+    private boolean mRts;
+    private int mConnects;
+    private long mDisconnectedNanos;
+    private long mLastReconnectNanos;
+
+    PrinterLink(String key, int vendorId, int productId, String serial) {
+        mKey = key;
+        mVendorId = vendorId;
+        mProductId = productId;
+        mSerial = serial;
+        mIoManager = new SerialIOManager(null);
+    }
+
+    /** Identifies the printer across reconnects: vendor, product and serial number. */
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getVendorId() {
+        return mVendorId;
+    }
+
+    public int getProductId() {
+        return mProductId;
+    }
+
+    /** USB serial number, or null if the device has none. */
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /** The same manager for the life of the link, connected or not. */
+    public SerialIOManager getIoManager() {
+        return mIoManager;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /** The device as currently enumerated, or null while disconnected. */
+    public synchronized UsbDevice getDevice() {
+        return mDevice;
+    }
+
+    /** Number of times the port was opened, the first time included. */
+    public synchronized int getConnectCount() {
+        return mConnects;
+    }
+
+    /** From the device going away to the port being back up, the last time it did. */
+    public synchronized long getLastReconnectNanos() {
+        return mLastReconnectNanos;
+    }
+
+    /** Applied now if connected, and on every reconnect. */
+    public synchronized void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+        mBaudRate = baudRate;
+        mDataBits = dataBits;
+        mStopBits = stopBits;
+        mParity = parity;
+        if (mPort != null) {
+            mPort.setParameters(baudRate, dataBits, stopBits, parity);
+        }
+    }
+
+    /** Applied now if connected, and on the first connect. */
+    public synchronized void setDTR(boolean value) throws IOException {
+        mDtr = value;
+        if (mPort != null) {
+            mPort.setDTR(value);
+        }
+    }
+
+    /** Applied now if connected, and on the first connect. */
+    public synchronized void setRTS(boolean value) throws IOException {
+        mRts = value;
+        if (mPort != null) {
+            mPort.setRTS(value);
+        }
+    }
+
+    /**
+     * Waits for the manager to let go of the previous port, then sets up a
+     * freshly opened {@code port} and hands it over. Blocks for up to a
+     * second, so call it off the main thread. The caller starts the manager.
+     */
+    void attach(UsbDevice device, ArduinoUsbPort port) throws IOException {
+        try {
+            if (!mIoManager.awaitStopped(STOP_WAIT_MILLIS)) {
+                throw new IOException("Previous connection still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        synchronized (this) {
+            port.setParameters(mBaudRate, mDataBits, mStopBits, mParity);
+            if (mConnects == 0) {
+                if (mDtr) {
+                    port.setDTR(true);
+                }
+                if (mRts) {
+                    port.setRTS(true);
+                }
+            }
+            mIoManager.setTransport(port);
+            mDevice = device;
+            mPort = port;
+            mState = State.CONNECTED;
+            if (mConnects++ > 0) {
+                mLastReconnectNanos = System.nanoTime() - mDisconnectedNanos;
+            }
+        }
+    }
+
+    /** Stops the manager and closes the port, keeping everything else. */
+    synchronized void detach() {
+        if (mState == State.DISCONNECTED) {
+            return;
+        }
+        mState = State.DISCONNECTED;
+        mDisconnectedNanos = System.nanoTime();
+        mIoManager.stop();
+        try {
+            // Also wakes a reader blocked on the port, which stop() cannot.
+            mPort.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + mPort + ": " + e.getMessage());
+        }
+        mPort = null;
+        mDevice = null;
+    }
+
+    @Override
+    public String toString() {
+        return mKey;
+    }
+}
@@ -0,0 +1,445 @@
+package printer;
+
+/**
+ * Encodes G-code lines into the binary wire format understood by Repetier
+ * firmware, and decodes them back.
+ *
+ * A frame is a 16 bit parameter mask (bit 7 always set, which is what tells
+ * the firmware it is not ASCII), an optional second mask for the V2 format,
+ * the values of the parameters present in a fixed order, and a two byte
+ * Fletcher-16 checksum (mod 255) over everything before it. Numbers are
+ * little-endian: N, and G/M in V2, are 16 bit; G/M in V1 and T are 8 bit;
+ * S and P are signed 32 bit; everything else is an IEEE float.
+ *
+ * Typical moves come out at roughly half the size of their ASCII form and
+ * carry their own checksum.
+ */
+public class RepetierBinaryCodec {
+
+    private static final int MAX_TEXT_V1 = 16;
+    private static final int MAX_TEXT_V2 = 79;
+
+    /** No frame is longer than this. */
+    public static final int MAX_FRAME_LENGTH =
+            2 + 2 + 1           // masks and text length
+            + 2 + 2 + 2         // N, M, G
+            + 5 * 4 + 1 + 4 + 4 // X Y Z E F, T, S, P
+            + 11 * 4            // V2 floats
+            + MAX_TEXT_V2 + 2;  // text and checksum
+
+    // First parameter mask.
+    private static final int HAS_N = 1;
+    private static final int HAS_M = 1 << 1;
+    private static final int HAS_G = 1 << 2;
+    private static final int HAS_X = 1 << 3;
+    private static final int HAS_Y = 1 << 4;
+    private static final int HAS_Z = 1 << 5;
+    private static final int HAS_E = 1 << 6;
+    private static final int BINARY = 1 << 7;
+    private static final int HAS_F = 1 << 8;
+    private static final int HAS_T = 1 << 9;
+    private static final int HAS_S = 1 << 10;
+    private static final int HAS_P = 1 << 11;
+    private static final int V2 = 1 << 12;
+    private static final int HAS_TEXT = 1 << 15;
+
+    // Second parameter mask (V2 only), in wire order.
+    private static final byte[] V2_LETTERS = {
+            'I', 'J', 'R', 'D', 'C', 'H', 'A', 'B', 'K', 'L', 'O'
+    };
+
+    // Commands whose argument is free text.
+    private static final int[] TEXT_COMMANDS = { 20, 23, 28, 29, 30, 32, 117, 118 };
+
+    // Parsed parameters of the line being encoded. Indexed by letter - 'A'.
+    private final boolean[] mHas = new boolean[26];
+    private final float[] mFloat = new float[26];
+    private final long[] mInt = new long[26];
+    private int mTextStart;
+    private int mTextLength;
+
+    /**
+     * Encodes one line, without terminator or comments, into {@code dst}.
+     *
+     * @param lineNumber the N to send, or -1 for none
+     * @return the frame length, or -1 if the line uses something the binary
+     *         format cannot express and must go out as ASCII instead
+     */
+    public int encode(byte[] src, int off, int len, int lineNumber, byte[] dst, int dstOff) {
+        if (!parse(src, off, off + len)) {
+            return -1;
+        }
+        if (lineNumber >= 0) {
+            mHas['N' - 'A'] = true;
+            mInt['N' - 'A'] = lineNumber;
+        }
+
+        final boolean hasG = mHas['G' - 'A'];
+        final boolean hasM = mHas['M' - 'A'];
+        if (!hasG && !hasM && !mHas['T' - 'A']) {
+            return -1;
+        }
+
+        int params = BINARY;
+        int params2 = 0;
+        boolean v2 = mTextLength > MAX_TEXT_V1
+                || (hasG && mInt['G' - 'A'] > 255) || (hasM && mInt['M' - 'A'] > 255);
+        for (int i = 0; i < V2_LETTERS.length; i++) {
+            if (mHas[V2_LETTERS[i] - 'A']) {
+                params2 |= 1 << i;
+                v2 = true;
+            }
+        }
+        if (mTextLength > MAX_TEXT_V2) {
+            return -1;
+        }
+        if (mHas['N' - 'A']) params |= HAS_N;
+        if (hasM) params |= HAS_M;
+        if (hasG) params |= HAS_G;
+        if (mHas['X' - 'A']) params |= HAS_X;
+        if (mHas['Y' - 'A']) params |= HAS_Y;
+        if (mHas['Z' - 'A']) params |= HAS_Z;
+        if (mHas['E' - 'A']) params |= HAS_E;
+        if (mHas['F' - 'A']) params |= HAS_F;
+        if (mHas['T' - 'A']) params |= HAS_T;
+        if (mHas['S' - 'A']) params |= HAS_S;
+        if (mHas['P' - 'A']) params |= HAS_P;
+        if (mTextStart >= 0) params |= HAS_TEXT;
+        if (v2) params |= V2;
+
+        int p = dstOff;
+        p = putShort(dst, p, params);
+        if (v2) {
+            p = putShort(dst, p, params2);
+            if (mTextStart >= 0) {
+                dst[p++] = (byte) mTextLength;
+            }
+        }
+        if (mHas['N' - 'A']) p = putShort(dst, p, (int) mInt['N' - 'A']);
+        if (v2) {
+            if (hasM) p = putShort(dst, p, (int) mInt['M' - 'A']);
+            if (hasG) p = putShort(dst, p, (int) mInt['G' - 'A']);
+        } else {
+            if (hasM) dst[p++] = (byte) mInt['M' - 'A'];
+            if (hasG) dst[p++] = (byte) mInt['G' - 'A'];
+        }
+        if (mHas['X' - 'A']) p = putFloat(dst, p, mFloat['X' - 'A']);
+        if (mHas['Y' - 'A']) p = putFloat(dst, p, mFloat['Y' - 'A']);
+        if (mHas['Z' - 'A']) p = putFloat(dst, p, mFloat['Z' - 'A']);
+        if (mHas['E' - 'A']) p = putFloat(dst, p, mFloat['E' - 'A']);
+        if (mHas['F' - 'A']) p = putFloat(dst, p, mFloat['F' - 'A']);
+        if (mHas['T' - 'A']) dst[p++] = (byte) mInt['T' - 'A'];
+        if (mHas['S' - 'A']) p = putInt(dst, p, (int) mInt['S' - 'A']);
+        if (mHas['P' - 'A']) p = putInt(dst, p, (int) mInt['P' - 'A']);
+        for (byte letter : V2_LETTERS) {
+            if (mHas[letter - 'A']) p = putFloat(dst, p, mFloat[letter - 'A']);
+        }
+        if (mTextStart >= 0) {
+            System.arraycopy(src, mTextStart, dst, p, mTextLength);
+            p += mTextLength;
+            if (!v2) {
+                // V1 text is a fixed, zero padded field.
+                for (int i = mTextLength; i < MAX_TEXT_V1; i++) {
+                    dst[p++] = 0;
+                }
+            }
+        }
+
+        return appendChecksum(dst, dstOff, p) - dstOff;
+    }
+
+    /**
+     * Splits the line into words. Integers are kept exactly so S and P can be
+     * checked for range; everything is also kept as float.
+     *
+     * @return {@code false} if the line cannot be expressed in binary
+     */
+    private boolean parse(byte[] src, int start, int end) {
+        for (int i = 0; i < mHas.length; i++) {
+            mHas[i] = false;
+        }
+        mTextStart = -1;
+        mTextLength = 0;
+
+        int i = start;
+        while (i < end) {
+            final byte b = src[i];
+            if (b <= ' ') {
+                i++;
+                continue;
+            }
+            if (b == ';' || b == '*') {
+                break;
+            }
+            final int letter = (b >= 'a' && b <= 'z' ? b - 'a' + 'A' : b) - 'A';
+            if (letter < 0 || letter >= 26 || mHas[letter]) {
+                return false;
+            }
+            i++;
+
+            int numberEnd = i;
+            while (numberEnd < end && isNumberChar(src[numberEnd])) {
+                numberEnd++;
+            }
+            if (!parseNumber(src, i, numberEnd, letter)) {
+                return false;
+            }
+            i = numberEnd;
+
+            if (letter == 'M' - 'A' && isTextCommand((int) mInt[letter])) {
+                while (i < end && src[i] == ' ') {
+                    i++;
+                }
+                int textEnd = end;
+                while (textEnd > i && src[textEnd - 1] <= ' ') {
+                    textEnd--;
+                }
+                mTextStart = i;
+                mTextLength = textEnd - i;
+                break;
+            }
+        }
+
+        // Letters the format has no slot for.
+        for (int l = 0; l < 26; l++) {
+            if (mHas[l] && !isEncodable(l + 'A')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseNumber(byte[] src, int start, int end, int letter) {
+        if (start == end) {
+            // A bare letter ("G28 X") means zero to the firmware.
+            mHas[letter] = true;
+            mFloat[letter] = 0f;
+            mInt[letter] = 0;
+            return true;
+        }
+        int i = start;
+        boolean negative = false;
+        if (src[i] == '-' || src[i] == '+') {
+            negative = src[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean point = false;
+        boolean integral = true;
+        for (; i < end; i++) {
+            final byte c = src[i];
+            if (c == '.') {
+                if (point) {
+                    return false;
+                }
+                point = true;
+            } else if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits += mantissa == 0 ? 0 : 1;
+                    if (point) {
+                        scale++;
+                        if (c != '0') {
+                            integral = false;
+                        }
+                    }
+                } else if (!point) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        double value = mantissa;
+        for (int s = 0; s < scale; s++) {
+            value /= 10;
+        }
+        if (negative) {
+            value = -value;
+        }
+        mHas[letter] = true;
+        mFloat[letter] = (float) value;
+
+        final int ch = letter + 'A';
+        if (ch == 'N' || ch == 'M' || ch == 'G' || ch == 'T' || ch == 'S' || ch == 'P') {
+            if (!integral) {
+                return false;
+            }
+            long whole = mantissa;
+            for (int s = 0; s < scale; s++) {
+                whole /= 10;
+            }
+            whole = negative ? -whole : whole;
+            mInt[letter] = whole;
+            if (ch == 'S' || ch == 'P') {
+                return whole >= Integer.MIN_VALUE && whole <= Integer.MAX_VALUE;
+            }
+            return whole >= 0 && whole <= (ch == 'T' ? 255 : 65535);
+        }
+        return true;
+    }
+
+    private static boolean isEncodable(int letter) {
+        switch (letter) {
+            case 'N': case 'M': case 'G': case 'X': case 'Y': case 'Z': case 'E':
+            case 'F': case 'T': case 'S': case 'P':
+                return true;
+        }
+        for (byte l : V2_LETTERS) {
+            if (l == letter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTextCommand(int code) {
+        for (int c : TEXT_COMMANDS) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+';
+    }
+
+    /**
+     * Decodes a frame back into ASCII G-code, mostly for debugging and tests.
+     *
+     * @return the decoded line, or {@code null} if the frame is truncated or
+     *         its checksum is wrong
+     */
+    public static String decode(byte[] src, int off, int len) {
+        if (len < 4 || !checksumMatches(src, off, len)) {
+            return null;
+        }
+        final int end = off + len - 2;
+        int p = off;
+        final int params = getShort(src, p);
+        p += 2;
+        if ((params & BINARY) == 0) {
+            return null;
+        }
+        final boolean v2 = (params & V2) != 0;
+        int params2 = 0;
+        int textLength = MAX_TEXT_V1;
+        if (v2) {
+            params2 = getShort(src, p);
+            p += 2;
+            if ((params & HAS_TEXT) != 0) {
+                textLength = src[p++] & 0xff;
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        try {
+            if ((params & HAS_N) != 0) { word(sb, 'N').append(getShort(src, p)); p += 2; }
+            if ((params & HAS_M) != 0) {
+                word(sb, 'M').append(v2 ? getShort(src, p) : src[p] & 0xff);
+                p += v2 ? 2 : 1;
+            }
+            if ((params & HAS_G) != 0) {
+                word(sb, 'G').append(v2 ? getShort(src, p) : src[p] & 0xff);
+                p += v2 ? 2 : 1;
+            }
+            if ((params & HAS_X) != 0) { word(sb, 'X').append(getFloat(src, p)); p += 4; }
+            if ((params & HAS_Y) != 0) { word(sb, 'Y').append(getFloat(src, p)); p += 4; }
+            if ((params & HAS_Z) != 0) { word(sb, 'Z').append(getFloat(src, p)); p += 4; }
+            if ((params & HAS_E) != 0) { word(sb, 'E').append(getFloat(src, p)); p += 4; }
+            if ((params & HAS_F) != 0) { word(sb, 'F').append(getFloat(src, p)); p += 4; }
+            if ((params & HAS_T) != 0) { word(sb, 'T').append(src[p] & 0xff); p += 1; }
+            if ((params & HAS_S) != 0) { word(sb, 'S').append(getInt(src, p)); p += 4; }
+            if ((params & HAS_P) != 0) { word(sb, 'P').append(getInt(src, p)); p += 4; }
+            for (int i = 0; i < V2_LETTERS.length; i++) {
+                if ((params2 & (1 << i)) != 0) {
+                    word(sb, (char) V2_LETTERS[i]).append(getFloat(src, p));
+                    p += 4;
+                }
+            }
+            if ((params & HAS_TEXT) != 0) {
+                int n = 0;
+                while (n < textLength && src[p + n] != 0) {
+                    n++;
+                }
+                sb.append(' ').append(new String(src, p, n, "ISO-8859-1"));
+                p += textLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return p == end ? sb.toString() : null;
+    }
+
+    private static StringBuilder word(StringBuilder sb, char letter) {
+        if (sb.length() > 0) {
+            sb.append(' ');
+        }
+        return sb.append(letter);
+    }
+
+    /**
+     * Appends the Fletcher-16 (mod 255) checksum of {@code buf[off..end)}.
+     *
+     * @return the new end of the frame
+     */
+    static int appendChecksum(byte[] buf, int off, int end) {
+        int sum1 = 0;
+        int sum2 = 0;
+        for (int i = off; i < end; i++) {
+            sum1 = (sum1 + (buf[i] & 0xff)) % 255;
+            sum2 = (sum2 + sum1) % 255;
+        }
+        buf[end] = (byte) sum1;
+        buf[end + 1] = (byte) sum2;
+        return end + 2;
+    }
+
+    static boolean checksumMatches(byte[] buf, int off, int len) {
+        int sum1 = 0;
+        int sum2 = 0;
+        final int end = off + len - 2;
+        for (int i = off; i < end; i++) {
+            sum1 = (sum1 + (buf[i] & 0xff)) % 255;
+            sum2 = (sum2 + sum1) % 255;
+        }
+        return (buf[end] & 0xff) == sum1 && (buf[end + 1] & 0xff) == sum2;
+    }
+
+    private static int putShort(byte[] buf, int p, int v) {
+        buf[p] = (byte) v;
+        buf[p + 1] = (byte) (v >> 8);
+        return p + 2;
+    }
+
+    private static int putInt(byte[] buf, int p, int v) {
+        buf[p] = (byte) v;
+        buf[p + 1] = (byte) (v >> 8);
+        buf[p + 2] = (byte) (v >> 16);
+        buf[p + 3] = (byte) (v >> 24);
+        return p + 4;
+    }
+
+    private static int putFloat(byte[] buf, int p, float v) {
+        return putInt(buf, p, Float.floatToIntBits(v));
+    }
+
+    private static int getShort(byte[] buf, int p) {
+        return (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] buf, int p) {
+        return (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8
+                | (buf[p + 2] & 0xff) << 16 | (buf[p + 3] & 0xff) << 24;
+    }
+
+    private static float getFloat(byte[] buf, int p) {
+        return Float.intBitsToFloat(getInt(buf, p));
+    }
+}
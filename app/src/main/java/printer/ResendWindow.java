@@ -0,0 +1,70 @@
+package printer;
+
+/**
+ * The last few numbered frames sent to the printer, kept so a "Resend: N"
+ * from the firmware can be served straight from memory.
+ *
+ * Frames live in preallocated slots indexed by line number, so storing and
+ * looking one up is O(1) and allocation free. A line is only retained until
+ * {@link #capacity()} newer lines have been stored.
+ */
+public class ResendWindow {
+
+    private final byte[][] mFrames;
+    private final int[] mLengths;
+    private final int[] mLineNumbers;
+    private final int mMask;
+
+    /**
+     * @param capacity number of frames kept, rounded up to a power of two
+     * @param maxFrameLength the longest frame that will be stored
+     */
+    public ResendWindow(int capacity, int maxFrameLength) {
+        if (capacity <= 0 || capacity > (1 << 20)) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mFrames = new byte[size][maxFrameLength];
+        mLengths = new int[size];
+        mLineNumbers = new int[size];
+        mMask = size - 1;
+        clear();
+    }
+
+    public int capacity() {
+        return mFrames.length;
+    }
+
+    public void put(int lineNumber, byte[] frame, int off, int len) {
+        final int slot = lineNumber & mMask;
+        System.arraycopy(frame, off, mFrames[slot], 0, len);
+        mLengths[slot] = len;
+        mLineNumbers[slot] = lineNumber;
+    }
+
+    public boolean contains(int lineNumber) {
+        return mLineNumbers[lineNumber & mMask] == lineNumber;
+    }
+
+    /**
+     * The stored frame for {@code lineNumber}; only valid if
+     * {@link #contains(int)} and until that slot is reused.
+     */
+    public byte[] frame(int lineNumber) {
+        return mFrames[lineNumber & mMask];
+    }
+
+    public int length(int lineNumber) {
+        return mLengths[lineNumber & mMask];
+    }
+
+    public void clear() {
+        for (int i = 0; i < mLineNumbers.length; i++) {
+            // Never equal to the line number that maps to this slot.
+            mLineNumbers[i] = i - 1;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package printer;
+
+/**
+ * One line received from the printer, classified by {@link ResponseParser}.
+ *
+ * Instances are reused: a response is only valid during the
+ * {@link ResponseParser.Listener#onResponse} call that delivers it. Copy out
+ * whatever needs to outlive the callback.
+ */
+public final class Response {
+
+    public enum Type {
+        /** "ok", possibly followed by temperatures or other data. */
+        OK,
+        /** A temperature report on its own line ("T:210.0 /210.0 B:60 /60"). */
+        TEMPERATURE,
+        /** "Resend: N" or Repetier's "rs N". */
+        RESEND,
+        /** "echo:..." */
+        ECHO,
+        /** "Error:..." or Grbl's "error:..." */
+        ERROR,
+        /** Anything else, e.g. the start banner or an M115 reply. */
+        OTHER
+    }
+
+    /** Hotends beyond this many are not recorded. */
+    public static final int MAX_HOTENDS = 8;
+
+    Type mType;
+    final byte[] mLine;
+    int mLength;
+    boolean mTruncated;
+    int mMessageOffset;
+    int mLineNumber;
+
+    int mHotends;
+    final float[] mHotend = new float[MAX_HOTENDS];
+    final float[] mHotendTarget = new float[MAX_HOTENDS];
+    boolean mHasBed;
+    float mBed;
+    float mBedTarget;
+
+    Response(int maxLineLength) {
+        mLine = new byte[maxLineLength];
+        mHotends = MAX_HOTENDS;
+        reset();
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    /** The raw line, without terminator, in {@code getLine()[0..getLength())}. */
+    public byte[] getLine() {
+        return mLine;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /** {@code true} if the line was longer than the buffer and got cut. */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Offset in {@link #getLine()} of the text after the "echo:" or "Error:"
+     * prefix, 0 for other types.
+     */
+    public int getMessageOffset() {
+        return mMessageOffset;
+    }
+
+    /** The line asked for by a {@link Type#RESEND}, -1 otherwise. */
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /** {@code true} if the line carried at least one temperature. */
+    public boolean hasTemperatures() {
+        return mHotends > 0 || mHasBed;
+    }
+
+    /** Number of hotends reported, counting up to the highest index seen. */
+    public int getHotendCount() {
+        return mHotends;
+    }
+
+    public float getHotendTemperature(int index) {
+        return mHotend[index];
+    }
+
+    /** Target of hotend {@code index}, or {@link Float#NaN} if not given. */
+    public float getHotendTarget(int index) {
+        return mHotendTarget[index];
+    }
+
+    public boolean hasBed() {
+        return mHasBed;
+    }
+
+    public float getBedTemperature() {
+        return mBed;
+    }
+
+    /** Target of the bed, or {@link Float#NaN} if not given. */
+    public float getBedTarget() {
+        return mBedTarget;
+    }
+
+    /** {@code true} if the line starts with {@code prefix}, ASCII only. */
+    public boolean startsWith(String prefix) {
+        return regionMatches(0, prefix);
+    }
+
+    /** {@code true} if the line contains {@code text}, ASCII only. */
+    public boolean contains(String text) {
+        for (int i = 0; i + text.length() <= mLength; i++) {
+            if (regionMatches(i, text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatches(int offset, String text) {
+        if (offset + text.length() > mLength) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (mLine[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Copies the line into a new String; allocates, so not for hot paths. */
+    @Override
+    public String toString() {
+        final char[] chars = new char[mLength];
+        for (int i = 0; i < mLength; i++) {
+            chars[i] = (char) (mLine[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    void reset() {
+        mType = Type.OTHER;
+        mLength = 0;
+        mTruncated = false;
+        mMessageOffset = 0;
+        mLineNumber = -1;
+        for (int i = 0; i < mHotends; i++) {
+            mHotend[i] = 0f;
+            mHotendTarget[i] = Float.NaN;
+        }
+        mHotends = 0;
+        mHasBed = false;
+        mBed = 0f;
+        mBedTarget = Float.NaN;
+    }
+}
@@ -0,0 +1,277 @@
+package printer;
+
+/**
+ * Splits the byte stream coming back from the printer into lines and
+ * classifies each one as a {@link Response}.
+ *
+ * Chunks can be fed as they arrive, cut anywhere; a line is delivered once
+ * its terminator shows up. Everything works in place on one reusable
+ * {@link Response}, so steady-state parsing allocates nothing no matter how
+ * many replies come in. Not thread-safe: feed it from a single thread.
+ */
+public class ResponseParser {
+
+    public interface Listener {
+        /**
+         * Called for every complete, non-empty line. {@code response} is
+         * reused for the next line once this returns.
+         */
+        public void onResponse(Response response);
+    }
+
+    /** Lines longer than this are cut; see {@link Response#isTruncated()}. */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 256;
+
+    private final Listener mListener;
+    private final Response mResponse;
+
+    // Line being assembled, straight into the response buffer.
+    private int mLength;
+    private boolean mOverflow;
+
+    private long mLines;
+
+    public ResponseParser(Listener listener) {
+        this(listener, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public ResponseParser(Listener listener, int maxLineLength) {
+        mListener = listener;
+        mResponse = new Response(maxLineLength);
+    }
+
+    /** Number of lines delivered so far. */
+    public long getLineCount() {
+        return mLines;
+    }
+
+    /** Drops any partial line, e.g. after the printer has been reset. */
+    public void reset() {
+        mLength = 0;
+        mOverflow = false;
+    }
+
+    /**
+     * Feeds {@code data[off..off+len)}, delivering every line it completes.
+     * Both "\n" and "\r\n" terminate lines.
+     */
+    public void feed(byte[] data, int off, int len) {
+        final byte[] line = mResponse.mLine;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final byte b = data[i];
+            if (b == '\n' || b == '\r') {
+                if (mLength > 0) {
+                    dispatch();
+                }
+                mLength = 0;
+                mOverflow = false;
+            } else if (mLength < line.length) {
+                line[mLength++] = b;
+            } else {
+                mOverflow = true;
+            }
+        }
+    }
+
+    private void dispatch() {
+        final Response r = mResponse;
+        final int length = mLength;
+        final boolean overflow = mOverflow;
+        r.reset();
+        r.mLength = length;
+        r.mTruncated = overflow;
+        classify(r);
+        mLines++;
+        mListener.onResponse(r);
+    }
+
+    private static void classify(Response r) {
+        final byte[] line = r.mLine;
+        final int len = r.mLength;
+
+        int start = 0;
+        while (start < len && line[start] == ' ') {
+            start++;
+        }
+
+        if (matches(line, len, start, "ok") && (start + 2 == len || line[start + 2] == ' ')) {
+            r.mType = Response.Type.OK;
+            parseTemperatures(r, start + 2);
+        } else if (matches(line, len, start, "Resend:")) {
+            r.mType = Response.Type.RESEND;
+            r.mLineNumber = parseInt(line, len, start + 7);
+        } else if (matches(line, len, start, "rs ")) {
+            r.mType = Response.Type.RESEND;
+            r.mLineNumber = parseInt(line, len, start + 3);
+        } else if (matches(line, len, start, "echo:")) {
+            r.mType = Response.Type.ECHO;
+            r.mMessageOffset = start + 5;
+        } else if (matches(line, len, start, "Error:") || matches(line, len, start, "error:")) {
+            r.mType = Response.Type.ERROR;
+            r.mMessageOffset = start + 6;
+        } else if (isTemperatureWord(line, len, start)) {
+            r.mType = Response.Type.TEMPERATURE;
+            parseTemperatures(r, start);
+        }
+    }
+
+    private static boolean matches(byte[] line, int len, int offset, String prefix) {
+        if (offset + prefix.length() > len) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** "T:", "T<n>:" or "B:" at {@code i}. */
+    private static boolean isTemperatureWord(byte[] line, int len, int i) {
+        if (i + 1 >= len) {
+            return false;
+        }
+        if (line[i] == 'B') {
+            return line[i + 1] == ':';
+        }
+        if (line[i] != 'T') {
+            return false;
+        }
+        i++;
+        while (i < len && line[i] >= '0' && line[i] <= '9') {
+            i++;
+        }
+        return i < len && line[i] == ':';
+    }
+
+    /**
+     * Picks up every "T:cur /target", "Tn:cur /target" and "B:cur /target"
+     * word from {@code from} on. Other words ("@:", "B@:", "W:") are skipped.
+     */
+    private static void parseTemperatures(Response r, int from) {
+        final byte[] line = r.mLine;
+        final int len = r.mLength;
+        int i = from;
+        while (i < len) {
+            while (i < len && line[i] == ' ') {
+                i++;
+            }
+            if (i >= len) {
+                break;
+            }
+            if (!isTemperatureWord(line, len, i)) {
+                while (i < len && line[i] != ' ') {
+                    i++;
+                }
+                continue;
+            }
+
+            final boolean bed = line[i] == 'B';
+            int index = 0;
+            i++;
+            while (line[i] != ':') {
+                index = index * 10 + (line[i] - '0');
+                i++;
+            }
+            i++;
+
+            final int valueEnd = numberEnd(line, len, i);
+            final float value = parseFloat(line, i, valueEnd);
+            i = valueEnd;
+            float target = Float.NaN;
+            int j = i;
+            while (j < len && line[j] == ' ') {
+                j++;
+            }
+            if (j < len && line[j] == '/') {
+                j++;
+                final int targetEnd = numberEnd(line, len, j);
+                if (targetEnd > j) {
+                    target = parseFloat(line, j, targetEnd);
+                    i = targetEnd;
+                }
+            }
+
+            if (bed) {
+                r.mHasBed = true;
+                r.mBed = value;
+                r.mBedTarget = target;
+            } else if (index < Response.MAX_HOTENDS) {
+                r.mHotend[index] = value;
+                r.mHotendTarget[index] = target;
+                if (index >= r.mHotends) {
+                    r.mHotends = index + 1;
+                }
+            }
+        }
+    }
+
+    private static int numberEnd(byte[] line, int len, int i) {
+        while (i < len && ((line[i] >= '0' && line[i] <= '9') || line[i] == '.'
+                || line[i] == '-' || line[i] == '+')) {
+            i++;
+        }
+        return i;
+    }
+
+    /** Parses a plain decimal number; NaN if there are no digits. */
+    private static float parseFloat(byte[] line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        boolean digits = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            final byte c = line[i];
+            if (c == '.') {
+                if (fraction) {
+                    break;
+                }
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (mantissa < Long.MAX_VALUE / 10 - 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        scale++;
+                    }
+                } else if (!fraction) {
+                    scale--;
+                }
+            } else {
+                break;
+            }
+        }
+        if (!digits) {
+            return Float.NaN;
+        }
+        double value = mantissa;
+        if (scale > 0) {
+            value /= Math.pow(10, scale);
+        } else if (scale < 0) {
+            value *= Math.pow(10, -scale);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private static int parseInt(byte[] line, int len, int i) {
+        while (i < len && (line[i] < '0' || line[i] > '9')) {
+            i++;
+        }
+        if (i == len) {
+            return -1;
+        }
+        long n = 0;
+        while (i < len && line[i] >= '0' && line[i] <= '9' && n <= Integer.MAX_VALUE) {
+            n = n * 10 + (line[i++] - '0');
+        }
+        return n > Integer.MAX_VALUE ? -1 : (int) n;
+    }
+}
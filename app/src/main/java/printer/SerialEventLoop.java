@@ -0,0 +1,182 @@
+package printer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services many {@link SerialIOManager}s from a fixed number of threads,
+ * instead of the two threads each one takes when given its own
+ * {@link SerialIOManager#run()}.
+ *
+ * USB on Android has no way to wait on several devices at once, so each
+ * thread goes round its share of the links, sending whatever is queued and
+ * then reading with a short timeout. An idle link costs one short blocking
+ * read per round, and a busy one is served as soon as its round comes.
+ *
+ * Reads on a serviced port must honour their timeout. For an
+ * {@link ArduinoUsbPort} that means opening it with
+ * {@link ArduinoUsbPort#setReadRequestCount(int) setReadRequestCount(0)},
+ * since its request ring waits for data without one.
+ */
+public class SerialEventLoop {
+
+    private static final String TAG = SerialEventLoop.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS = 2;
+    /** Longest a read waits before moving on to the next link. */
+    public static final int DEFAULT_POLL_MILLIS = 2;
+    /** Longest a write may hold up the other links. */
+    public static final int DEFAULT_WRITE_MILLIS = 50;
+
+    private final Worker[] mWorkers;
+
+    private volatile int mPollMillis = DEFAULT_POLL_MILLIS;
+    private volatile int mWriteMillis = DEFAULT_WRITE_MILLIS;
+
+    // Synchronized by 'this'
+    private boolean mStarted;
+    private volatile boolean mShutdown;
+
+    public SerialEventLoop() {
+        this(DEFAULT_THREADS);
+    }
+
+    public SerialEventLoop(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Bad thread count: " + threads);
+        }
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Worker(TAG + "-" + i);
+        }
+    }
+
+    public void setPollMillis(int millis) {
+        if (millis <= 0) {
+            // A zero timeout means forever to bulkTransfer.
+            throw new IllegalArgumentException("Bad poll time: " + millis);
+        }
+        mPollMillis = millis;
+    }
+
+    public void setWriteMillis(int millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Bad write time: " + millis);
+        }
+        mWriteMillis = millis;
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /** Number of links being serviced. */
+    public int size() {
+        int size = 0;
+        for (Worker worker : mWorkers) {
+            size += worker.mManagers.size();
+        }
+        return size;
+    }
+
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("Already started.");
+        }
+        mStarted = true;
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Starts servicing {@code manager} on the least busy thread. It runs
+     * until {@link SerialIOManager#stop()} or an I/O error, which is
+     * reported to its listener as from {@link SerialIOManager#run()}.
+     *
+     * @throws IllegalStateException if the manager is already running
+     */
+    public void register(SerialIOManager manager) {
+        if (mShutdown) {
+            throw new IllegalStateException("Shut down.");
+        }
+        manager.attach();
+        Worker least = mWorkers[0];
+        for (Worker worker : mWorkers) {
+            if (worker.mManagers.size() < least.mManagers.size()) {
+                least = worker;
+            }
+        }
+        least.mManagers.add(manager);
+        LockSupport.unpark(least);
+    }
+
+    /** Stops every link and waits for the threads to finish. */
+    public void shutdown() {
+        mShutdown = true;
+        for (Worker worker : mWorkers) {
+            for (SerialIOManager manager : worker.mManagers) {
+                manager.stop();
+            }
+            LockSupport.unpark(worker);
+        }
+        boolean interrupted = false;
+        for (Worker worker : mWorkers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        final List<SerialIOManager> mManagers = new CopyOnWriteArrayList<SerialIOManager>();
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (mManagers.isEmpty()) {
+                    if (mShutdown) {
+                        break;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                final int pollMillis = mPollMillis;
+                final int writeMillis = mWriteMillis;
+                for (SerialIOManager manager : mManagers) {
+                    Exception error = null;
+                    try {
+                        if (manager.poll(pollMillis, writeMillis)) {
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        // One bad link must not take the others down.
+                        error = e;
+                    }
+                    mManagers.remove(manager);
+                    manager.detach(error);
+                }
+            }
+            Log.i(TAG, getName() + " stopped.");
+        }
+    }
+}
@@ -4,21 +4,36 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 public class SerialIOManager implements Runnable {
 
 	private static final String TAG = SerialIOManager.class.getSimpleName();
-	private static final boolean DEBUG = true;
+
+	private static final int TRACE_READ = Tracer.define(Tracer.DEBUG, "serial.read", "len=%d");
+	private static final int TRACE_WRITE = Tracer.define(Tracer.DEBUG, "serial.write",
+			"len=%d written=%d");
+	private static final int TRACE_WAKE = Tracer.define(Tracer.VERBOSE, "serial.wake",
+			"latency_us=%d");
 
 	private static final int READ_WAIT_MILLIS = 200;
 	private static final int BUFSIZ = 4096;
 
-	private final ArduinoUsbPort mPort;
+	/** Default size of the transmit ring, independent of {@link #BUFSIZ}. */
+	public static final int DEFAULT_TX_CAPACITY = 64 * 1024;
+
+	// Only replaced while stopped; read by the I/O threads.
+	private volatile SerialTransport mPort;
 
 	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
 
-	// Synchronized by 'mWriteBuffer'
-	private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+	// Filled by writeAsync() and friends, drained in place by step().
+	private final TransmitRing mWriteRing;
+
+	private final LinkMetrics mMetrics = new LinkMetrics();
+
+	// Checked once per transfer by both I/O threads.
+	private volatile SessionCapture mCapture;
 
 	private enum State {
 		STOPPED,
@@ -32,11 +47,44 @@ public class SerialIOManager implements Runnable {
 	// Synchronized by 'this'
 	private Listener mListener;
 
+	// Synchronized by 'this'
+	private IOException mReadError;
+
+	// Read once per line by the reader thread, so volatile rather than
+	// synchronized.
+	private volatile ResponseParser.Listener mResponseListener;
+
+	// Only touched by the reader thread.
+	private final ResponseParser mResponseParser = new ResponseParser(
+			new ResponseParser.Listener() {
+				@Override
+				public void onResponse(Response response) {
+					final ResponseParser.Listener listener = mResponseListener;
+					if (listener != null) {
+						listener.onResponse(response);
+					}
+				}
+			});
+
+	// Thread inside run(). It parks whenever the transmit ring is empty and
+	// is unparked by writers and by stop().
+	private volatile Thread mWriterThread;
+	private volatile boolean mWriterParked;
+	private volatile long mWakeRequestNanos;
+
+	// Wake-up latency stats. Written by the writer thread only.
+	private volatile long mWakeups;
+	private volatile long mWakeupLatencyTotalNanos;
+	private volatile long mLastWakeupLatencyNanos;
+	private volatile long mMaxWakeupLatencyNanos;
+
 	public interface Listener {
 		/**
-		 * Called when new incoming data is available.
+		 * Called when {@code data[off..off+len)} has arrived. The array is
+		 * the reader's own buffer, reused for the next read, so copy out
+		 * anything needed after returning.
 		 */
-		public void onNewData(byte[] data);
+		public void onNewData(byte[] data, int off, int len);
 
 		/**
 		 * Called when {@link SerialIOManager#run()} aborts due to an
@@ -48,48 +96,61 @@ public class SerialIOManager implements Runnable {
 	/**
 	 * Creates a new instance with no listener.
 	 */
-	public SerialIOManager(ArduinoUsbPort driver) {
+	public SerialIOManager(SerialTransport driver) {
 		this(driver, null);
 	}
 
 	/**
 	 * Creates a new instance with the provided listener.
 	 */
-	public SerialIOManager(ArduinoUsbPort port, Listener listener) {
+	public SerialIOManager(SerialTransport port, Listener listener) {
+		this(port, listener, new TransmitRing(DEFAULT_TX_CAPACITY, true));
+	}
+
+	/**
+	 * Creates a new instance draining the given transmit ring. Pass a
+	 * single-producer ring when only one thread ever writes.
+	 */
+	public SerialIOManager(SerialTransport port, Listener listener, TransmitRing writeRing) {
 		mPort = port;
 		mListener = listener;
+		mWriteRing = writeRing;
+	}
 
-		Log.d(TAG, "thread");
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				Log.d(TAG, "run");
-				try {
-					int len = mPort.read(mReadBuffer.array(), READ_WAIT_MILLIS);
-					if (len > 0) {
-						if (DEBUG) Log.d(TAG, "Read data len=" + len);
-						final Listener listener = getListener();
-
-						if (listener != null) {
-							final byte[] data = new byte[len];
-							mReadBuffer.get(data, 0, len);
-							listener.onNewData(data);
-							Log.d(TAG, "\""+new String(data, "ASCII")+"\"");
-						}
-
-						mReadBuffer.clear();
-					}
-				} catch (IOException e) {
-					Log.e(TAG, "IOException");
-				}
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				run();
+	/**
+	 * Swaps in a new port, e.g. after the device was unplugged and came
+	 * back. Whatever is still queued is sent on the new port once running
+	 * again.
+	 *
+	 * @throws IllegalStateException unless stopped
+	 */
+	public synchronized void setTransport(SerialTransport port) {
+		if (mState != State.STOPPED) {
+			throw new IllegalStateException("Still running.");
+		}
+		mPort = port;
+	}
+
+	public SerialTransport getTransport() {
+		return mPort;
+	}
+
+	/**
+	 * Waits for {@link #run()} or the event loop to let go after
+	 * {@link #stop()}.
+	 *
+	 * @return {@code false} if still running after {@code timeoutMillis}
+	 */
+	public synchronized boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (mState != State.STOPPED) {
+			final long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
 			}
-		}).start();
+			wait(left);
+		}
+		return true;
 	}
 
 	public synchronized void setListener(Listener listener) {
@@ -100,16 +161,129 @@ public class SerialIOManager implements Runnable {
 		return mListener;
 	}
 
-	public void writeAsync(byte[] data) {
-		synchronized (mWriteBuffer) {
-			mWriteBuffer.put(data);
+	/**
+	 * Sets who gets incoming data split into lines and parsed. Called on the
+	 * reader thread, so it must return quickly.
+	 */
+	public void setResponseListener(ResponseParser.Listener listener) {
+		mResponseListener = listener;
+	}
+
+	public ResponseParser.Listener getResponseListener() {
+		return mResponseListener;
+	}
+
+	/** Throughput and latency figures for this link. */
+	public LinkMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Starts recording every chunk read and written to {@code capture}, or
+	 * stops if null. The capture is not closed here.
+	 */
+	public void setCapture(SessionCapture capture) {
+		mCapture = capture;
+	}
+
+	public SessionCapture getCapture() {
+		return mCapture;
+	}
+
+	/** Number of bytes queued but not yet handed to the port. */
+	public int getQueuedBytes() {
+		return mWriteRing.size();
+	}
+
+	public void writeAsync(byte[] data) throws IOException {
+		writeAsync(data, 0, data.length);
+	}
+
+	/**
+	 * Queues data for sending, blocking until the transmit ring has room for
+	 * all of it.
+	 *
+	 * @throws IllegalArgumentException if the data is larger than the ring
+	 * @throws java.io.InterruptedIOException if interrupted while waiting
+	 */
+	public void writeAsync(byte[] data, int off, int len) throws IOException {
+		mWriteRing.put(data, off, len);
+		wakeWriter();
+	}
+
+	public boolean tryWriteAsync(byte[] data) {
+		return tryWriteAsync(data, 0, data.length);
+	}
+
+	/**
+	 * Queues data for sending if it fits entirely right now.
+	 *
+	 * @return {@code false} if the transmit ring is too full
+	 */
+	public boolean tryWriteAsync(byte[] data, int off, int len) {
+		if (!mWriteRing.offer(data, off, len)) {
+			return false;
+		}
+		wakeWriter();
+		return true;
+	}
+
+	/**
+	 * Queues data for sending if it fits entirely right now, otherwise
+	 * registers {@code listener} to be told when there is room for it.
+	 */
+	public boolean tryWriteAsync(byte[] data, TransmitRing.SpaceListener listener) {
+		if (!mWriteRing.offer(data, 0, data.length, listener)) {
+			return false;
+		}
+		wakeWriter();
+		return true;
+	}
+
+	/** Latency of the most recent writer wake-up, from unpark to running. */
+	public long getLastWakeupLatencyNanos() {
+		return mLastWakeupLatencyNanos;
+	}
+
+	public long getMaxWakeupLatencyNanos() {
+		return mMaxWakeupLatencyNanos;
+	}
+
+	public long getMeanWakeupLatencyNanos() {
+		final long wakeups = mWakeups;
+		return wakeups == 0 ? 0 : mWakeupLatencyTotalNanos / wakeups;
+	}
+
+	private void wakeWriter() {
+		// Pairs with the re-check in parkWriter(): either the writer sees the
+		// new data, or we see it parked.
+		if (mWriterParked) {
+			final Thread writer = mWriterThread;
+			if (writer != null) {
+				mWakeRequestNanos = System.nanoTime();
+				LockSupport.unpark(writer);
+			}
 		}
 	}
 
+	/**
+	 * Asks {@link #run()} or the event loop to let go. The reader notices
+	 * once its current read returns; a port that cannot time out reads, like
+	 * an {@link ArduinoUsbPort} with read requests, only returns from one
+	 * when closed, so close the transport after this.
+	 */
 	public synchronized void stop() {
 		if (getState() == State.RUNNING) {
 			Log.i(TAG, "Stop requested");
 			mState = State.STOPPING;
+			unparkWriter();
+		}
+	}
+
+	private void unparkWriter() {
+		final Thread writer = mWriterThread;
+		if (writer != null) {
+			LockSupport.unpark(writer);
 		}
 	}
 
@@ -121,8 +295,10 @@ public class SerialIOManager implements Runnable {
 	 * Continuously services the read and write buffers until {@link #stop()} is
 	 * called, or until a driver exception is raised.
 	 *
-	 * NOTE(mikey): Uses inefficient read/write-with-timeout.
-	 * TODO(mikey): Read asynchronously with {@link android.hardware.usb.UsbRequest#queue(ByteBuffer, int)}
+	 * Incoming data is handled by a dedicated reader thread that lives as long
+	 * as this method does, so replies are delivered as soon as a transfer
+	 * completes instead of waiting on the writer. The calling thread only
+	 * writes, and parks while there is nothing to send.
 	 */
 	@Override
 	public void run() {
@@ -133,59 +309,223 @@ public class SerialIOManager implements Runnable {
 				throw new IllegalStateException("Already running.");
 			}
 			mState = State.RUNNING;
+			mReadError = null;
+			mWriterThread = Thread.currentThread();
 		}
 
 		Log.i(TAG, "Running ..");
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, TAG + "-reader");
+		reader.start();
+
+		Exception error = null;
 		try {
 			while (true) {
 				if (getState() != State.RUNNING) {
 					Log.i(TAG, "Stopping mState=" + getState());
 					break;
 				}
-				step();
-
-				// Handle incoming data.
+				if (!step(READ_WAIT_MILLIS)) {
+					parkWriter();
+				}
 			}
 		} catch (Exception e) {
 			Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
-			final Listener listener = getListener();
-			if (listener != null) {
-				listener.onRunError(e);
-			}
+			error = e;
 		} finally {
 			synchronized (this) {
+				mState = State.STOPPING;
+			}
+			joinReader(reader);
+			synchronized (this) {
+				if (error == null) {
+					error = mReadError;
+				}
+				mWriterThread = null;
 				mState = State.STOPPED;
+				notifyAll();
 				Log.i(TAG, "Stopped.");
 			}
 		}
+
+		if (error != null) {
+			final Listener listener = getListener();
+			if (listener != null) {
+				listener.onRunError(error);
+			}
+		}
+	}
+
+	/**
+	 * Body of the reader thread. Asks the port to wait at most
+	 * {@link #READ_WAIT_MILLIS} at a time so that {@link #stop()} is noticed
+	 * promptly, and hands every chunk to the listeners as soon as it arrives.
+	 * A port whose reads cannot time out keeps it blocked until data comes
+	 * in or the port is closed, and {@link #run()} waits for it.
+	 */
+	private void readLoop() {
+		mResponseParser.reset();
+		try {
+			while (getState() == State.RUNNING) {
+				readOnce(READ_WAIT_MILLIS);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				// Closing the port is how a blocked read gets woken up on stop.
+				if (mState == State.RUNNING) {
+					Log.w(TAG, "Reader ending due to exception: " + e.getMessage(), e);
+					mReadError = e;
+					mState = State.STOPPING;
+					unparkWriter();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads one chunk, waiting at most {@code timeoutMillis}, and hands it to
+	 * the capture, the parser and the listener.
+	 */
+	private void readOnce(int timeoutMillis) throws IOException {
+		final byte[] buf = mReadBuffer.array();
+		final int len = mPort.read(buf, timeoutMillis);
+		mMetrics.recordRead(len);
+		if (len <= 0) {
+			return;
+		}
+		Tracer.trace(TRACE_READ, len, 0);
+		final SessionCapture capture = mCapture;
+		if (capture != null) {
+			capture.record(SessionCapture.RX, buf, 0, len);
+		}
+		if (mResponseListener != null) {
+			mResponseParser.feed(buf, 0, len);
+		}
+		final Listener listener = getListener();
+		if (listener != null) {
+			listener.onNewData(buf, 0, len);
+		}
 	}
 
-	private long l = 0;
+	/**
+	 * Marks this manager as running on a {@link SerialEventLoop} thread
+	 * rather than in {@link #run()}.
+	 */
+	synchronized void attach() {
+		if (mState != State.STOPPED) {
+			throw new IllegalStateException("Already running.");
+		}
+		mState = State.RUNNING;
+		mReadError = null;
+		mResponseParser.reset();
+		Log.i(TAG, "Running on event loop ..");
+	}
 
-	private void step() throws IOException {
-		// Handle outgoing data.
-		byte[] outBuff = null;
-		synchronized (mWriteBuffer) {
+	/**
+	 * One turn of the event loop: sends what is queued, then waits at most
+	 * {@code readTimeoutMillis} for incoming data.
+	 *
+	 * @return {@code false} once stopped, after which {@link #detach} must
+	 *         be called
+	 */
+	boolean poll(int readTimeoutMillis, int writeTimeoutMillis) throws IOException {
+		if (getState() != State.RUNNING) {
+			return false;
+		}
+		// Twice, in case the queued bytes wrap around the end of the ring.
+		if (step(writeTimeoutMillis)) {
+			step(writeTimeoutMillis);
+		}
+		readOnce(readTimeoutMillis);
+		return true;
+	}
 
-			l++;
-			if (l%1000000 == 0) Log.d(TAG, "step "+l);
+	/**
+	 * Takes this manager off its event loop, reporting {@code error} if
+	 * that is why.
+	 */
+	void detach(Exception error) {
+		synchronized (this) {
+			mState = State.STOPPED;
+			notifyAll();
+			Log.i(TAG, "Stopped.");
+		}
+		if (error != null) {
+			Log.w(TAG, "Run ending due to exception: " + error.getMessage(), error);
+			final Listener listener = getListener();
+			if (listener != null) {
+				listener.onRunError(error);
+			}
+		}
+	}
 
-			if (mWriteBuffer.position() > 0) {
-				Log.d(TAG, "mWriteBuffer not empty");
-				int len = mWriteBuffer.position();
-				outBuff = new byte[len];
-				mWriteBuffer.rewind();
-				mWriteBuffer.get(outBuff, 0, len);
-				mWriteBuffer.clear();
+	private static void joinReader(Thread reader) {
+		boolean interrupted = false;
+		while (reader.isAlive()) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
 			}
 		}
-		if (outBuff != null) {
-			if (DEBUG) {
-				Log.d(TAG, "Writing data \""+ new String(outBuff, "ASCII") + "\"");
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void parkWriter() {
+		mWriterParked = true;
+		if (mWriteRing.isEmpty() && getState() == State.RUNNING) {
+			LockSupport.park(this);
+		}
+		mWriterParked = false;
+
+		final long requested = mWakeRequestNanos;
+		if (requested != 0) {
+			mWakeRequestNanos = 0;
+			final long latency = System.nanoTime() - requested;
+			mLastWakeupLatencyNanos = latency;
+			if (latency > mMaxWakeupLatencyNanos) {
+				mMaxWakeupLatencyNanos = latency;
 			}
-			Log.d(TAG, "Writing outBuff");
-			mPort.write(outBuff, READ_WAIT_MILLIS);
+			mWakeupLatencyTotalNanos += latency;
+			mWakeups++;
+			Tracer.trace(TRACE_WAKE, latency / 1000, 0);
+		}
+	}
+
+	/**
+	 * Hands the next contiguous run of queued bytes to the port.
+	 *
+	 * @return {@code false} if there was nothing to send
+	 */
+	private boolean step(int timeoutMillis) throws IOException {
+		final int len = mWriteRing.readableContiguous();
+		if (len == 0) {
+			return false;
+		}
+		final byte[] buf = mWriteRing.array();
+		final int off = mWriteRing.readIndex();
+		mMetrics.recordQueueDepth(mWriteRing.size());
+		final int written;
+		try {
+			written = mPort.write(buf, off, len, timeoutMillis);
+		} catch (IOException e) {
+			mMetrics.recordWriteError();
+			throw e;
+		}
+		mMetrics.recordWrite(len, written);
+		Tracer.trace(TRACE_WRITE, len, written);
+		final SessionCapture capture = mCapture;
+		if (capture != null) {
+			capture.record(SessionCapture.TX, buf, off, written);
 		}
+		mWriteRing.release(written);
+		return true;
 	}
 
 }
@@ -0,0 +1,33 @@
+package printer;
+
+import java.io.IOException;
+
+/**
+ * The byte pipe {@link SerialIOManager} drives: a USB serial port on a
+ * device, or an in-memory stand-in such as {@link VirtualPrinter}.
+ */
+public interface SerialTransport {
+
+    /**
+     * Reads whatever is available into {@code dest}, waiting at most
+     * {@code timeoutMillis} for something to arrive. A transport that cannot
+     * time out may wait until data arrives or it is closed instead.
+     *
+     * @return the number of bytes read, 0 on timeout
+     */
+    public int read(byte[] dest, int timeoutMillis) throws IOException;
+
+    /**
+     * Writes as much of {@code src[offset..offset+length)} as possible within
+     * {@code timeoutMillis}.
+     *
+     * @return the number of bytes written
+     */
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException;
+
+    /**
+     * Releases the transport. A read blocked on another thread returns or
+     * throws.
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,334 @@
+package printer;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every chunk going over the serial link, with its direction and a
+ * {@link System#nanoTime()} timestamp, so a failed print can be looked at
+ * byte for byte afterwards. Attach one with
+ * {@link SerialIOManager#setCapture(SessionCapture)}.
+ *
+ * The log is a series of fixed-size segment files named
+ * {@code <name>-0000.cap}, {@code <name>-0001.cap} and so on, each memory
+ * mapped. Recording is a copy into the mapping under a lock held for just
+ * that copy; the I/O threads never create, map or sync files. The next
+ * segment is prepared and full ones are forced to storage by a background
+ * thread, and if the next segment is not ready in time records are dropped
+ * and counted rather than waited for.
+ *
+ * What is in the mapping is in the page cache, so the log survives the
+ * process dying at any point. A power cut loses at most the segment being
+ * written.
+ *
+ * Segment layout, all big-endian: a {@value #HEADER_SIZE} byte header of
+ * magic, version, segment index, a reserved int, then the wall clock
+ * milliseconds and nanoTime of the start of the session. Records follow,
+ * each an int length with {@link #TX_FLAG} set for data sent to the printer,
+ * a long nanoTime, then the data. A zero length ends the segment.
+ */
+public class SessionCapture implements Closeable {
+
+    private static final String TAG = SessionCapture.class.getSimpleName();
+
+    public static final int RX = 0;
+    public static final int TX = 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    static final int MAGIC = 0x47434150; // "GCAP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int TX_FLAG = 0x80000000;
+    static final String SUFFIX = ".cap";
+
+    private static final int MIN_SEGMENT_SIZE = 4096;
+
+    private final File mDirectory;
+    private final String mName;
+    private final int mSegmentSize;
+    private final long mStartMillis;
+    private final long mStartNanos;
+    private final ExecutorService mExecutor;
+
+    // Synchronized by 'this'
+    private Segment mCurrent;
+    private Future<Segment> mNext;
+    private int mNextIndex;
+    private boolean mClosed;
+
+    // Written under the lock, read from anywhere.
+    private volatile long mRecords;
+    private volatile long mBytes;
+    private volatile long mDroppedBytes;
+
+    public SessionCapture(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates the first segment right away, so a bad directory shows up
+     * here rather than as silently dropped data.
+     */
+    public SessionCapture(File directory, String name, int segmentSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mName = name;
+        mSegmentSize = segmentSize;
+        mStartMillis = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCurrent = openSegment(mNextIndex++);
+        mNext = prepareNext();
+    }
+
+    /** Name of segment {@code index} of the capture called {@code name}. */
+    public static String segmentName(String name, int index) {
+        return String.format(Locale.US, "%s-%04d%s", name, index, SUFFIX);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getRecords() {
+        return mRecords;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Bytes lost because the next segment was not ready, or after closing. */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Appends a chunk. Never blocks on storage; chunks bigger than what is
+     * left of a segment are split across segments.
+     *
+     * @param direction {@link #RX} or {@link #TX}
+     */
+    public void record(int direction, byte[] data, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        final long nanos = System.nanoTime();
+        synchronized (this) {
+            while (len > 0) {
+                final Segment segment = mCurrent;
+                if (segment == null) {
+                    mDroppedBytes += len;
+                    return;
+                }
+                final int room = segment.remaining() - RECORD_HEADER_SIZE;
+                if (room <= 0) {
+                    if (!rollOver()) {
+                        mDroppedBytes += len;
+                        return;
+                    }
+                    continue;
+                }
+                final int n = Math.min(room, len);
+                segment.put(direction, nanos, data, off, n);
+                mRecords++;
+                mBytes += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Stops recording, syncs the last segment and trims it to what was
+     * used. Blocks until that is done.
+     */
+    @Override
+    public void close() throws IOException {
+        final Segment last;
+        final Future<Segment> next;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            last = mCurrent;
+            next = mNext;
+            mCurrent = null;
+            mNext = null;
+        }
+        final Future<?> done = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (next != null) {
+                    discard(next);
+                }
+                if (last != null) {
+                    last.finish(true);
+                }
+                return null;
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw asIOException(e);
+        }
+    }
+
+    // Called with the lock held.
+    private boolean rollOver() {
+        if (mNext == null || !mNext.isDone()) {
+            return false;
+        }
+        final Segment full = mCurrent;
+        final Segment next;
+        try {
+            next = mNext.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Try again with the next chunk; the directory may come back.
+            Log.w(TAG, "Failed to prepare segment: " + e.getCause());
+            mNext = prepareNext();
+            return false;
+        }
+        mCurrent = next;
+        mNext = prepareNext();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    full.finish(false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to sync " + full.mFile + ": " + e.getMessage());
+                }
+            }
+        });
+        return true;
+    }
+
+    // Called with the lock held.
+    private Future<Segment> prepareNext() {
+        final int index = mNextIndex++;
+        return mExecutor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return openSegment(index);
+            }
+        });
+    }
+
+    private Segment openSegment(int index) throws IOException {
+        final File file = new File(mDirectory, segmentName(mName, index));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer buffer;
+        try {
+            raf.setLength(0);
+            raf.setLength(mSegmentSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            // The mapping stays valid without the file open.
+            raf.close();
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(index);
+        buffer.putInt(0);
+        buffer.putLong(mStartMillis);
+        buffer.putLong(mStartNanos);
+        return new Segment(file, buffer);
+    }
+
+    private static void discard(Future<Segment> next) {
+        try {
+            final File file = next.get().mFile;
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete unused " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Never created, nothing to delete.
+        }
+    }
+
+    private static IOException asIOException(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private static final class Segment {
+        final File mFile;
+        final MappedByteBuffer mBuffer;
+        int mPosition = HEADER_SIZE;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            mFile = file;
+            mBuffer = buffer;
+        }
+
+        int remaining() {
+            return mBuffer.capacity() - mPosition;
+        }
+
+        void put(int direction, long nanos, byte[] data, int off, int len) {
+            final int start = mPosition;
+            mBuffer.position(start + RECORD_HEADER_SIZE);
+            mBuffer.put(data, off, len);
+            mBuffer.putLong(start + 4, nanos);
+            // Length last, so a record cut short reads as the end of the log.
+            mBuffer.putInt(start, direction == TX ? len | TX_FLAG : len);
+            mPosition = start + RECORD_HEADER_SIZE + len;
+        }
+
+        /** Syncs to storage and, for the last segment, drops the unused tail. */
+        void finish(boolean trim) throws IOException {
+            mBuffer.force();
+            if (trim && remaining() > 0) {
+                final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                try {
+                    raf.setLength(mPosition);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+    }
+}
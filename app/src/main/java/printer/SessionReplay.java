@@ -0,0 +1,204 @@
+package printer;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a captured session as if it were coming off the serial link,
+ * to check the response parser and the console against real traffic
+ * without a printer.
+ *
+ * Received chunks go, in order and with their original grouping, to the
+ * {@link ResponseParser} and then the {@link SerialIOManager.Listener},
+ * the same way {@link SerialIOManager}'s reader thread hands them over.
+ * Sent chunks are only counted. Playback runs at the captured pace scaled
+ * by {@link #setSpeed(double)}, or as fast as possible.
+ *
+ * Every received chunk is timed: how late it was delivered against its
+ * schedule, how long parsing took and how long the listener took.
+ */
+public class SessionReplay {
+
+    /** Speed that ignores the captured timing. */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    // Sleeping is too coarse below this, so the rest is spun.
+    private static final long SPIN_NANOS = 100 * 1000;
+
+    private final CaptureReader mReader;
+    private final ResponseParser mParser;
+
+    private double mSpeed = 1;
+    private SerialIOManager.Listener mListener;
+    private volatile ResponseParser.Listener mResponseListener;
+
+    private final Histogram mLag = new Histogram();
+    private final Histogram mParseTime = new Histogram();
+    private final Histogram mListenerTime = new Histogram();
+
+    private long mRxChunks;
+    private long mRxBytes;
+    private long mTxChunks;
+    private long mTxBytes;
+    private long mElapsedNanos;
+
+    public SessionReplay(CaptureReader reader) {
+        mReader = reader;
+        mParser = new ResponseParser(new ResponseParser.Listener() {
+            @Override
+            public void onResponse(Response response) {
+                final ResponseParser.Listener listener = mResponseListener;
+                if (listener != null) {
+                    listener.onResponse(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param speed 1 for real time, 10 for ten times faster, or
+     *              {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Bad speed: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /** Gets each received chunk in place, like a {@link SerialIOManager} listener. */
+    public void setListener(SerialIOManager.Listener listener) {
+        mListener = listener;
+    }
+
+    public void setResponseListener(ResponseParser.Listener listener) {
+        mResponseListener = listener;
+    }
+
+    /**
+     * Plays the whole capture from the start, on the calling thread. Can be
+     * called again to play it once more; the figures add up.
+     */
+    public void run() throws IOException, InterruptedException {
+        mReader.rewind();
+        mParser.reset();
+        final boolean paced = mSpeed != AS_FAST_AS_POSSIBLE;
+        final long start = System.nanoTime();
+        long first = -1;
+        while (mReader.next()) {
+            final byte[] data = mReader.getData();
+            final int len = mReader.getLength();
+            if (mReader.getDirection() == SessionCapture.TX) {
+                mTxChunks++;
+                mTxBytes += len;
+                continue;
+            }
+            if (first < 0) {
+                first = mReader.getNanos();
+            }
+            long due = 0;
+            if (paced) {
+                due = start + (long) ((mReader.getNanos() - first) / mSpeed);
+                waitUntil(due);
+            }
+
+            final long t0 = System.nanoTime();
+            if (mResponseListener != null) {
+                mParser.feed(data, 0, len);
+            }
+            final long t1 = System.nanoTime();
+            final SerialIOManager.Listener listener = mListener;
+            if (listener != null) {
+                listener.onNewData(data, 0, len);
+            }
+            final long t2 = System.nanoTime();
+
+            if (paced) {
+                mLag.record(t0 - due);
+            }
+            mParseTime.record(t1 - t0);
+            mListenerTime.record(t2 - t1);
+            mRxChunks++;
+            mRxBytes += len;
+        }
+        mElapsedNanos += System.nanoTime() - start;
+    }
+
+    private static void waitUntil(long due) throws InterruptedException {
+        long left;
+        while ((left = due - System.nanoTime()) > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (left > SPIN_NANOS) {
+                LockSupport.parkNanos(left - SPIN_NANOS);
+            }
+        }
+    }
+
+    public long getRxChunks() {
+        return mRxChunks;
+    }
+
+    public long getRxBytes() {
+        return mRxBytes;
+    }
+
+    public long getTxChunks() {
+        return mTxChunks;
+    }
+
+    public long getTxBytes() {
+        return mTxBytes;
+    }
+
+    /** Lines split out by the parser, if a response listener was set. */
+    public long getLines() {
+        return mParser.getLineCount();
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /** Received chunks delivered per second of playback. */
+    public double getChunksPerSecond() {
+        return mElapsedNanos == 0 ? 0 : mRxChunks * 1e9 / mElapsedNanos;
+    }
+
+    /** How late each chunk was delivered; empty when playing as fast as possible. */
+    public Histogram getLag() {
+        return mLag;
+    }
+
+    public Histogram getParseTime() {
+        return mParseTime;
+    }
+
+    public Histogram getListenerTime() {
+        return mListenerTime;
+    }
+
+    public void writeReport(Appendable out) throws IOException {
+        final double seconds = mElapsedNanos / 1e9;
+        out.append(String.format(Locale.US,
+                "replay %.3f s at %s: %d rx chunks (%.0f/s), %d rx bytes (%.0f B/s), %d lines,"
+                        + " %d tx chunks, %d tx bytes%n",
+                seconds, mSpeed == AS_FAST_AS_POSSIBLE ? "full speed" : mSpeed + "x",
+                mRxChunks, getChunksPerSecond(), mRxBytes, seconds == 0 ? 0 : mRxBytes / seconds,
+                getLines(), mTxChunks, mTxBytes));
+        appendHistogram(out, "  lag      ", mLag);
+        appendHistogram(out, "  parse    ", mParseTime);
+        appendHistogram(out, "  listener ", mListenerTime);
+    }
+
+    private static void appendHistogram(Appendable out, String label, Histogram h)
+            throws IOException {
+        out.append(String.format(Locale.US,
+                "%s n=%d mean=%.2f p50=%.2f p99=%.2f p99.9=%.2f max=%.2f us%n",
+                label, h.getCount(), h.getMean() / 1e3, h.getValueAtPercentile(50) / 1e3,
+                h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3,
+                h.getMax() / 1e3));
+    }
+}
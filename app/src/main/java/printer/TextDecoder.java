@@ -0,0 +1,78 @@
+package printer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Turns received bytes into text one chunk at a time.
+ *
+ * A multi-byte character cut between two reads is held back until the rest of
+ * it arrives, instead of coming out as two replacement characters. Malformed
+ * input is replaced, never thrown. The decoder and its buffers are reused, so
+ * once they have grown to the largest chunk seen decoding allocates nothing.
+ * Not thread-safe.
+ */
+public class TextDecoder {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final CharsetDecoder mDecoder;
+    private ByteBuffer mIn;
+    private CharBuffer mOut;
+
+    /** Decodes UTF-8, which covers plain ASCII too. */
+    public TextDecoder() {
+        this(Charset.forName("UTF-8"));
+    }
+
+    public TextDecoder(Charset charset) {
+        mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mIn = ByteBuffer.allocate(DEFAULT_CAPACITY);
+        mOut = CharBuffer.allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Decodes {@code src[off..off+len)} after whatever was held back from the
+     * previous call. The text is then in {@link #chars()} from 0.
+     *
+     * @return the number of characters decoded
+     */
+    public int decode(byte[] src, int off, int len) {
+        if (mIn.remaining() < len) {
+            final ByteBuffer in = ByteBuffer.allocate(mIn.position() + len);
+            mIn.flip();
+            in.put(mIn);
+            mIn = in;
+        }
+        mIn.put(src, off, len);
+        mIn.flip();
+
+        // Never more characters than bytes for the charsets this is used with,
+        // but leave room for replacements just in case.
+        final int needed = (int) (mIn.remaining() * mDecoder.maxCharsPerByte()) + 1;
+        if (mOut.capacity() < needed) {
+            mOut = CharBuffer.allocate(needed);
+        }
+        mOut.clear();
+        mDecoder.decode(mIn, mOut, false);
+        // Anything left is the start of a character; keep it for next time.
+        mIn.compact();
+        return mOut.position();
+    }
+
+    /** Output of the last {@link #decode} call. */
+    public char[] chars() {
+        return mOut.array();
+    }
+
+    /** Drops any partial character, e.g. after reconnecting. */
+    public void reset() {
+        mDecoder.reset();
+        mIn.clear();
+    }
+}
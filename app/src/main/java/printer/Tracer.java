@@ -0,0 +1,168 @@
+package printer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Flight recorder for the I/O paths, where even a disabled
+ * {@code Log.d(TAG, "..." + n)} costs a string build per transfer.
+ *
+ * Events are defined once, up front, with a level, a name and a format:
+ *
+ * <pre>
+ * private static final int TRACE_READ = Tracer.define(Tracer.DEBUG, "serial.read", "len=%d");
+ * ...
+ * Tracer.trace(TRACE_READ, len, 0);
+ * </pre>
+ *
+ * A trace call takes two longs. Below the current level it is a volatile
+ * read and a compare; at or above it, the event id, arguments, time and
+ * thread go into preallocated slots of a lock-free ring. Nothing is
+ * formatted or allocated until {@link #dump(Appendable)} turns the ring into
+ * text, oldest event first. Setting {@link #ENABLED} to false compiles every
+ * guarded call away.
+ */
+public final class Tracer {
+
+    /** Compile-time switch for the whole facility. */
+    public static final boolean ENABLED = true;
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    public static final int VERBOSE = 5;
+
+    private static final String[] LEVEL_NAMES = { "-", "E", "W", "I", "D", "V" };
+
+    /** Events kept; older ones are overwritten. */
+    public static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_EVENTS = 256;
+
+    // Marks a slot being written.
+    private static final long BUSY = -1;
+
+    private static volatile int sLevel = DEBUG;
+
+    // Synchronized by Tracer.class when written; fixed once defined.
+    private static final int[] sEventLevels = new int[MAX_EVENTS];
+    private static final String[] sEventNames = new String[MAX_EVENTS];
+    private static final String[] sEventFormats = new String[MAX_EVENTS];
+    private static int sEventCount;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    // Sequence number + 1 of the event in each slot, 0 if none yet.
+    private static final AtomicLongArray sSlotSeq = new AtomicLongArray(CAPACITY);
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final long[] sThreads = new long[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final long[] sArgs0 = new long[CAPACITY];
+    private static final long[] sArgs1 = new long[CAPACITY];
+
+    private Tracer() {
+    }
+
+    /**
+     * Defines an event, typically into a static final int.
+     *
+     * @param format how to show the two arguments, in {@link String#format}
+     *               syntax; unused arguments are fine
+     * @return the id to pass to {@link #trace}
+     */
+    public static synchronized int define(int level, String name, String format) {
+        if (sEventCount == MAX_EVENTS) {
+            throw new IllegalStateException("Too many trace events");
+        }
+        final int id = sEventCount++;
+        sEventLevels[id] = level;
+        sEventNames[id] = name;
+        sEventFormats[id] = format;
+        return id;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /** Records events at {@code level} and more severe, e.g. {@link #INFO}. */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /** For guarding a call whose arguments are costly to work out. */
+    public static boolean isEnabled(int level) {
+        return ENABLED && level <= sLevel;
+    }
+
+    public static void trace(int event, long arg0, long arg1) {
+        if (!ENABLED || sEventLevels[event] > sLevel) {
+            return;
+        }
+        final long seq = sNext.getAndIncrement();
+        final int slot = (int) seq & MASK;
+        // Readers skip the slot until the final sequence number is back.
+        sSlotSeq.getAndSet(slot, BUSY);
+        sTimes[slot] = System.nanoTime();
+        sThreads[slot] = Thread.currentThread().getId();
+        sEvents[slot] = event;
+        sArgs0[slot] = arg0;
+        sArgs1[slot] = arg1;
+        sSlotSeq.set(slot, seq + 1);
+    }
+
+    /** Number of events recorded since start, overwritten ones included. */
+    public static long getEventCount() {
+        return sNext.get();
+    }
+
+    /**
+     * Writes out the events still in the ring, oldest first, timed relative
+     * to the last one. Events written meanwhile may be left out.
+     *
+     * @return the number of events written
+     */
+    public static int dump(Appendable out) throws IOException {
+        final long end = sNext.get();
+        final long start = Math.max(0, end - CAPACITY);
+        final long now = System.nanoTime();
+        int written = 0;
+        for (long seq = start; seq < end; seq++) {
+            final int slot = (int) seq & MASK;
+            if (sSlotSeq.get(slot) != seq + 1) {
+                continue;
+            }
+            final long time = sTimes[slot];
+            final long thread = sThreads[slot];
+            final int event = sEvents[slot];
+            final long arg0 = sArgs0[slot];
+            final long arg1 = sArgs1[slot];
+            if (sSlotSeq.get(slot) != seq + 1) {
+                continue;
+            }
+            out.append(String.format(Locale.US, "%+12.6f t%-4d %s %-20s ",
+                    (time - now) / 1e9, thread, LEVEL_NAMES[sEventLevels[event]],
+                    sEventNames[event]));
+            out.append(String.format(Locale.US, sEventFormats[event], arg0, arg1));
+            out.append('\n');
+            written++;
+        }
+        return written;
+    }
+
+    /** Appends {@link #dump(Appendable)} output to {@code file}. */
+    public static int dump(File file) throws IOException {
+        final Writer out = new FileWriter(file, true);
+        try {
+            return dump(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package printer;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded byte ring between the threads producing outgoing data and the
+ * single I/O thread draining it to the port.
+ *
+ * The consumer side is lock-free: it reads straight out of the backing array
+ * with {@link #readIndex()}/{@link #readableContiguous()} and hands space back
+ * with {@link #release(int)}. With one producer the producer side is lock-free
+ * as well; rings created as multi-producer serialize producers among
+ * themselves while they copy in, never against the consumer. A producer
+ * blocked in {@link #put} holds no lock, so others can still offer.
+ *
+ * When the ring is full producers get to pick the backpressure they want:
+ * {@link #put} blocks, {@link #offer(byte[], int, int)} fails immediately, and
+ * {@link #offer(byte[], int, int, SpaceListener)} fails but calls back once
+ * enough space has been released.
+ */
+public class TransmitRing {
+
+    public interface SpaceListener {
+        /**
+         * Called once at least the requested amount of space is free, normally
+         * on the consumer thread. Listeners are one-shot, and the space is not
+         * reserved: other producers may take it first.
+         */
+        public void onSpaceAvailable(TransmitRing ring);
+    }
+
+    private static final class PendingListener {
+        final SpaceListener listener;
+        final int needed;
+
+        PendingListener(SpaceListener listener, int needed) {
+            this.listener = listener;
+            this.needed = needed;
+        }
+    }
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final boolean mMultiProducer;
+
+    // Total bytes ever released by the consumer. Written by the consumer only.
+    private final AtomicLong mHead = new AtomicLong();
+    // Total bytes ever published by producers.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final Object mProducerLock = new Object();
+
+    // Blocked producers wait on this; the consumer only touches it when
+    // mWaiters says someone is there.
+    private final Object mSpaceLock = new Object();
+    private volatile int mWaiters;
+
+    // Listeners waiting for space, in the order they were registered. The
+    // consumer only takes the lock when mListenerCount says there are any.
+    private final List<PendingListener> mSpaceListeners = new ArrayList<PendingListener>();
+    private volatile int mListenerCount;
+
+    /**
+     * @param capacity size of the ring in bytes, rounded up to a power of two
+     * @param multiProducer {@code true} if more than one thread may write
+     */
+    public TransmitRing(int capacity, boolean multiProducer) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new byte[size];
+        mMask = size - 1;
+        mMultiProducer = multiProducer;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /** Number of bytes waiting to be drained. */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int remaining() {
+        return mBuffer.length - size();
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    public boolean offer(byte[] src) {
+        return offer(src, 0, src.length);
+    }
+
+    /**
+     * Appends all of {@code src[off..off+len)} or nothing.
+     *
+     * @return {@code false} if there is not enough room right now
+     */
+    public boolean offer(byte[] src, int off, int len) {
+        checkLength(len);
+        return publish(src, off, len);
+    }
+
+    /**
+     * Like {@link #offer(byte[], int, int)}, but when the data does not fit
+     * {@code listener} is registered to be told once {@code len} bytes are
+     * free. Listeners registered by different producers are all kept, each
+     * called once its own amount fits.
+     */
+    public boolean offer(byte[] src, int off, int len, SpaceListener listener) {
+        if (offer(src, off, len)) {
+            return true;
+        }
+        synchronized (mSpaceListeners) {
+            mSpaceListeners.add(new PendingListener(listener, len));
+            mListenerCount = mSpaceListeners.size();
+        }
+        // The consumer may have freed everything before the listener was
+        // visible; make sure it is not left waiting forever.
+        fireSpaceListeners();
+        return false;
+    }
+
+    /**
+     * Appends all of {@code src[off..off+len)} in one piece, blocking until
+     * there is room for all of it, so no other producer's data can land in
+     * the middle.
+     *
+     * @throws IllegalArgumentException if the data is larger than the ring
+     * @throws InterruptedIOException if interrupted while waiting; nothing
+     *             has been published then
+     */
+    public void put(byte[] src, int off, int len) throws InterruptedIOException {
+        checkLength(len);
+        while (!publish(src, off, len)) {
+            // Outside the producer lock, so offer() never waits behind us.
+            awaitSpace(len);
+        }
+    }
+
+    private void awaitSpace(int needed) throws InterruptedIOException {
+        synchronized (mSpaceLock) {
+            mWaiters++;
+            try {
+                while (remaining() < needed) {
+                    mSpaceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for transmit space");
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+
+    private boolean publish(byte[] src, int off, int len) {
+        if (!mMultiProducer) {
+            return tryPublish(src, off, len);
+        }
+        synchronized (mProducerLock) {
+            return tryPublish(src, off, len);
+        }
+    }
+
+    private boolean tryPublish(byte[] src, int off, int len) {
+        final long tail = mTail.get();
+        if (mBuffer.length - (int) (tail - mHead.get()) < len) {
+            return false;
+        }
+        final int index = (int) tail & mMask;
+        final int first = Math.min(len, mBuffer.length - index);
+        System.arraycopy(src, off, mBuffer, index, first);
+        if (first < len) {
+            System.arraycopy(src, off + first, mBuffer, 0, len - first);
+        }
+        mTail.set(tail + len);
+        return true;
+    }
+
+    private void checkLength(int len) {
+        if (len > mBuffer.length) {
+            throw new IllegalArgumentException(
+                    "Data of " + len + " bytes can never fit a ring of " + mBuffer.length);
+        }
+    }
+
+    // Consumer side. Only the draining thread may call these.
+
+    /** The backing array; readable data starts at {@link #readIndex()}. */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    public int readIndex() {
+        return (int) mHead.get() & mMask;
+    }
+
+    /**
+     * Number of bytes that can be read from {@link #readIndex()} without
+     * wrapping around the end of the array.
+     */
+    public int readableContiguous() {
+        final long head = mHead.get();
+        final int available = (int) (mTail.get() - head);
+        return Math.min(available, mBuffer.length - ((int) head & mMask));
+    }
+
+    /**
+     * Hands {@code count} drained bytes back to producers, waking any that
+     * are blocked and firing the pending {@link SpaceListener}s that now fit.
+     */
+    public void release(int count) {
+        if (count <= 0) {
+            return;
+        }
+        mHead.set(mHead.get() + count);
+        if (mWaiters > 0) {
+            synchronized (mSpaceLock) {
+                mSpaceLock.notifyAll();
+            }
+        }
+        if (mListenerCount > 0) {
+            fireSpaceListeners();
+        }
+    }
+
+    /**
+     * Drops everything not yet drained. Must be called from the consumer.
+     */
+    public void clear() {
+        release(size());
+    }
+
+    private void fireSpaceListeners() {
+        List<PendingListener> fired = null;
+        synchronized (mSpaceListeners) {
+            final int remaining = remaining();
+            for (int i = 0; i < mSpaceListeners.size(); ) {
+                final PendingListener pending = mSpaceListeners.get(i);
+                if (pending.needed > remaining) {
+                    i++;
+                    continue;
+                }
+                if (fired == null) {
+                    fired = new ArrayList<PendingListener>();
+                }
+                fired.add(mSpaceListeners.remove(i));
+            }
+            mListenerCount = mSpaceListeners.size();
+        }
+        if (fired == null) {
+            return;
+        }
+        // Outside the lock, so a listener can offer again straight away.
+        for (PendingListener pending : fired) {
+            pending.listener.onSpaceAvailable(this);
+        }
+    }
+}
@@ -0,0 +1,670 @@
+package printer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory printer speaking enough of Marlin's serial protocol to drive
+ * the whole host pipeline without hardware.
+ *
+ * Like the real firmware it has a small receive ring that silently drops
+ * bytes when the host overruns it, a queue of validated commands, a planner
+ * of fixed depth that executes moves in simulated time, line number and
+ * checksum validation with "Resend:" requests, and periodic temperature
+ * reports. Line errors can be injected at a fixed rate, picked from a seed
+ * and the line number alone so runs corrupt the same lines however the host
+ * times its writes.
+ *
+ * Configure it, {@link #start()} it, and hand it to a
+ * {@link SerialIOManager} as its transport. Counters describe how the host
+ * behaved: commands per second, ack latency, overruns and planner underruns,
+ * which is where a too slow host shows up as a stuttering print.
+ */
+public class VirtualPrinter implements SerialTransport {
+
+    /** Marlin's stock RX_BUFFER_SIZE of 128, one slot always free. */
+    public static final int DEFAULT_RX_BUFFER_SIZE = 127;
+    /** Marlin's BUFSIZE. */
+    public static final int DEFAULT_COMMAND_QUEUE_SIZE = 4;
+    /** Marlin's BLOCK_BUFFER_SIZE. */
+    public static final int DEFAULT_PLANNER_DEPTH = 16;
+
+    private static final int MAX_COMMAND_LENGTH = 256;
+    private static final int TX_BUFFER_SIZE = 64 * 1024;
+    private static final long BUSY_INTERVAL_NANOS = 2000000000L;
+    private static final float AMBIENT = 21f;
+
+    private static final byte[] OK = { 'o', 'k', '\n' };
+
+    // Configuration, fixed once started.
+    private int mRxBufferSize = DEFAULT_RX_BUFFER_SIZE;
+    private int mCommandQueueSize = DEFAULT_COMMAND_QUEUE_SIZE;
+    private int mPlannerDepth = DEFAULT_PLANNER_DEPTH;
+    private long mCommandNanos;
+    private long mMoveNanos = 1000000;
+    private int mBaudRate;
+    private double mLineErrorRate;
+    private long mLineErrorSeed;
+
+    // Everything below is synchronized by 'this'.
+    private boolean mStarted;
+    private boolean mClosed;
+    private Thread mThread;
+
+    // Receive ring, with the arrival time of every complete line in it.
+    private byte[] mRx;
+    private int mRxHead;
+    private int mRxCount;
+    private long[] mArrivals;
+    private int mArrivalHead;
+    private int mArrivalCount;
+
+    private final byte[] mTx = new byte[TX_BUFFER_SIZE];
+    private int mTxHead;
+    private int mTxCount;
+
+    private long mTemperatureIntervalNanos;
+    private long mNextReportNanos;
+
+    // Stats.
+    private long mCommands;
+    private long mLineErrors;
+    private long mOverrunBytes;
+    private long mAcks;
+    private long mAckLatencyTotalNanos;
+    private long mMaxAckLatencyNanos;
+    private long mUnderruns;
+    private long mStarvedNanos;
+
+    // Firmware thread only.
+    private byte[][] mQueue;
+    private int[] mQueueLengths;
+    private long[] mQueueArrivals;
+    private int mQueueHead;
+    private int mQueueCount;
+    private final byte[] mLine = new byte[MAX_COMMAND_LENGTH];
+    private long mLastLineNumber;
+    // Highest line number corrupted so far; each is corrupted at most once.
+    private long mLastCorrupted = -1;
+    private long[] mPlanner;
+    private int mPlannerHead;
+    private int mPlannerCount;
+    private long mLastMoveEnd;
+    private float mHotend = AMBIENT;
+    private float mHotendTarget;
+    private float mBed = AMBIENT;
+    private float mBedTarget;
+
+    /** Bytes the firmware can buffer before it starts dropping input. */
+    public synchronized void setRxBufferSize(int bytes) {
+        checkNotStarted();
+        mRxBufferSize = bytes;
+    }
+
+    /** Validated commands held between the receive ring and execution. */
+    public synchronized void setCommandQueueSize(int commands) {
+        checkNotStarted();
+        mCommandQueueSize = commands;
+    }
+
+    /** Moves the planner holds; once full, command processing blocks. */
+    public synchronized void setPlannerDepth(int moves) {
+        checkNotStarted();
+        mPlannerDepth = moves;
+    }
+
+    /** Time spent parsing and processing every command. */
+    public synchronized void setCommandTimeMicros(long micros) {
+        checkNotStarted();
+        mCommandNanos = micros * 1000;
+    }
+
+    /** Time every G0-G3 move takes to execute once planned. */
+    public synchronized void setMoveTimeMicros(long micros) {
+        checkNotStarted();
+        mMoveNanos = micros * 1000;
+    }
+
+    /** Simulated wire speed for host writes, 0 for none. */
+    public synchronized void setBaudRate(int baudRate) {
+        checkNotStarted();
+        mBaudRate = baudRate;
+    }
+
+    /** Reports temperatures every {@code millis} like M155, 0 to stop. */
+    public synchronized void setTemperatureReportInterval(long millis) {
+        mTemperatureIntervalNanos = millis * 1000000;
+        mNextReportNanos = System.nanoTime() + mTemperatureIntervalNanos;
+    }
+
+    /**
+     * Treats this fraction of numbered lines as corrupted the first time they
+     * arrive in order, which makes the firmware ask for them again. Which
+     * lines depends only on {@code seed}.
+     */
+    public synchronized void setLineErrorRate(double rate, long seed) {
+        checkNotStarted();
+        mLineErrorRate = rate;
+        mLineErrorSeed = seed;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Already started.");
+        }
+    }
+
+    /** Starts the firmware thread. */
+    public synchronized void start() {
+        checkNotStarted();
+        mStarted = true;
+        mRx = new byte[mRxBufferSize];
+        mArrivals = new long[mRxBufferSize];
+        mQueue = new byte[mCommandQueueSize][MAX_COMMAND_LENGTH];
+        mQueueLengths = new int[mCommandQueueSize];
+        mQueueArrivals = new long[mCommandQueueSize];
+        mPlanner = new long[mPlannerDepth];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                firmwareLoop();
+            }
+        }, "VirtualPrinter");
+        mThread.setDaemon(true);
+        mThread.start();
+        reply("start\n");
+    }
+
+    // Host side.
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        synchronized (this) {
+            final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            while (mTxCount == 0 && !mClosed) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return 0;
+                }
+                if (!waitNanos(left)) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Closed");
+            }
+            final int len = Math.min(dest.length, mTxCount);
+            for (int i = 0; i < len; i++) {
+                dest[i] = mTx[(mTxHead + i) % mTx.length];
+            }
+            mTxHead = (mTxHead + len) % mTx.length;
+            mTxCount -= len;
+            notifyAll();
+            return len;
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        final int baudRate;
+        synchronized (this) {
+            if (!mStarted || mClosed) {
+                throw new IOException("Not running");
+            }
+            baudRate = mBaudRate;
+        }
+        if (baudRate > 0) {
+            // Ten bits a byte on the wire.
+            LockSupport.parkNanos(length * 10L * 1000000000L / baudRate);
+        }
+        synchronized (this) {
+            final long now = System.nanoTime();
+            for (int i = offset; i < offset + length; i++) {
+                if (mRxCount == mRx.length) {
+                    mOverrunBytes++;
+                    continue;
+                }
+                mRx[(mRxHead + mRxCount++) % mRx.length] = src[i];
+                if (src[i] == '\n' && mArrivalCount < mArrivals.length) {
+                    mArrivals[(mArrivalHead + mArrivalCount++) % mArrivals.length] = now;
+                }
+            }
+            notifyAll();
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            thread = mThread;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Stats.
+
+    public synchronized long getCommandsExecuted() {
+        return mCommands;
+    }
+
+    /** Lines rejected for a bad checksum or line number, injected or not. */
+    public synchronized long getLineErrors() {
+        return mLineErrors;
+    }
+
+    /** Bytes dropped because the host overran the receive ring. */
+    public synchronized long getOverrunBytes() {
+        return mOverrunBytes;
+    }
+
+    /** Mean time from a line arriving to its "ok" being sent. */
+    public synchronized long getMeanAckLatencyNanos() {
+        return mAcks == 0 ? 0 : mAckLatencyTotalNanos / mAcks;
+    }
+
+    public synchronized long getMaxAckLatencyNanos() {
+        return mMaxAckLatencyNanos;
+    }
+
+    /** Times the planner ran dry between two moves. */
+    public synchronized long getPlannerUnderruns() {
+        return mUnderruns;
+    }
+
+    /** Total time the planner sat empty between two moves. */
+    public synchronized long getStarvedNanos() {
+        return mStarvedNanos;
+    }
+
+    // Firmware side.
+
+    private void firmwareLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    reportTemperatureIfDue();
+                    while (mQueueCount < mQueue.length && pullLine()) {
+                        // Keep pulling.
+                    }
+                    if (mQueueCount == 0) {
+                        if (!waitNanos(mTemperatureIntervalNanos > 0
+                                ? Math.max(1, mNextReportNanos - System.nanoTime())
+                                : BUSY_INTERVAL_NANOS)) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                processHead();
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /** Waits on 'this', which must be held. */
+    private boolean waitNanos(long nanos) {
+        try {
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void reportTemperatureIfDue() {
+        if (mTemperatureIntervalNanos > 0 && System.nanoTime() >= mNextReportNanos) {
+            mNextReportNanos = System.nanoTime() + mTemperatureIntervalNanos;
+            reply(" " + temperatures() + "\n");
+        }
+    }
+
+    private String temperatures() {
+        return String.format(Locale.US, "T:%.2f /%.2f B:%.2f /%.2f @:0 B@:0",
+                mHotend, mHotendTarget, mBed, mBedTarget);
+    }
+
+    /**
+     * Moves one complete line from the receive ring into the command queue,
+     * validating it on the way like Marlin's get_serial_commands().
+     *
+     * @return {@code false} if there was no complete line
+     */
+    private boolean pullLine() {
+        int end = -1;
+        for (int i = 0; i < mRxCount; i++) {
+            if (mRx[(mRxHead + i) % mRx.length] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return false;
+        }
+        int len = 0;
+        for (int i = 0; i < end; i++) {
+            final byte b = mRx[(mRxHead + i) % mRx.length];
+            if (b != '\r' && len < mLine.length) {
+                mLine[len++] = b;
+            }
+        }
+        mRxHead = (mRxHead + end + 1) % mRx.length;
+        mRxCount -= end + 1;
+        long arrival = System.nanoTime();
+        if (mArrivalCount > 0) {
+            arrival = mArrivals[mArrivalHead];
+            mArrivalHead = (mArrivalHead + 1) % mArrivals.length;
+            mArrivalCount--;
+        }
+
+        final int commandLength = validate(mLine, len);
+        if (commandLength <= 0) {
+            return true;
+        }
+        final int slot = (mQueueHead + mQueueCount) % mQueue.length;
+        System.arraycopy(mLine, 0, mQueue[slot], 0, commandLength);
+        mQueueLengths[slot] = commandLength;
+        mQueueArrivals[slot] = arrival;
+        mQueueCount++;
+        return true;
+    }
+
+    /**
+     * Checks the line number and checksum of a numbered line, and strips
+     * both so the command is left at the start of {@code line}.
+     *
+     * @return the length of the command, or -1 if the line was rejected
+     */
+    private int validate(byte[] line, int len) {
+        if (len == 0 || line[0] != 'N') {
+            // Typically the tail of a line whose start was flushed.
+            for (int i = 0; i < len; i++) {
+                if (line[i] == '*') {
+                    return reject("No Line Number with checksum");
+                }
+            }
+            return len;
+        }
+        int i = 1;
+        long n = 0;
+        while (i < len && line[i] >= '0' && line[i] <= '9') {
+            n = n * 10 + (line[i++] - '0');
+        }
+        while (i < len && line[i] == ' ') {
+            i++;
+        }
+        final int command = i;
+        int star = -1;
+        for (int j = command; j < len; j++) {
+            if (line[j] == '*') {
+                star = j;
+                break;
+            }
+        }
+        final boolean m110 = startsWith(line, command, len, "M110");
+
+        if (!m110 && n != mLastLineNumber + 1) {
+            return reject("Line Number is not Last Line Number+1");
+        }
+        if (star < 0) {
+            return reject("No Checksum with line number");
+        }
+        int expected = 0;
+        for (int j = star + 1; j < len && line[j] >= '0' && line[j] <= '9'; j++) {
+            expected = expected * 10 + (line[j] - '0');
+        }
+        if (GCodeChecksum.checksum(line, 0, star) != expected || (!m110 && corrupt(n))) {
+            return reject("checksum mismatch");
+        }
+
+        mLastLineNumber = n;
+        if (m110) {
+            final long value = parseWord(line, command + 4, star, 'N');
+            mLastLineNumber = value >= 0 ? value : n;
+        }
+        // Drop the checksum; the command runs up to the '*'.
+        int stop = star;
+        while (stop > command && line[stop - 1] == ' ') {
+            stop--;
+        }
+        System.arraycopy(line, command, line, 0, stop - command);
+        return stop - command;
+    }
+
+    private boolean corrupt(long lineNumber) {
+        if (mLineErrorRate <= 0 || lineNumber <= mLastCorrupted) {
+            return false;
+        }
+        // SplitMix64's finalizer, so neighbouring lines are independent.
+        long z = mLineErrorSeed + lineNumber * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z ^= z >>> 31;
+        if ((z >>> 11) * 0x1.0p-53 >= mLineErrorRate) {
+            return false;
+        }
+        mLastCorrupted = lineNumber;
+        return true;
+    }
+
+    private int reject(String error) {
+        mLineErrors++;
+        // Marlin throws away whatever else is in the receive ring.
+        mRxHead = 0;
+        mRxCount = 0;
+        mArrivalHead = 0;
+        mArrivalCount = 0;
+        reply("Error:" + error + ", Last Line: " + mLastLineNumber + "\n");
+        reply("Resend: " + (mLastLineNumber + 1) + "\n");
+        reply(OK);
+        return -1;
+    }
+
+    private void processHead() throws InterruptedException {
+        final byte[] command;
+        final int len;
+        final long arrival;
+        synchronized (this) {
+            command = mQueue[mQueueHead];
+            len = mQueueLengths[mQueueHead];
+            arrival = mQueueArrivals[mQueueHead];
+        }
+        if (mCommandNanos > 0) {
+            LockSupport.parkNanos(mCommandNanos);
+        }
+
+        byte[] response = OK;
+        String text = null;
+        final char letter = len > 0 ? (char) command[0] : ' ';
+        final long code = parseWord(command, 0, len, letter);
+        if (letter == 'G' && code >= 0 && code <= 3) {
+            plan();
+        } else if (letter == 'M') {
+            switch ((int) code) {
+                case 105:
+                    response = null;
+                    text = "ok " + temperatures() + "\n";
+                    break;
+                case 104:
+                case 109:
+                    mHotend = mHotendTarget = parseFloat(command, len, 'S', mHotendTarget);
+                    break;
+                case 140:
+                case 190:
+                    mBed = mBedTarget = parseFloat(command, len, 'S', mBedTarget);
+                    break;
+                case 115:
+                    text = "FIRMWARE_NAME:Marlin (VirtualPrinter) PROTOCOL_VERSION:1.0"
+                            + " MACHINE_TYPE:VirtualPrinter EXTRUDER_COUNT:1\n";
+                    break;
+                case 155:
+                    setTemperatureReportInterval((long) (parseFloat(command, len, 'S', 0) * 1000));
+                    break;
+                case 400:
+                    awaitPlanner(0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        synchronized (this) {
+            if (mClosed) {
+                throw new InterruptedException();
+            }
+            if (text != null) {
+                reply(text);
+            }
+            if (response != null) {
+                reply(response);
+            }
+            final long latency = System.nanoTime() - arrival;
+            mAcks++;
+            mAckLatencyTotalNanos += latency;
+            if (latency > mMaxAckLatencyNanos) {
+                mMaxAckLatencyNanos = latency;
+            }
+            mCommands++;
+            mQueueHead = (mQueueHead + 1) % mQueue.length;
+            mQueueCount--;
+        }
+    }
+
+    /** Adds a move, first waiting for a free planner slot. */
+    private void plan() throws InterruptedException {
+        awaitPlanner(mPlanner.length - 1);
+        final long now = System.nanoTime();
+        retireMoves(now);
+        long start = now;
+        if (mPlannerCount == 0) {
+            if (mLastMoveEnd != 0 && now > mLastMoveEnd) {
+                synchronized (this) {
+                    mUnderruns++;
+                    mStarvedNanos += now - mLastMoveEnd;
+                }
+            }
+        } else {
+            start = Math.max(now, mLastMoveEnd);
+        }
+        mLastMoveEnd = start + mMoveNanos;
+        mPlanner[(mPlannerHead + mPlannerCount) % mPlanner.length] = mLastMoveEnd;
+        mPlannerCount++;
+    }
+
+    /**
+     * Blocks until at most {@code moves} are left in the planner, saying
+     * "busy" every two seconds like Marlin's host keepalive.
+     */
+    private void awaitPlanner(int moves) throws InterruptedException {
+        long busySince = 0;
+        while (true) {
+            final long now = System.nanoTime();
+            retireMoves(now);
+            if (mPlannerCount <= moves) {
+                return;
+            }
+            if (busySince == 0) {
+                busySince = now;
+            } else if (now - busySince >= BUSY_INTERVAL_NANOS) {
+                busySince = now;
+                synchronized (this) {
+                    reply("echo:busy: processing\n");
+                }
+            }
+            synchronized (this) {
+                if (mClosed) {
+                    throw new InterruptedException();
+                }
+                reportTemperatureIfDue();
+            }
+            LockSupport.parkNanos(Math.min(mPlanner[mPlannerHead] - now, BUSY_INTERVAL_NANOS));
+        }
+    }
+
+    private void retireMoves(long now) {
+        while (mPlannerCount > 0 && mPlanner[mPlannerHead] <= now) {
+            mPlannerHead = (mPlannerHead + 1) % mPlanner.length;
+            mPlannerCount--;
+        }
+    }
+
+    private void reply(String text) {
+        final byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        reply(bytes);
+    }
+
+    // Called with the lock held. Output beyond the transmit buffer waits for
+    // the host to read, like a stalled USB endpoint.
+    private void reply(byte[] bytes) {
+        for (byte b : bytes) {
+            while (mTxCount == mTx.length && !mClosed) {
+                if (!waitNanos(BUSY_INTERVAL_NANOS)) {
+                    return;
+                }
+            }
+            if (mClosed) {
+                return;
+            }
+            mTx[(mTxHead + mTxCount++) % mTx.length] = b;
+        }
+        notifyAll();
+    }
+
+    private static boolean startsWith(byte[] line, int offset, int len, String prefix) {
+        if (offset + prefix.length() > len) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Integer value of the first {@code letter} word in the range, or -1. */
+    private static long parseWord(byte[] line, int from, int to, char letter) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == letter && i + 1 < to && line[i + 1] >= '0' && line[i + 1] <= '9') {
+                long value = 0;
+                for (int j = i + 1; j < to && line[j] >= '0' && line[j] <= '9'; j++) {
+                    value = value * 10 + (line[j] - '0');
+                }
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static float parseFloat(byte[] line, int len, char letter, float fallback) {
+        for (int i = 1; i < len; i++) {
+            if (line[i] == letter) {
+                int end = i + 1;
+                while (end < len && line[end] != ' ') {
+                    end++;
+                }
+                try {
+                    return Float.parseFloat(new String(line, i + 1, end - i - 1, "US-ASCII"));
+                } catch (Exception e) {
+                    return fallback;
+                }
+            }
+        }
+        return fallback;
+    }
+}
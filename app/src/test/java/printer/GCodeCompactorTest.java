@@ -0,0 +1,282 @@
+package printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks lines run through {@link GCodeCompactor} move the printer the same
+ * way: every move and G92 ends up at the same position within the rounding
+ * allowed, at the same feedrate, and every other command keeps its words
+ * exactly as written.
+ */
+public class GCodeCompactorTest {
+
+    private static final String[] CORPUS = {
+        "M92 X80.0125 Y80.0125 Z400.00001 E93.123456 ; calibrated steps",
+        "M851 Z-1.234567",
+        "M201 X500.0 Y500.0 Z100.00 E5000",
+        "M204 P500.000 R1000 T500",
+        "M104 S210.55",
+        "M303 E0 S200.25 C8",
+        "M220 S100.5",
+        "M906 X800.0004",
+        "T0",
+        "G28",
+        "G90",
+        "M82",
+        "G92 E0.0000",
+        "G92 X10.12345 Y-0.00001",
+        "G1 X5 Y5 F1800.000",
+        "G1 F1800",
+        "G1 F1800.0 ; repeated feedrate alone",
+        "g1 x1.0004 y2.0005 f3000",
+        "G1 X0.49999 (inline comment) Y-0.00001 ; trailing comment",
+        "G01 X20.0000 E1.23456789",
+        "G2 X10.123456 Y20.98765 I-5.555555 J5.000049 E1.5",
+        "G3 X1 Y1 R2.00049 F1200",
+        "G0 Z0.2 F9000",
+        "G91",
+        "G1 Z0.20004",
+        "G1 X-0.0004 Y10.00049",
+        "G90",
+        "M83",
+        "G1 E-0.80001 F2100",
+        "G1 X15.5 Y15.5 E0.123449",
+        "M82",
+        "G92 E0",
+        "G1 X-5 Y-5 E0.99995",
+        "M117 Layer 1.00000",
+        "N10 G1 X1.000001*95",
+    };
+
+    @Test
+    public void compactedLinesAreMotionEquivalent() throws Exception {
+        final GCodeCompactor compactor = new GCodeCompactor();
+        final double tolerance = half(GCodeCompactor.DEFAULT_DECIMALS);
+        final double extrusionTolerance = half(GCodeCompactor.DEFAULT_EXTRUSION_DECIMALS);
+        final Machine original = new Machine();
+        final Machine compacted = new Machine();
+        final byte[] buffer = new byte[512];
+        int number = 0;
+        for (String text : corpus()) {
+            number++;
+            final byte[] line = ascii(text);
+            final int len = compactor.compact(line, 0, line.length, buffer, 0);
+            final String out = new String(buffer, 0, len, "US-ASCII");
+            final Command before = Command.parse(text);
+            final Command after = Command.parse(out);
+            final String where = "Line " + number + " \"" + text + "\" -> \"" + out + "\"";
+
+            if (before == null) {
+                assertNull(where + ": nothing became a command", after);
+                continue;
+            }
+            if (before.isVerbatim()) {
+                assertEquals(where + ": verbatim line changed", text.trim(), out);
+                continue;
+            }
+            if (after == null) {
+                // Only a move that repeats the feedrate may go away.
+                assertTrue(where + ": command dropped", before.isMove()
+                        && before.words.equals("F") && before.values[0] == original.feedrate);
+                continue;
+            }
+            assertEquals(where + ": command changed", before.name, after.name);
+            if (!before.isMove() && !before.isPositionReset()) {
+                assertEquals(where + ": words changed", before.raw, after.raw);
+            }
+            original.apply(before);
+            compacted.apply(after);
+            for (int axis = 0; axis < Machine.AXES.length(); axis++) {
+                final double allowed = (axis == Machine.E ? extrusionTolerance : tolerance)
+                        * (original.drift[axis] + 1);
+                assertEquals(where + ": " + Machine.AXES.charAt(axis),
+                        original.position[axis], compacted.position[axis], allowed);
+            }
+            assertEquals(where + ": feedrate", original.feedrate, compacted.feedrate, 0);
+            if (before.isMove()) {
+                for (char c : new char[] { 'I', 'J', 'R' }) {
+                    assertEquals(where + ": " + c, before.get(c), after.get(c), tolerance);
+                }
+            }
+        }
+    }
+
+    /** Slicer-style lines, then the hand-picked ones. */
+    private static List<String> corpus() {
+        final Random random = new Random(42);
+        final List<String> corpus = new ArrayList<String>();
+        double e = 0;
+        for (int i = 0; i < 20000; i++) {
+            switch (random.nextInt(8)) {
+                case 0:
+                    corpus.add(String.format(Locale.US, "G0 F9000 X%.6f Y%.6f",
+                            random.nextDouble() * 200, random.nextDouble() * 200));
+                    break;
+                case 1:
+                    corpus.add("M106 S255 ; fan on");
+                    break;
+                default:
+                    e += random.nextDouble() * 0.05;
+                    corpus.add(String.format(Locale.US, "G1 X%.6f Y%.6f E%.7f F1800 ; perimeter",
+                            random.nextDouble() * 200, random.nextDouble() * 200, e));
+                    break;
+            }
+        }
+        corpus.addAll(Arrays.asList(CORPUS));
+        return corpus;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    private static double half(int decimals) {
+        return 0.5 * Math.pow(10, -decimals) + 1e-9;
+    }
+
+    /** One line split into its command and words, comments removed. */
+    private static final class Command {
+        final String name;
+        // Letter of each word, and its value or NaN.
+        final String words;
+        final double[] values;
+        // The words as written, for commands that must keep them.
+        final String raw;
+
+        private Command(String name, String words, double[] values, String raw) {
+            this.name = name;
+            this.words = words;
+            this.values = values;
+            this.raw = raw;
+        }
+
+        static Command parse(String line) {
+            String text = line.trim();
+            if (text.indexOf('*') >= 0 || text.toUpperCase(Locale.US).startsWith("M117")) {
+                return new Command(text, "", new double[0], text);
+            }
+            final int semicolon = text.indexOf(';');
+            if (semicolon >= 0) {
+                text = text.substring(0, semicolon);
+            }
+            text = text.replaceAll("\\([^)]*\\)", " ").trim();
+            if (text.isEmpty()) {
+                return null;
+            }
+            final List<String> tokens = new ArrayList<String>();
+            int i = 0;
+            while (i < text.length()) {
+                if (text.charAt(i) == ' ') {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < text.length() && "0123456789.-+".indexOf(text.charAt(j)) >= 0) {
+                    j++;
+                }
+                tokens.add(text.substring(i, j));
+                i = j;
+            }
+            final String first = tokens.get(0).toUpperCase(Locale.US);
+            String name = first.substring(0, 1);
+            if (first.length() > 1) {
+                name += (int) Double.parseDouble(first.substring(1));
+            }
+            final StringBuilder words = new StringBuilder();
+            final StringBuilder raw = new StringBuilder();
+            final double[] values = new double[tokens.size() - 1];
+            for (int t = 1; t < tokens.size(); t++) {
+                final String token = tokens.get(t);
+                words.append(Character.toUpperCase(token.charAt(0)));
+                values[t - 1] = token.length() > 1
+                        ? Double.parseDouble(token.substring(1)) : Double.NaN;
+                raw.append(token).append(' ');
+            }
+            return new Command(name, words.toString(), values, raw.toString());
+        }
+
+        boolean isVerbatim() {
+            return name.indexOf('*') >= 0 || name.toUpperCase(Locale.US).startsWith("M117");
+        }
+
+        boolean isMove() {
+            return name.equals("G0") || name.equals("G1") || name.equals("G2")
+                    || name.equals("G3");
+        }
+
+        boolean isPositionReset() {
+            return name.equals("G92");
+        }
+
+        double get(char letter) {
+            final int i = words.indexOf(letter);
+            return i < 0 ? Double.NaN : values[i];
+        }
+    }
+
+    /** Just enough of a printer to follow where moves take the head. */
+    private static final class Machine {
+        static final String AXES = "XYZE";
+        static final int E = 3;
+
+        final double[] position = new double[4];
+        // Relative moves since each axis was last set outright, each of which
+        // may add its own rounding.
+        final int[] drift = new int[4];
+        double feedrate = Double.NaN;
+        boolean relative;
+        boolean relativeExtrusion;
+
+        void apply(Command command) {
+            if (command.name.equals("G90") || command.name.equals("G91")) {
+                relative = command.name.equals("G91");
+                relativeExtrusion = relative;
+            } else if (command.name.equals("M82") || command.name.equals("M83")) {
+                relativeExtrusion = command.name.equals("M83");
+            } else if (command.name.equals("G28")) {
+                Arrays.fill(position, 0, E, 0);
+                Arrays.fill(drift, 0, E, 0);
+            } else if (command.isPositionReset()) {
+                for (int axis = 0; axis < AXES.length(); axis++) {
+                    final double value = command.get(AXES.charAt(axis));
+                    if (!Double.isNaN(value)) {
+                        position[axis] = value;
+                        drift[axis] = 0;
+                    }
+                }
+            } else if (command.isMove()) {
+                for (int axis = 0; axis < AXES.length(); axis++) {
+                    final double value = command.get(AXES.charAt(axis));
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    if (axis == E ? relativeExtrusion : relative) {
+                        position[axis] += value;
+                        drift[axis]++;
+                    } else {
+                        position[axis] = value;
+                        drift[axis] = 0;
+                    }
+                }
+                final double f = command.get('F');
+                if (!Double.isNaN(f)) {
+                    feedrate = f;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Streams files into a {@link VirtualPrinter} over a link slow enough for
+ * lines to be on the wire when it flushes its buffer.
+ */
+public class GCodeStreamerTest {
+
+    private static final int LINES = 1500;
+    private static final int COMMANDS = 50;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private VirtualPrinter mPrinter;
+    private SerialIOManager mIoManager;
+    private CountDownLatch mDone;
+
+    @After
+    public void tearDown() {
+        if (mIoManager != null) {
+            mIoManager.stop();
+        }
+        if (mPrinter != null) {
+            mPrinter.close();
+        }
+    }
+
+    @Test
+    public void streamsWithoutErrors() throws Exception {
+        final GCodeStreamer streamer = stream(writeFile(LINES), 0, 0);
+        assertFinished(streamer, LINES + 1);
+        assertEquals(0, mPrinter.getLineErrors());
+    }
+
+    /** Only the command has to fit in a line; comments may run on. */
+    @Test
+    public void streamsLongComments() throws Exception {
+        final String comment = repeat('x', 2 * GCodeStreamer.MAX_LINE_LENGTH);
+        final GCodeStreamer streamer = stream(writeFile("; " + comment,
+                "G1 X10 Y10 F1800 ; " + comment, "   ;" + comment, "G1 X20 Y20"), 0, 0);
+        assertFinished(streamer, 3);
+    }
+
+    @Test
+    public void failsOnLongCommand() throws Exception {
+        final GCodeStreamer streamer = stream(writeFile("G28",
+                "M117 " + repeat('x', GCodeStreamer.MAX_LINE_LENGTH) + " ; status"), 0, 0);
+        assertEquals(GCodeStreamer.State.FAILED, streamer.getState());
+    }
+
+    /**
+     * Console commands sent mid-print take buffer space and get their own
+     * "ok", which must not release a file line early.
+     */
+    @Test
+    public void interleavesConsoleCommands() throws Exception {
+        final File file = writeFile(LINES);
+        for (boolean checksums : new boolean[] { false, true }) {
+            final GCodeStreamer streamer = start(file, 0, 0, checksums);
+            for (int i = 0; i < COMMANDS; i++) {
+                assertTrue(streamer.sendCommand("M105 ; poll"));
+                Thread.sleep(5);
+            }
+            awaitEnd(streamer);
+            assertFinished(streamer, LINES + COMMANDS + (checksums ? 1 : 0));
+            assertEquals(0, mPrinter.getLineErrors());
+            assertFalse(streamer.sendCommand("M105"));
+            tearDown();
+        }
+    }
+
+    @Test
+    public void sendsConsoleCommandsWhilePaused() throws Exception {
+        final GCodeStreamer streamer = start(writeFile(LINES), 0, 0, true);
+        Thread.sleep(100);
+        streamer.pause();
+        // Let lines already going out drain.
+        Thread.sleep(200);
+        final long executed = mPrinter.getCommandsExecuted();
+        assertTrue(executed < LINES);
+        for (int i = 0; i < COMMANDS; i++) {
+            assertTrue(streamer.sendCommand("M105"));
+        }
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (mPrinter.getCommandsExecuted() < executed + COMMANDS
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(executed + COMMANDS, mPrinter.getCommandsExecuted());
+        streamer.resume();
+        awaitEnd(streamer);
+        assertFinished(streamer, LINES + COMMANDS + 1);
+    }
+
+    /**
+     * Every corrupted line is sent again, none runs twice, and frames still
+     * on the wire when the firmware flushes never overrun its buffer.
+     */
+    @Test
+    public void resendsCorruptedLines() throws Exception {
+        final File file = writeFile(LINES);
+        for (long seed = 1; seed <= 3; seed++) {
+            final GCodeStreamer streamer = stream(file, 0.02, seed);
+            assertFinished(streamer, LINES + 1);
+            assertTrue("seed " + seed + " corrupted nothing", mPrinter.getLineErrors() > 0);
+            tearDown();
+        }
+    }
+
+    private GCodeStreamer stream(File file, double errorRate, long seed) throws Exception {
+        final GCodeStreamer streamer = start(file, errorRate, seed, true);
+        awaitEnd(streamer);
+        return streamer;
+    }
+
+    private GCodeStreamer start(File file, double errorRate, long seed, boolean checksums) {
+        mPrinter = new VirtualPrinter();
+        mPrinter.setBaudRate(250000);
+        mPrinter.setMoveTimeMicros(50);
+        mPrinter.setLineErrorRate(errorRate, seed);
+        mPrinter.start();
+        mIoManager = new SerialIOManager(mPrinter);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        mDone = done;
+        final GCodeStreamer streamer = new GCodeStreamer(file, mIoManager,
+                new GCodeStreamer.Callback() {
+                    @Override
+                    public void onProgress(GCodeStreamer streamer, long linesAcked,
+                            long bytesRead, long totalBytes) {
+                    }
+
+                    @Override
+                    public void onStateChanged(GCodeStreamer streamer,
+                            GCodeStreamer.State state) {
+                        if (state == GCodeStreamer.State.FINISHED
+                                || state == GCodeStreamer.State.CANCELLED
+                                || state == GCodeStreamer.State.FAILED) {
+                            done.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onError(GCodeStreamer streamer, Exception e) {
+                    }
+                });
+        streamer.setRxBufferSize(GCodeStreamer.DEFAULT_RX_BUFFER_SIZE);
+        streamer.setChecksums(checksums);
+        // Moves take microseconds here, so no line waits long to be read.
+        streamer.setStaleTimeout(200);
+        mIoManager.setResponseListener(streamer);
+
+        new Thread(mIoManager, "SerialIOManager").start();
+        new Thread(streamer, "GCodeStreamer").start();
+        return streamer;
+    }
+
+    private void awaitEnd(GCodeStreamer streamer) throws InterruptedException {
+        if (!mDone.await(60, TimeUnit.SECONDS)) {
+            streamer.cancel();
+        }
+    }
+
+    private void assertFinished(GCodeStreamer streamer, long commands) {
+        // An overrun garbles lines, so it explains any other failure.
+        assertEquals("overrun bytes", 0, mPrinter.getOverrunBytes());
+        assertEquals(GCodeStreamer.State.FINISHED, streamer.getState());
+        // Every file line, and the M110 that resets line numbering.
+        assertEquals(commands, mPrinter.getCommandsExecuted());
+    }
+
+    private File writeFile(int lines) throws IOException {
+        final File file = mFolder.newFile("print.gcode");
+        final Random random = new Random(42);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            double e = 0;
+            for (int i = 0; i < lines; i++) {
+                e += random.nextDouble() * 0.05;
+                out.write(String.format(Locale.US, "G1 X%.3f Y%.3f E%.5f F1800 ; perimeter\n",
+                        random.nextDouble() * 200, random.nextDouble() * 200, e)
+                        .getBytes("US-ASCII"));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private File writeFile(String... lines) throws IOException {
+        final File file = mFolder.newFile("lines.gcode");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes("US-ASCII"));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
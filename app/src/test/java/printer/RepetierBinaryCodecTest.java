@@ -0,0 +1,443 @@
+package printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link RepetierBinaryCodec} against the Repetier wire format: frames
+ * for hand-picked V1 and V2 lines match a layout built byte by byte from the
+ * protocol, lines the format cannot express are refused, damaged frames fail
+ * to decode, and generated lines decode back to the same words.
+ */
+public class RepetierBinaryCodecTest {
+
+    private static final long SEED = 42;
+    // Generated lines, and random frames, checked.
+    private static final int LINES = 20000;
+
+    // Integer fields; every other letter is a float.
+    private static final String INTEGERS = "NMGTSP";
+    private static final String FLOATS = "XYZEFIJRDCHABKLO";
+    private static final int[] TEXT_COMMANDS = { 20, 23, 28, 29, 30, 32, 117, 118 };
+
+    // Encodable lines, with the N to send or -1, checked word by word.
+    private static final Object[][] CORPUS = {
+        { "G28", -1 },
+        { "G28 X Y", 1 },
+        { "g1 x1.5 y-2.25 e0.0001 f1800", 2 },
+        { "G1 X+7.5 Y0.000001", 65535 },
+        { "G92 E0", 0 },
+        { "M104 S210", 3 },
+        { "M109 T1 S-5", 4 },
+        { "M106 P1 S255", 5 },
+        { "M300 S440 P200", 6 },
+        { "T1", 7 },
+        { "G2 X10 Y20 I5 J-5 E1.5 F1200", 8 },
+        { "G29 C1 H2 A3 B4 K5 L6 O7 D8 R9", 9 },
+        { "M117", 10 },
+        { "M117 Short", 11 },
+        { "M117 Printing layer 12 of 340 ; not a comment", 12 },
+        { "M23 model.gco", -1 },
+        { "G1 X1 ; comment", 13 },
+        { "N99 G1 X1*57", -1 },
+    };
+
+    // Lines the format cannot express.
+    private static final String[] REFUSED = {
+        "",
+        "; only a comment",
+        "X10 Y10",
+        "G1 X1 X2",
+        "G1 X1.2.3",
+        "G1 X1-2",
+        "G1 W5",
+        "G1 X1 #",
+        "G1 S1.5",
+        "M104 S3000000000",
+        "T256",
+        "G70000",
+        "G1 N-1",
+        "M117 " + repeat('x', 80),
+    };
+
+    /** The reference checksum against the published Fletcher-16 vectors. */
+    @Test
+    public void fletcherMatchesVectors() {
+        assertEquals(0xc8f0, fletcher(ascii("abcde")));
+        assertEquals(0x2057, fletcher(ascii("abcdef")));
+        assertEquals(0x0627, fletcher(ascii("abcdefgh")));
+    }
+
+    @Test
+    public void framesMatchProtocolLayout() {
+        // V1: 8 bit G, 16 bit N, floats in X Y Z E F order.
+        layout("G1 X10 Y-20.5 E0.25 F3000", 7, new Frame()
+                .short16(0x80 | 0x01 | 0x04 | 0x08 | 0x10 | 0x40 | 0x100)
+                .short16(7).byte8(1)
+                .float32(10f).float32(-20.5f).float32(0.25f).float32(3000f));
+        // V1: 8 bit M and T, 32 bit S.
+        layout("M109 T1 S215", -1, new Frame()
+                .short16(0x80 | 0x02 | 0x200 | 0x400)
+                .byte8(109).byte8(1).int32(215));
+        // V1 text is a fixed 16 byte, zero padded field.
+        layout("M117 Hello", -1, new Frame()
+                .short16(0x80 | 0x02 | 0x8000)
+                .byte8(117).text("Hello").pad(11));
+        // V2 for the second mask: 16 bit G, I and J after the first mask's floats.
+        layout("G2 X10 Y20 I5 J-5", 300, new Frame()
+                .short16(0x1000 | 0x80 | 0x01 | 0x04 | 0x08 | 0x10).short16(0x03)
+                .short16(300).short16(2)
+                .float32(10f).float32(20f).float32(5f).float32(-5f));
+        // V2 for an M above 255.
+        layout("M300 S440 P200", -1, new Frame()
+                .short16(0x1000 | 0x80 | 0x02 | 0x400 | 0x800).short16(0)
+                .short16(300).int32(440).int32(200));
+        // V2 for text over 16 bytes: length after the masks, no padding.
+        final String text = "This text is longer than 16";
+        layout("M117 " + text, 1, new Frame()
+                .short16(0x8000 | 0x1000 | 0x80 | 0x01 | 0x02).short16(0)
+                .byte8(text.length()).short16(1).short16(117).text(text));
+        // Every field, which is as long as a frame gets.
+        final String longest = "G1 X1 Y2 Z3 E4 F5 T6 S7 P8 I1 J2 R3 D4 C5 H6 A7 B8 K9 L10 O11"
+                + " M117 " + repeat('t', 79);
+        final byte[] frame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        final int len = new RepetierBinaryCodec().encode(ascii(longest), 0,
+                longest.length(), 65535, frame, 0);
+        assertEquals("Longest line", RepetierBinaryCodec.MAX_FRAME_LENGTH, len);
+    }
+
+    private static void layout(String line, int lineNumber, Frame expected) {
+        final byte[] want = expected.checksummed();
+        final byte[] frame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        final int len = new RepetierBinaryCodec().encode(ascii(line), 0, line.length(),
+                lineNumber, frame, 0);
+        final byte[] got = len < 0 ? new byte[0] : Arrays.copyOf(frame, len);
+        assertEquals("\"" + line + "\"", hex(want), hex(got));
+        checkDamage(line, got);
+    }
+
+    /** Every truncation, bit flip and field change of a good frame is rejected. */
+    private static void checkDamage(String line, byte[] frame) {
+        assertNotNull("\"" + line + "\" did not decode",
+                RepetierBinaryCodec.decode(frame, 0, frame.length));
+        for (int len = 0; len < frame.length; len++) {
+            assertNull("\"" + line + "\" decoded from " + len + " of " + frame.length + " bytes",
+                    RepetierBinaryCodec.decode(frame, 0, len));
+        }
+        for (int bit = 0; bit < frame.length * 8; bit++) {
+            final byte[] damaged = frame.clone();
+            damaged[bit / 8] ^= 1 << (bit % 8);
+            assertNull("\"" + line + "\" decoded with bit " + bit + " flipped",
+                    RepetierBinaryCodec.decode(damaged, 0, damaged.length));
+        }
+        final byte[] payload = Arrays.copyOf(frame, frame.length - 2);
+        // ASCII, as far as the firmware can tell, with a valid checksum.
+        final byte[] ascii = payload.clone();
+        ascii[0] &= ~0x80;
+        assertNull("\"" + line + "\" decoded without the binary bit", decodes(ascii));
+        // One byte too many or too few for the fields in the mask.
+        assertNull("\"" + line + "\" decoded with a trailing byte",
+                decodes(Arrays.copyOf(payload, payload.length + 1)));
+        assertNull("\"" + line + "\" decoded with its last field cut short",
+                decodes(Arrays.copyOf(payload, payload.length - 1)));
+    }
+
+    @Test
+    public void handPickedLinesRoundTrip() {
+        final RepetierBinaryCodec codec = new RepetierBinaryCodec();
+        final byte[] frame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        for (Object[] entry : CORPUS) {
+            final String line = (String) entry[0];
+            final int lineNumber = (Integer) entry[1];
+            final int len = codec.encode(ascii(line), 0, line.length(), lineNumber,
+                    frame, 0);
+            assertTrue("\"" + line + "\" refused", len > 0);
+            roundTrip(line, lineNumber, frame, len);
+        }
+    }
+
+    @Test
+    public void inexpressibleLinesAreRefused() {
+        final RepetierBinaryCodec codec = new RepetierBinaryCodec();
+        final byte[] frame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        for (String line : REFUSED) {
+            final int len = codec.encode(ascii(line), 0, line.length(), 1, frame, 0);
+            assertEquals("\"" + line + "\"", -1, len);
+        }
+    }
+
+    /**
+     * Random commands with random words, some of which the format cannot
+     * express. Each must be refused exactly when it has one of those.
+     */
+    @Test
+    public void generatedLinesRoundTripOrAreRefused() {
+        final Random random = new Random(SEED);
+        final RepetierBinaryCodec codec = new RepetierBinaryCodec();
+        final byte[] frame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.setLength(0);
+            boolean expressible = true;
+            final int kind = random.nextInt(20);
+            final char command = kind < 12 ? 'G' : kind < 19 ? 'M' : 'T';
+            int code = random.nextInt(command == 'G' ? 100 : 400);
+            while (command == 'M' && isTextCommand(code)) {
+                code++;
+            }
+            sb.append(random.nextInt(10) == 0 ? Character.toLowerCase(command) : command)
+                    .append(code);
+            if (command == 'T' && code > 255) {
+                expressible = false;
+            }
+            if (command == 'M' && random.nextInt(4) == 0) {
+                // Free text, sometimes too long.
+                sb.setLength(0);
+                sb.append('M').append(TEXT_COMMANDS[random.nextInt(TEXT_COMMANDS.length)]);
+                final int length = random.nextInt(90);
+                if (length > 0) {
+                    sb.append(' ');
+                }
+                for (int c = 0; c < length; c++) {
+                    sb.append((char) (length - c == 1 || c == 0
+                            ? '!' + random.nextInt(94) : ' ' + random.nextInt(95)));
+                }
+                expressible = length <= 79;
+            } else {
+                final String letters = FLOATS + "TSP";
+                final boolean[] used = new boolean[26];
+                used[command - 'A'] = true;
+                final int words = random.nextInt(8);
+                for (int w = 0; w < words; w++) {
+                    final char letter = letters.charAt(random.nextInt(letters.length()));
+                    if (used[letter - 'A']) {
+                        continue;
+                    }
+                    used[letter - 'A'] = true;
+                    sb.append(' ').append(random.nextInt(10) == 0
+                            ? Character.toLowerCase(letter) : letter);
+                    final int pick = random.nextInt(20);
+                    if (pick == 0) {
+                        // Bare letter, which means zero.
+                    } else if (letter == 'T') {
+                        final int t = random.nextInt(300);
+                        sb.append(t);
+                        expressible &= t <= 255;
+                    } else if (letter == 'S' || letter == 'P') {
+                        if (pick == 1) {
+                            sb.append(random.nextInt(100)).append('.')
+                                    .append(1 + random.nextInt(9));
+                            expressible = false;
+                        } else if (pick == 2) {
+                            sb.append(random.nextBoolean() ? "3000000000" : "-2147483649");
+                            expressible = false;
+                        } else {
+                            sb.append(pick == 3 ? Integer.MIN_VALUE : random.nextInt());
+                        }
+                    } else {
+                        final int decimals = random.nextInt(7);
+                        sb.append(String.format(Locale.US, "%." + decimals + "f",
+                                (random.nextDouble() - 0.5) * 2000));
+                    }
+                }
+                if (random.nextInt(20) == 0) {
+                    sb.append(" W1");
+                    expressible = false;
+                }
+            }
+            final String line = sb.toString();
+            final int lineNumber = random.nextInt(4) == 0 ? -1 : random.nextInt(65536);
+            final int len = codec.encode(ascii(line), 0, line.length(), lineNumber,
+                    frame, 0);
+            if (!expressible) {
+                assertEquals("\"" + line + "\"", -1, len);
+                continue;
+            }
+            assertTrue("\"" + line + "\" refused", len > 0);
+            roundTrip(line, lineNumber, frame, len);
+        }
+    }
+
+    /** Decoding arbitrary bytes that pass the checksum must not throw. */
+    @Test
+    public void garbageDecodesWithoutThrowing() {
+        final Random random = new Random(SEED);
+        final byte[] buffer = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+        for (int i = 0; i < LINES; i++) {
+            final int len = 2 + random.nextInt(buffer.length - 3);
+            random.nextBytes(buffer);
+            buffer[0] |= 0x80;
+            final int sum = fletcher(Arrays.copyOf(buffer, len));
+            buffer[len] = (byte) sum;
+            buffer[len + 1] = (byte) (sum >> 8);
+            RepetierBinaryCodec.decode(buffer, 0, len + 2);
+        }
+    }
+
+    private static void roundTrip(String line, int lineNumber, byte[] frame, int len) {
+        final String decoded = RepetierBinaryCodec.decode(frame, 0, len);
+        final String where = "\"" + line + "\" N" + lineNumber + " -> " + hex(Arrays.copyOf(
+                frame, len)) + " -> \"" + decoded + "\"";
+        assertNotNull(where + ": did not decode", decoded);
+        final TreeMap<Character, String> want = words(line);
+        final TreeMap<Character, String> got = words(decoded);
+        if (lineNumber >= 0) {
+            want.put('N', Integer.toString(lineNumber));
+        }
+        assertEquals(where + ": words differ", want.keySet(), got.keySet());
+        for (Character letter : want.keySet()) {
+            final String a = want.get(letter);
+            final String b = got.get(letter);
+            final boolean same;
+            if (letter == ' ') {
+                same = a.equals(b);
+            } else if (INTEGERS.indexOf(letter) >= 0) {
+                same = number(a) == number(b);
+            } else {
+                // Within one float step, as the codec parses through a double.
+                final float expected = (float) Double.parseDouble(a.isEmpty() ? "0" : a);
+                same = Math.abs(expected - Float.parseFloat(b)) <= Math.ulp(expected);
+            }
+            assertTrue(where + ": " + letter + " is " + b + ", expected " + a, same);
+        }
+    }
+
+    /**
+     * A line's words as the firmware reads them, by upper case letter, with
+     * the free text of a text command under ' '. Words must be separated by
+     * spaces, since the codec's floats may print with an exponent.
+     */
+    private static TreeMap<Character, String> words(String line) {
+        final TreeMap<Character, String> words = new TreeMap<Character, String>();
+        String rest = line.trim();
+        while (!rest.isEmpty() && rest.charAt(0) != ';' && rest.charAt(0) != '*') {
+            int space = rest.indexOf(' ');
+            if (space < 0) {
+                space = rest.length();
+            }
+            int end = space;
+            final int star = rest.indexOf('*');
+            if (star >= 0 && star < end) {
+                end = star;
+            }
+            final char letter = Character.toUpperCase(rest.charAt(0));
+            final String value = rest.substring(1, end);
+            words.put(letter, value);
+            rest = rest.substring(end).trim();
+            if (letter == 'M' && isTextCommand(number(value))) {
+                words.put(' ', rest);
+                break;
+            }
+        }
+        return words;
+    }
+
+    private static long number(String value) {
+        return value.isEmpty() ? 0 : Long.parseLong(value.startsWith("+")
+                ? value.substring(1) : value);
+    }
+
+    private static boolean isTextCommand(long code) {
+        for (int c : TEXT_COMMANDS) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Decodes a payload after appending a valid checksum to it. */
+    private static String decodes(byte[] payload) {
+        final byte[] frame = Arrays.copyOf(payload, payload.length + 2);
+        final int sum = fletcher(payload);
+        frame[payload.length] = (byte) sum;
+        frame[payload.length + 1] = (byte) (sum >> 8);
+        return RepetierBinaryCodec.decode(frame, 0, frame.length);
+    }
+
+    /**
+     * Fletcher-16 with both sums mod 255, as the firmware computes it: the
+     * first sum in the low byte, which goes first on the wire.
+     */
+    private static int fletcher(byte[] data) {
+        int sum1 = 0;
+        int sum2 = 0;
+        for (byte b : data) {
+            sum1 = (sum1 + (b & 0xff)) % 255;
+            sum2 = (sum2 + sum1) % 255;
+        }
+        return sum2 << 8 | sum1;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String hex(byte[] data) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /** A frame built field by field, little-endian, as the protocol lays it out. */
+    private static final class Frame {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Frame byte8(int v) {
+            mOut.write(v);
+            return this;
+        }
+
+        Frame short16(int v) {
+            return byte8(v).byte8(v >> 8);
+        }
+
+        Frame int32(int v) {
+            return short16(v).short16(v >> 16);
+        }
+
+        Frame float32(float v) {
+            return int32(Float.floatToIntBits(v));
+        }
+
+        Frame text(String s) {
+            final byte[] b = ascii(s);
+            mOut.write(b, 0, b.length);
+            return this;
+        }
+
+        Frame pad(int count) {
+            for (int i = 0; i < count; i++) {
+                mOut.write(0);
+            }
+            return this;
+        }
+
+        byte[] checksummed() {
+            final int sum = fletcher(mOut.toByteArray());
+            return byte8(sum).byte8(sum >> 8).mOut.toByteArray();
+        }
+    }
+}
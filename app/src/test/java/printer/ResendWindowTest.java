@@ -0,0 +1,64 @@
+package printer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ResendWindowTest {
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new ResendWindow(1, 8).capacity());
+        assertEquals(64, new ResendWindow(33, 8).capacity());
+        assertEquals(1024, new ResendWindow(1024, 8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new ResendWindow(0, 8);
+    }
+
+    @Test
+    public void keepsLastCapacityLines() {
+        final ResendWindow window = new ResendWindow(16, 8);
+        for (int line = 0; line < 100; line++) {
+            window.put(line, frame(line), 0, 1 + line % 8);
+        }
+        for (int line = 0; line < 100; line++) {
+            assertEquals("line " + line, line >= 84, window.contains(line));
+        }
+        for (int line = 84; line < 100; line++) {
+            final int len = 1 + line % 8;
+            assertEquals(len, window.length(line));
+            assertArrayEquals(Arrays.copyOf(frame(line), len),
+                    Arrays.copyOf(window.frame(line), len));
+        }
+    }
+
+    @Test
+    public void emptyUntilPut() {
+        final ResendWindow window = new ResendWindow(8, 8);
+        for (int line = -8; line < 16; line++) {
+            assertFalse("line " + line, window.contains(line));
+        }
+        window.put(3, frame(3), 2, 4);
+        assertTrue(window.contains(3));
+        assertArrayEquals(Arrays.copyOfRange(frame(3), 2, 6),
+                Arrays.copyOf(window.frame(3), 4));
+        window.clear();
+        assertFalse(window.contains(3));
+    }
+
+    private static byte[] frame(int line) {
+        final byte[] frame = new byte[8];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (line * 8 + i);
+        }
+        return frame;
+    }
+}
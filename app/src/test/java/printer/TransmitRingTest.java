@@ -0,0 +1,84 @@
+package printer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TransmitRingTest {
+
+    private static final int CAPACITY = 64;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPutLargerThanRing() throws Exception {
+        new TransmitRing(CAPACITY, true).put(new byte[CAPACITY + 1], 0, CAPACITY + 1);
+    }
+
+    /** A put waiting for space lands in one piece, after the data ahead of it. */
+    @Test
+    public void putWaitsForRoomForAll() throws Exception {
+        final TransmitRing ring = new TransmitRing(CAPACITY, true);
+        assertTrue(ring.offer(fill((byte) 1, CAPACITY - 8)));
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ring.put(fill((byte) 2, 32), 0, 32);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        // Enough room for part of the put, not all of it.
+        ring.release(16);
+        Thread.sleep(50);
+        assertEquals(CAPACITY - 24, ring.size());
+        ring.release(ring.size());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals(32, ring.size());
+        final byte[] out = new byte[32];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = ring.array()[(ring.readIndex() + i) % CAPACITY];
+        }
+        assertArrayEquals(fill((byte) 2, 32), out);
+    }
+
+    @Test
+    public void keepsEveryListener() {
+        final TransmitRing ring = new TransmitRing(CAPACITY, true);
+        assertTrue(ring.offer(fill((byte) 1, CAPACITY)));
+        final AtomicInteger small = new AtomicInteger();
+        final AtomicInteger large = new AtomicInteger();
+        assertFalse(ring.offer(new byte[8], 0, 8, counter(small)));
+        assertFalse(ring.offer(new byte[32], 0, 32, counter(large)));
+        ring.release(8);
+        assertEquals(1, small.get());
+        assertEquals(0, large.get());
+        ring.release(24);
+        assertEquals(1, small.get());
+        assertEquals(1, large.get());
+    }
+
+    private static TransmitRing.SpaceListener counter(final AtomicInteger calls) {
+        return new TransmitRing.SpaceListener() {
+            @Override
+            public void onSpaceAvailable(TransmitRing ring) {
+                calls.incrementAndGet();
+            }
+        };
+    }
+
+    private static byte[] fill(byte value, int len) {
+        final byte[] b = new byte[len];
+        Arrays.fill(b, value);
+        return b;
+    }
+}
@@ -0,0 +1,143 @@
+package printer.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+import printer.GCodeAnalyzer;
+
+/**
+ * Analyzes a large slicer-style G-code file, first whole on one thread and
+ * then in chunks on several, and reports the rate and how far the chunked
+ * estimate strays from the whole one.
+ *
+ * Settings are system properties: {@code -Dfile=<path>} analyzes an existing
+ * file instead of generating {@code -Dmegabytes=N} (100 by default) of
+ * G-code, and {@code -Dthreads=N} sets the pool size, by default one per
+ * core.
+ */
+public class AnalyzerRun {
+
+    public static void main(String[] args) throws Exception {
+        final String path = System.getProperty("file");
+        final int megabytes = Integer.getInteger("megabytes", 100);
+        final int threads = Integer.getInteger("threads",
+                Runtime.getRuntime().availableProcessors());
+
+        File file;
+        if (path != null) {
+            file = new File(path);
+        } else {
+            file = File.createTempFile("analyzer", ".gcode");
+            file.deleteOnExit();
+            final long start = System.nanoTime();
+            generate(file, megabytes * 1024L * 1024L);
+            System.out.printf(Locale.US, "generated %d MB in %.1f s%n", megabytes,
+                    (System.nanoTime() - start) / 1e9);
+        }
+
+        final GCodeAnalyzer whole = new GCodeAnalyzer();
+        whole.setThreads(1);
+        whole.setChunkSize(Integer.MAX_VALUE);
+        final GCodeAnalyzer.Result reference = whole.analyze(file);
+        report("whole", reference);
+
+        final GCodeAnalyzer chunked = new GCodeAnalyzer();
+        chunked.setThreads(threads);
+        // Once to warm up, then for the record.
+        chunked.analyze(file);
+        final GCodeAnalyzer.Result result = chunked.analyze(file);
+        report("chunked", result);
+
+        System.out.printf(Locale.US, "time off by %.3f s (%.4f%%), filament by %.6f mm%n",
+                result.getPrintSeconds() - reference.getPrintSeconds(),
+                100 * (result.getPrintSeconds() - reference.getPrintSeconds())
+                        / reference.getPrintSeconds(),
+                result.getFilament() - reference.getFilament());
+    }
+
+    private static void report(String label, GCodeAnalyzer.Result result) {
+        final double seconds = result.getAnalysisNanos() / 1e9;
+        System.out.printf(Locale.US, "%-8s %d chunks on %d threads: %.2f s, %.0f MB/s, %d lines%n",
+                label, result.getChunkCount(), result.getThreadCount(), seconds,
+                result.getBytes() / seconds / (1024 * 1024), result.getLines());
+        System.out.println("         " + result);
+        System.out.printf(Locale.US, "         exact time %.3f s, filament %.4f mm, %d heating"
+                        + " waits, %d long lines, %d unsupported %s%n",
+                result.getPrintSeconds(), result.getFilament(), result.getHeatingWaits(),
+                result.getLongLines(), result.getUnsupportedLines(),
+                result.getUnsupportedCommands());
+        if (!result.getIssues().isEmpty()) {
+            System.out.println("         first issue: " + result.getIssues().get(0));
+        }
+    }
+
+    /**
+     * Writes layer after layer of perimeters and infill the way slicers do:
+     * absolute XYZ, absolute E reset by G92 each layer, retractions over
+     * travel, feature accelerations, the odd arc, the odd command the
+     * firmware does not know and one line too long to stream.
+     */
+    static void generate(File file, long bytes) throws IOException {
+        final Random random = new Random(Inputs.SEED);
+        final Writer out = new BufferedWriter(new FileWriter(file), 1 << 16);
+        long written = 0;
+        try {
+            written += write(out, "; generated\nM140 S60\nM104 S210\nM190 S60\nM109 S210\n"
+                    + "G28\nG90\nM82\nG92 E0\nM204 P1500 T3000\nG1 Z0.3 F600\n");
+            double z = 0.2;
+            int layer = 0;
+            while (written < bytes) {
+                z += 0.2;
+                layer++;
+                written += write(out, String.format(Locale.US,
+                        ";LAYER:%d\nG92 E0\nG1 Z%.2f F600\n", layer, z));
+                if (layer == 100) {
+                    // Long enough to stop the streamer.
+                    written += write(out, ";" + new String(new char[300]).replace('\0', '=')
+                            + "\n");
+                }
+                double e = 0;
+                for (int island = 0; island < 4 && written < bytes; island++) {
+                    final double cx = 20 + random.nextDouble() * 160;
+                    final double cy = 20 + random.nextDouble() * 160;
+                    written += write(out, String.format(Locale.US,
+                            "G1 E%.5f F2400\nG0 F9000 X%.3f Y%.3f\nG1 E%.5f F2400\n"
+                                    + "M204 P1500\n;TYPE:WALL\n",
+                            e - 0.8, cx, cy, e));
+                    for (int i = 0; i < 200; i++) {
+                        final double angle = i * 2 * Math.PI / 200;
+                        e += 0.012;
+                        written += write(out, String.format(Locale.US,
+                                "G1 X%.3f Y%.3f E%.5f%s\n", cx + 10 * Math.cos(angle),
+                                cy + 10 * Math.sin(angle), e, i == 0 ? " F1800" : ""));
+                    }
+                    written += write(out, String.format(Locale.US,
+                            "G2 X%.3f Y%.3f I-5 J0 E%.5f\nM204 P3000\n;TYPE:FILL\n",
+                            cx, cy, e += 0.4));
+                    for (int i = 0; i < 300; i++) {
+                        e += 0.02 + random.nextDouble() * 0.01;
+                        written += write(out, String.format(Locale.US,
+                                "G1 X%.3f Y%.3f E%.5f\n", cx - 9 + random.nextDouble() * 18,
+                                cy - 9 + random.nextDouble() * 18, e));
+                    }
+                    if (random.nextInt(50) == 0) {
+                        written += write(out, "M6 T1 ; tool change, not in Marlin\n");
+                    }
+                }
+            }
+            written += write(out, "M104 S0\nM140 S0\nG91\nG1 Z10 F600\nG90\nM84\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int write(Writer out, String text) throws IOException {
+        out.write(text);
+        return text.length();
+    }
+}
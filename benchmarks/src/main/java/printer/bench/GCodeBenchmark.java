@@ -0,0 +1,97 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import printer.GCodeChecksum;
+import printer.GCodeCompactor;
+import printer.RepetierBinaryCodec;
+
+/** Per-line work on the streaming path. Scores are per line. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Thread)
+public class GCodeBenchmark {
+
+    private static final int LINES = 1024;
+
+    private byte[][] mLines;
+    private byte[][] mCompacted;
+    private final byte[] mScratch = new byte[512];
+    private final byte[] mFrame = new byte[RepetierBinaryCodec.MAX_FRAME_LENGTH];
+    private GCodeCompactor mCompactor;
+    private RepetierBinaryCodec mCodec;
+
+    @Setup
+    public void setUp() {
+        mLines = Inputs.gcodeLines(LINES);
+        mCompactor = new GCodeCompactor();
+        mCodec = new RepetierBinaryCodec();
+        mCompacted = new byte[LINES][];
+        for (int i = 0; i < LINES; i++) {
+            final int len = mCompactor.compact(mLines[i], 0, mLines[i].length, mScratch, 0);
+            mCompacted[i] = Arrays.copyOf(mScratch, len);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int compact() {
+        int total = 0;
+        for (byte[] line : mLines) {
+            total += mCompactor.compact(line, 0, line.length, mScratch, 0);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int checksumFrame() {
+        int total = 0;
+        for (int i = 0; i < LINES; i++) {
+            final byte[] line = mLines[i];
+            total += GCodeChecksum.frame(line, 0, line.length, i, mScratch, 0);
+        }
+        return total;
+    }
+
+    /** Repetier binary encoding alone, of lines already compacted. */
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int encodeBinary() {
+        int total = 0;
+        for (int i = 0; i < LINES; i++) {
+            final byte[] line = mCompacted[i];
+            total += mCodec.encode(line, 0, line.length, i & 0xffff, mFrame, 0);
+        }
+        return total;
+    }
+
+    /** Compaction followed by Repetier binary encoding, as sent in binary mode. */
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int compactAndEncodeBinary() {
+        int total = 0;
+        for (int i = 0; i < LINES; i++) {
+            final byte[] src = mLines[i];
+            final int len = mCompactor.compact(src, 0, src.length, mScratch, 0);
+            total += mCodec.encode(mScratch, 0, len, i & 0xffff, mFrame, 0);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,72 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import printer.HexDump;
+import printer.TextDecoder;
+
+/** Console formatting of received chunks. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Thread)
+public class HexDumpBenchmark {
+
+    // A full-speed USB packet, and a full read buffer.
+    @Param({ "64", "4096" })
+    public int size;
+
+    private byte[] mData;
+    private char[] mChars;
+    private String mHex;
+    private byte[] mText;
+    private TextDecoder mDecoder;
+
+    @Setup
+    public void setUp() {
+        mData = Inputs.randomBytes(size);
+        mChars = new char[HexDump.dumpHexLength(size)];
+        mHex = HexDump.toHexString(mData);
+        mText = Inputs.replies(size);
+        mDecoder = new TextDecoder();
+    }
+
+    @Benchmark
+    public String dumpHexString() {
+        return HexDump.dumpHexString(mData);
+    }
+
+    @Benchmark
+    public int dumpHexIntoArray() {
+        return HexDump.dumpHex(mData, 0, mData.length, 0, mChars, 0);
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return HexDump.toHexString(mData);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() {
+        return HexDump.hexStringToByteArray(mHex);
+    }
+
+    @Benchmark
+    public int decodeText() {
+        return mDecoder.decode(mText, 0, size);
+    }
+}
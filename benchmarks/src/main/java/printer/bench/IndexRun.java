@@ -0,0 +1,96 @@
+package printer.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import printer.GCodeIndex;
+import printer.GCodeReader;
+
+/**
+ * Indexes a large G-code file, then seeks to random lines and layers through
+ * the index and checks each lands where reading from the top would.
+ *
+ * Settings are system properties: {@code -Dfile=<path>} indexes an existing
+ * file instead of generating {@code -Dmegabytes=N} (100 by default) of
+ * G-code like {@link AnalyzerRun}, and {@code -Dseeks=N} sets the number of
+ * seeks timed.
+ */
+public class IndexRun {
+
+    public static void main(String[] args) throws Exception {
+        final String path = System.getProperty("file");
+        final int megabytes = Integer.getInteger("megabytes", 100);
+        final int seeks = Integer.getInteger("seeks", 10000);
+
+        final File file;
+        if (path != null) {
+            file = new File(path);
+        } else {
+            file = File.createTempFile("index", ".gcode");
+            file.deleteOnExit();
+            AnalyzerRun.generate(file, megabytes * 1024L * 1024L);
+        }
+        final File indexFile = new File(file.getPath() + GCodeIndex.SUFFIX);
+        indexFile.deleteOnExit();
+        indexFile.delete();
+
+        long start = System.nanoTime();
+        GCodeIndex index = GCodeIndex.open(file, file.getParentFile());
+        final double buildSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        index = GCodeIndex.open(file, file.getParentFile());
+        final double openMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf(Locale.US, "%d lines, %d layers, index %d KB: built in %.2f s"
+                        + " (%.0f MB/s), reopened in %.2f ms%n",
+                index.getLineCount(), index.getLayerCount(), indexFile.length() / 1024,
+                buildSeconds, file.length() / buildSeconds / (1024 * 1024), openMillis);
+
+        // Every line's offset by reading from the top, for checking.
+        final GCodeReader reader = new GCodeReader(file);
+        final long lines = index.getLineCount();
+        final Random random = new Random(Inputs.SEED);
+        final long[] targets = new long[seeks];
+        for (int i = 0; i < seeks; i++) {
+            targets[i] = (long) (random.nextDouble() * lines);
+        }
+        final long[] expected = new long[seeks];
+        final long[] sorted = targets.clone();
+        Arrays.sort(sorted);
+        final byte[] line = new byte[512];
+        int next = 0;
+        while (next < seeks) {
+            while (next < seeks && sorted[next] == reader.getLineNumber()) {
+                expected[next++] = reader.getPosition();
+            }
+            if (reader.readLine(line) < 0) {
+                break;
+            }
+        }
+
+        start = System.nanoTime();
+        for (int i = 0; i < seeks; i++) {
+            index.seek(reader, targets[i]);
+            final int at = Arrays.binarySearch(sorted, targets[i]);
+            if (reader.getPosition() != expected[at]) {
+                throw new AssertionError("Line " + targets[i] + " at " + reader.getPosition()
+                        + ", expected " + expected[at]);
+            }
+        }
+        final double seekMicros = (System.nanoTime() - start) / 1e3 / seeks;
+
+        final byte[] marker = new byte[64];
+        for (int layer = 0; layer < index.getLayerCount(); layer += 97) {
+            index.seekLayer(reader, layer);
+            final int len = reader.readLine(marker);
+            final String text = new String(marker, 0, Math.min(len, marker.length), "US-ASCII");
+            if (!text.startsWith(";LAYER:")) {
+                throw new AssertionError("Layer " + layer + " at \"" + text + "\"");
+            }
+        }
+        reader.close();
+        System.out.printf(Locale.US, "%d line seeks checked, %.1f us each; layer seeks checked%n",
+                seeks, seekMicros);
+    }
+}
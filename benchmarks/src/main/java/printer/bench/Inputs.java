@@ -0,0 +1,80 @@
+package printer.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Deterministic test data shared by the benchmarks, so that runs on
+ * different days and machines measure the same work.
+ */
+final class Inputs {
+
+    static final long SEED = 42;
+
+    private Inputs() {
+    }
+
+    /** Slicer-style G-code lines, without terminators. */
+    static byte[][] gcodeLines(int count) {
+        final Random random = new Random(SEED);
+        final byte[][] lines = new byte[count][];
+        double e = 0;
+        for (int i = 0; i < count; i++) {
+            final String line;
+            switch (random.nextInt(8)) {
+                case 0:
+                    line = String.format("G0 F9000 X%.6f Y%.6f", random.nextDouble() * 200,
+                            random.nextDouble() * 200);
+                    break;
+                case 1:
+                    line = "M106 S255 ; fan on";
+                    break;
+                default:
+                    e += random.nextDouble() * 0.05;
+                    line = String.format("G1 X%.6f Y%.6f E%.7f F1800 ; perimeter",
+                            random.nextDouble() * 200, random.nextDouble() * 200, e);
+                    break;
+            }
+            lines[i] = ascii(line);
+        }
+        return lines;
+    }
+
+    /** Marlin-style reply traffic: mostly "ok", some temperatures and echoes. */
+    static byte[] replies(int bytes) {
+        final Random random = new Random(SEED);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes + 128);
+        while (out.size() < bytes) {
+            final String reply;
+            final int pick = random.nextInt(20);
+            if (pick == 0) {
+                reply = String.format("ok T:%.2f /210.00 B:%.2f /60.00 @:127 B@:0\n",
+                        200 + random.nextDouble() * 10, 58 + random.nextDouble() * 2);
+            } else if (pick == 1) {
+                reply = "echo:busy: processing\n";
+            } else if (pick == 2) {
+                reply = String.format(" T:%.2f /210.00 B:%.2f /60.00 @:127 B@:0\n",
+                        200 + random.nextDouble() * 10, 58 + random.nextDouble() * 2);
+            } else {
+                reply = "ok\n";
+            }
+            final byte[] b = ascii(reply);
+            out.write(b, 0, b.length);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] randomBytes(int length) {
+        final byte[] data = new byte[length];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+
+    static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,83 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import printer.GCodeCompactor;
+import printer.PrintJournal;
+
+/**
+ * What journaling adds per line on the streaming and reply threads: following
+ * the line's state and storing it as it is sent, then acknowledging it, with
+ * the writer checkpointing and syncing in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    private static final int LINES = 4096;
+    // In flight at once, as with the default 127 byte receive buffer.
+    private static final int IN_FLIGHT = 63;
+
+    @Param({ "10", "250" })
+    public long intervalMillis;
+
+    private final byte[][] mLines = new byte[LINES][];
+    private final int[] mLengths = new int[LINES];
+    private File mFile;
+    private File mSource;
+    private PrintJournal mJournal;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        final GCodeCompactor compactor = new GCodeCompactor();
+        final byte[][] lines = Inputs.gcodeLines(LINES);
+        for (int i = 0; i < LINES; i++) {
+            mLines[i] = lines[i].clone();
+            mLengths[i] = compactor.compact(mLines[i], 0, mLines[i].length, mLines[i], 0);
+        }
+        mSource = File.createTempFile("journal", ".gcode");
+        mFile = File.createTempFile("journal", ".journal");
+        mJournal = new PrintJournal(mFile);
+        mJournal.setInterval(intervalMillis);
+        mJournal.begin(mSource, IN_FLIGHT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mJournal.end(true);
+        System.out.printf("%n%d checkpoints, mean %.1f us, max %.1f us%n", mJournal.getWrites(),
+                mJournal.getMeanWriteNanos() / 1e3, mJournal.getMaxWriteNanos() / 1e3);
+        mFile.delete();
+        mSource.delete();
+    }
+
+    /** A line sent, and the one sent {@link #IN_FLIGHT} lines before it acknowledged. */
+    @Benchmark
+    public long sentAndAcked() {
+        final int i = mNext++ & (LINES - 1);
+        final long seq = mJournal.sent(mLines[i], mLengths[i], i);
+        if (seq >= IN_FLIGHT) {
+            mJournal.acked(seq - IN_FLIGHT);
+        }
+        return seq;
+    }
+}
@@ -0,0 +1,128 @@
+package printer.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import printer.GCodeCompactor;
+import printer.GCodeStreamer;
+import printer.SerialEventLoop;
+import printer.SerialIOManager;
+import printer.VirtualPrinter;
+
+/**
+ * Streams to several {@link VirtualPrinter}s at once, with their links
+ * either on a shared {@link SerialEventLoop} or each on its own
+ * {@link SerialIOManager#run()} threads, and reports throughput, thread
+ * count and CPU time.
+ *
+ * Settings are system properties: {@code -Dprinters=8} links,
+ * {@code -Dloop=2} event loop threads or {@code -Dloop=0} for a thread pair
+ * per link, {@code -Dlines=5000} per printer, and {@code -DmoveMicros} as
+ * for {@link PipelineRun}.
+ */
+public class MultiPrinterRun {
+
+    public static void main(String[] args) throws Exception {
+        final int printers = Integer.getInteger("printers", 8);
+        final int loopThreads = Integer.getInteger("loop", SerialEventLoop.DEFAULT_THREADS);
+        final int lines = Integer.getInteger("lines", 5000);
+        final long moveMicros = Long.getLong("moveMicros", 200);
+
+        final File file = File.createTempFile("multi", ".gcode");
+        file.deleteOnExit();
+        PipelineRun.writeFile(file, lines);
+
+        final SerialEventLoop loop = loopThreads > 0 ? new SerialEventLoop(loopThreads) : null;
+        if (loop != null) {
+            loop.start();
+        }
+
+        final VirtualPrinter[] devices = new VirtualPrinter[printers];
+        final SerialIOManager[] managers = new SerialIOManager[printers];
+        final GCodeStreamer[] streamers = new GCodeStreamer[printers];
+        final CountDownLatch done = new CountDownLatch(printers);
+        for (int i = 0; i < printers; i++) {
+            devices[i] = new VirtualPrinter();
+            devices[i].setMoveTimeMicros(moveMicros);
+            devices[i].start();
+            managers[i] = new SerialIOManager(devices[i]);
+            streamers[i] = new GCodeStreamer(file, managers[i], new GCodeStreamer.Callback() {
+                @Override
+                public void onProgress(GCodeStreamer streamer, long linesAcked,
+                        long bytesRead, long totalBytes) {
+                }
+
+                @Override
+                public void onStateChanged(GCodeStreamer streamer, GCodeStreamer.State state) {
+                    if (state == GCodeStreamer.State.FINISHED
+                            || state == GCodeStreamer.State.CANCELLED
+                            || state == GCodeStreamer.State.FAILED) {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void onError(GCodeStreamer streamer, Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            streamers[i].setChecksums(true);
+            streamers[i].setCompactor(new GCodeCompactor());
+            managers[i].setResponseListener(streamers[i]);
+            if (loop != null) {
+                loop.register(managers[i]);
+            } else {
+                new Thread(managers[i], "SerialIOManager-" + i).start();
+            }
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long cpuStart = processCpuNanos();
+        final long start = System.nanoTime();
+        for (int i = 0; i < printers; i++) {
+            new Thread(streamers[i], "GCodeStreamer-" + i).start();
+        }
+        done.await(10, TimeUnit.MINUTES);
+        final long elapsed = System.nanoTime() - start;
+        final long cpu = processCpuNanos() - cpuStart;
+        final int peakThreads = threads.getPeakThreadCount();
+
+        long commands = 0;
+        int finished = 0;
+        for (int i = 0; i < printers; i++) {
+            streamers[i].cancel();
+            managers[i].stop();
+            commands += devices[i].getCommandsExecuted();
+            if (streamers[i].getState() == GCodeStreamer.State.FINISHED) {
+                finished++;
+            }
+        }
+        if (loop != null) {
+            loop.shutdown();
+        }
+        for (VirtualPrinter device : devices) {
+            device.close();
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%d printers on %s: %d/%d finished, %.3fs, commands/s=%.0f (%.0f each),"
+                        + " peak threads=%d, cpu=%.2fs (%.0f%% of one core)",
+                printers, loop != null ? loopThreads + " loop threads" : "own threads",
+                finished, printers, elapsed / 1e9, commands * 1e9 / elapsed,
+                commands * 1e9 / elapsed / printers, peakThreads, cpu / 1e9,
+                cpu * 100.0 / elapsed));
+        System.exit(finished == printers ? 0 : 1);
+    }
+
+    private static long processCpuNanos() {
+        final Object os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,149 @@
+package printer.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import printer.GCodeCompactor;
+import printer.GCodeStreamer;
+import printer.PrintJournal;
+import printer.SerialIOManager;
+import printer.SessionCapture;
+import printer.VirtualPrinter;
+
+/**
+ * Streams a generated file through the real host pipeline
+ * ({@link GCodeStreamer}, {@link SerialIOManager}) into a
+ * {@link VirtualPrinter}, and reports throughput, ack latency and how often
+ * the printer's planner ran dry.
+ *
+ * Settings are system properties, e.g.
+ * {@code -Dlines=50000 -DerrorRate=0.001 -DmoveMicros=500 -DhostRxBuffer=127}.
+ * {@code -Dcapture=<dir>} records the exchange with a {@link SessionCapture}.
+ * {@code -Djournal=<millis>} checkpoints the print to a {@link PrintJournal}
+ * at that interval.
+ */
+public class PipelineRun {
+
+    public static void main(String[] args) throws Exception {
+        final int lines = Integer.getInteger("lines", 20000);
+        final int hostRxBuffer = Integer.getInteger("hostRxBuffer", GCodeStreamer.DEFAULT_RX_BUFFER_SIZE);
+        final double errorRate = Double.parseDouble(System.getProperty("errorRate", "0"));
+        final long moveMicros = Long.getLong("moveMicros", 200);
+        final long commandMicros = Long.getLong("commandMicros", 20);
+        final int baudRate = Integer.getInteger("baudRate", 0);
+        final boolean checksums = Boolean.parseBoolean(System.getProperty("checksums", "true"));
+        final String captureDir = System.getProperty("capture");
+        final Long journalMillis = Long.getLong("journal");
+
+        final File file = File.createTempFile("pipeline", ".gcode");
+        file.deleteOnExit();
+        writeFile(file, lines);
+
+        final VirtualPrinter printer = new VirtualPrinter();
+        printer.setMoveTimeMicros(moveMicros);
+        printer.setCommandTimeMicros(commandMicros);
+        printer.setBaudRate(baudRate);
+        printer.setLineErrorRate(errorRate, Inputs.SEED);
+        printer.setTemperatureReportInterval(1000);
+        printer.start();
+
+        final SerialIOManager ioManager = new SerialIOManager(printer);
+        final SessionCapture capture = captureDir == null ? null
+                : new SessionCapture(new File(captureDir), "pipeline");
+        ioManager.setCapture(capture);
+        final CountDownLatch done = new CountDownLatch(1);
+        final GCodeStreamer streamer = new GCodeStreamer(file, ioManager,
+                new GCodeStreamer.Callback() {
+                    @Override
+                    public void onProgress(GCodeStreamer streamer, long linesAcked,
+                            long bytesRead, long totalBytes) {
+                    }
+
+                    @Override
+                    public void onStateChanged(GCodeStreamer streamer, GCodeStreamer.State state) {
+                        if (state == GCodeStreamer.State.FINISHED
+                                || state == GCodeStreamer.State.CANCELLED
+                                || state == GCodeStreamer.State.FAILED) {
+                            done.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onError(GCodeStreamer streamer, Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+        streamer.setRxBufferSize(hostRxBuffer);
+        streamer.setChecksums(checksums);
+        streamer.setCompactor(new GCodeCompactor());
+        PrintJournal journal = null;
+        if (journalMillis != null) {
+            final File journalFile = File.createTempFile("pipeline", ".journal");
+            journalFile.deleteOnExit();
+            journal = new PrintJournal(journalFile);
+            journal.setInterval(journalMillis);
+            streamer.setJournal(journal);
+        }
+        ioManager.setResponseListener(streamer);
+
+        new Thread(ioManager, "SerialIOManager").start();
+        final long start = System.nanoTime();
+        new Thread(streamer, "GCodeStreamer").start();
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            streamer.cancel();
+        }
+        final long elapsed = System.nanoTime() - start;
+        ioManager.stop();
+        printer.close();
+        if (capture != null) {
+            capture.close();
+        }
+
+        System.out.println(String.format(Locale.US,
+                "state=%s lines=%d elapsed=%.3fs commands/s=%.0f",
+                streamer.getState(), printer.getCommandsExecuted(), elapsed / 1e9,
+                printer.getCommandsExecuted() * 1e9 / elapsed));
+        System.out.println(String.format(Locale.US,
+                "ack latency mean=%.1fus max=%.1fus",
+                printer.getMeanAckLatencyNanos() / 1e3, printer.getMaxAckLatencyNanos() / 1e3));
+        System.out.println(String.format(Locale.US,
+                "planner underruns=%d starved=%.1fms line errors=%d overrun bytes=%d",
+                printer.getPlannerUnderruns(), printer.getStarvedNanos() / 1e6,
+                printer.getLineErrors(), printer.getOverrunBytes()));
+        System.out.println(String.format(Locale.US,
+                "host writer wakeup mean=%.1fus max=%.1fus",
+                ioManager.getMeanWakeupLatencyNanos() / 1e3,
+                ioManager.getMaxWakeupLatencyNanos() / 1e3));
+        ioManager.getMetrics().writeReport(System.out);
+        if (journal != null) {
+            System.out.println(String.format(Locale.US,
+                    "journal checkpoints=%d (%.1f/s) write+sync mean=%.1fus max=%.1fus",
+                    journal.getWrites(), journal.getWrites() * 1e9 / elapsed,
+                    journal.getMeanWriteNanos() / 1e3, journal.getMaxWriteNanos() / 1e3));
+        }
+        if (capture != null) {
+            System.out.println(String.format(Locale.US,
+                    "capture records=%d bytes=%d dropped=%d in %s",
+                    capture.getRecords(), capture.getBytes(), capture.getDroppedBytes(),
+                    capture.getDirectory()));
+        }
+        System.exit(streamer.getState() == GCodeStreamer.State.FINISHED ? 0 : 1);
+    }
+
+    static void writeFile(File file, int lines) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            for (byte[] line : Inputs.gcodeLines(lines)) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
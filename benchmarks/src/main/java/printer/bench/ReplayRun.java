@@ -0,0 +1,80 @@
+package printer.bench;
+
+import com.deltathinkers.console.ConsoleBuffer;
+
+import java.io.File;
+
+import printer.CaptureReader;
+import printer.Response;
+import printer.ResponseParser;
+import printer.SerialIOManager;
+import printer.SessionReplay;
+import printer.TextDecoder;
+
+/**
+ * Replays a {@link printer.SessionCapture} log through the response parser
+ * and, like the console's text mode, a {@link TextDecoder} feeding a
+ * {@link ConsoleBuffer}, then reports rates and per-stage latency.
+ *
+ * Settings are system properties: {@code -Dcapture=<dir> -Dname=<capture>}
+ * pick the log, {@code -Dspeed=0} (the default) plays as fast as possible
+ * and {@code -Dspeed=1} in real time, {@code -Drepeat=N} plays it N times
+ * and {@code -Dconsole=false} leaves out the console stage.
+ */
+public class ReplayRun {
+
+    public static void main(String[] args) throws Exception {
+        final String dir = System.getProperty("capture");
+        final String name = System.getProperty("name");
+        if (dir == null || name == null) {
+            System.err.println("Usage: -Dcapture=<dir> -Dname=<capture> [-Dspeed=x] [-Drepeat=n]");
+            System.exit(2);
+        }
+        final double speed = Double.parseDouble(System.getProperty("speed", "0"));
+        final int repeat = Integer.getInteger("repeat", 1);
+        final boolean console = Boolean.parseBoolean(System.getProperty("console", "true"));
+
+        final CaptureReader reader = new CaptureReader(new File(dir), name);
+        final SessionReplay replay = new SessionReplay(reader);
+        replay.setSpeed(speed);
+
+        final long[] types = new long[Response.Type.values().length];
+        replay.setResponseListener(new ResponseParser.Listener() {
+            @Override
+            public void onResponse(Response response) {
+                types[response.getType().ordinal()]++;
+            }
+        });
+
+        final ConsoleBuffer buffer = new ConsoleBuffer();
+        if (console) {
+            final TextDecoder decoder = new TextDecoder();
+            replay.setListener(new SerialIOManager.Listener() {
+                @Override
+                public void onNewData(byte[] data, int off, int count) {
+                    final int len = decoder.decode(data, off, count);
+                    buffer.append(decoder.chars(), 0, len);
+                }
+
+                @Override
+                public void onRunError(Exception e) {
+                }
+            });
+        }
+
+        for (int i = 0; i < repeat; i++) {
+            replay.run();
+        }
+        reader.close();
+
+        replay.writeReport(System.out);
+        final StringBuilder counts = new StringBuilder("responses");
+        for (Response.Type type : Response.Type.values()) {
+            counts.append(' ').append(type).append('=').append(types[type.ordinal()]);
+        }
+        System.out.println(counts);
+        if (console) {
+            System.out.println("console lines=" + buffer.getEnd());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import printer.Response;
+import printer.ResponseParser;
+
+/**
+ * Framing and classifying printer replies, fed in 64 byte pieces as they
+ * come off a full-speed USB endpoint. Scores are per 64 KiB of replies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Thread)
+public class ResponseParserBenchmark {
+
+    private static final int PACKET_SIZE = 64;
+
+    private byte[] mReplies;
+    private ResponseParser mParser;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mReplies = Inputs.replies(64 * 1024);
+        mBlackhole = blackhole;
+        mParser = new ResponseParser(new ResponseParser.Listener() {
+            @Override
+            public void onResponse(Response response) {
+                mBlackhole.consume(response.getType());
+                if (response.hasTemperatures()) {
+                    mBlackhole.consume(response.getHotendTemperature(0));
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    public long parse() {
+        for (int off = 0; off < mReplies.length; off += PACKET_SIZE) {
+            mParser.feed(mReplies, off, Math.min(PACKET_SIZE, mReplies.length - off));
+        }
+        return mParser.getLineCount();
+    }
+}
@@ -0,0 +1,56 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import printer.Tracer;
+
+/**
+ * What a trace point costs on the read path, below and at the current
+ * level, next to the string-building log call it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Benchmark)
+public class TracerBenchmark {
+
+    private static final int EVENT = Tracer.define(Tracer.DEBUG, "bench.read", "len=%d");
+
+    @Param({ "false", "true" })
+    public boolean enabled;
+
+    private int mLength;
+
+    @Setup
+    public void setUp() {
+        Tracer.setLevel(enabled ? Tracer.DEBUG : Tracer.INFO);
+    }
+
+    @Benchmark
+    public int trace() {
+        final int len = ++mLength & 0x3f;
+        Tracer.trace(EVENT, len, 0);
+        return len;
+    }
+
+    /** The former {@code Log.d(TAG, "Read data len=" + len)}, minus the logging. */
+    @Benchmark
+    public String concatenate() {
+        final int len = ++mLength & 0x3f;
+        return "Read data len=" + len;
+    }
+}
@@ -0,0 +1,71 @@
+package printer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import printer.TransmitRing;
+
+/**
+ * The transmit path: producers queue lines the way
+ * {@code SerialIOManager.writeAsync} does, and the I/O thread drains
+ * contiguous runs the way {@code SerialIOManager.step} does, minus the port.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Group)
+public class TransmitRingBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean multiProducer;
+
+    private TransmitRing mRing;
+    private byte[] mLine;
+
+    @Setup
+    public void setUp() {
+        mRing = new TransmitRing(64 * 1024, multiProducer);
+        mLine = Inputs.ascii("G1 X102.345 Y87.21 E1.2345\n");
+    }
+
+    /** One line in and straight out again on the same thread. */
+    @Benchmark
+    @Group("sameThread")
+    public int offerAndDrain() {
+        mRing.offer(mLine, 0, mLine.length);
+        return drain();
+    }
+
+    /** Producer and I/O thread running concurrently. */
+    @Benchmark
+    @Group("concurrent")
+    public boolean producer() {
+        return mRing.offer(mLine, 0, mLine.length);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    public int consumer() {
+        return drain();
+    }
+
+    private int drain() {
+        final int len = mRing.readableContiguous();
+        mRing.release(len);
+        return len;
+    }
+}